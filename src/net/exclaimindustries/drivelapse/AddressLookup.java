@@ -0,0 +1,97 @@
+/**
+ * AddressLookup.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.IOException;
+
+import net.exclaimindustries.drivelapse.ReverseGeocoder.Place;
+
+/**
+ * An AddressLookup looks up a frame's address and doesn't take no for an
+ * answer: if the ReverseGeocoder fails, it sleeps a bit and tries again, for
+ * as long as it takes or until the thread gets interrupted.  This is the
+ * Annotator's lookup, pulled out so it doesn't need Android, which lets the
+ * TripSimulator in the tools run the very same retries against its fake
+ * geocoder.
+ *
+ * @author Nicholas Killewald
+ */
+public class AddressLookup {
+    /** How long to wait after a failed lookup, in milliseconds. */
+    public static final long RETRY_DELAY = 10000;
+
+    private ReverseGeocoder mGeocoder;
+    private long mRetryDelay;
+
+    private volatile int mFailureCount;
+
+    /**
+     * Makes an AddressLookup.
+     *
+     * @param geocoder ReverseGeocoder to ask
+     * @param retryDelay how long to wait after a failure, in milliseconds;
+     *                   the app uses RETRY_DELAY
+     */
+    public AddressLookup(ReverseGeocoder geocoder, long retryDelay) {
+        mGeocoder = geocoder;
+        mRetryDelay = retryDelay;
+    }
+
+    /**
+     * Looks up an address, retrying until it goes through (or we get
+     * interrupted).
+     *
+     * @param time the frame's time
+     * @param latitude where the frame was taken
+     * @param longitude where the frame was taken
+     * @return a Record for the frame; if the thread got interrupted before a
+     *         lookup went through, it says so (see Record.isLooked)
+     */
+    public AnnotationSidecar.Record lookUp(long time, double latitude, double longitude) {
+        Place place = null;
+        boolean looked = false;
+
+        // Keep spinning this until a lookup goes through.  A successful lookup
+        // that has no data gives a null Place.  A failure throws.
+        while(!looked) {
+            if(Thread.currentThread().isInterrupted()) break;
+            try {
+                place = mGeocoder.lookup(latitude, longitude);
+                looked = true;
+            } catch (IOException e) {
+                mFailureCount++;
+                if(Thread.currentThread().isInterrupted()) break;
+
+                // Presumably, an IOException means we can't get a data
+                // connection (or whatever the Geocoder backend communicates
+                // with is dead).  So, sleep for a bit and try it again.
+                // TODO: Find something better to do, as this doesn't
+                // allow for canceling.
+                try {
+                    Thread.sleep(mRetryDelay);
+                } catch (InterruptedException e1) {
+                    // What?  We were interrupted, too?!?  Geez.  Okay,
+                    // fine, at this point, assume we've got nothing and
+                    // don't know where we are.
+                    break;
+                }
+            }
+        }
+
+        return new AnnotationSidecar.Record(time, latitude, longitude, looked, place);
+    }
+
+    /**
+     * Gets how many lookups have failed (and been retried) so far.
+     *
+     * @return the count
+     */
+    public int getFailureCount() {
+        return mFailureCount;
+    }
+}
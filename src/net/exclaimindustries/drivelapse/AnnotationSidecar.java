@@ -0,0 +1,475 @@
+/**
+ * AnnotationSidecar.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.exclaimindustries.drivelapse.ReverseGeocoder.Place;
+
+/**
+ * The AnnotationSidecar holds everything the Annotator needs to draw a frame's
+ * overlay: where and when the frame was taken, whether the address lookup went
+ * through, and the address, if there was one.  With all that, drawing the
+ * overlay later on (see FrameProcessor.EXTRA_DEFER), or again, comes out
+ * exactly like drawing it the first time did, and the ResultCache can tell
+ * whether it'd change anything.  It's also the only place a frame's address
+ * gets written down, so anything after the fact (an export, say) reads it from
+ * here with a Reader instead of looking it all up again.
+ *
+ * It's a plain text file, one line per frame: the frame's key, time, latitude,
+ * longitude, a 1 or 0 for whether the lookup went through, then the
+ * thoroughfare, locality, and admin area, separated by tabs.  Later lines
+ * win.  Like the ResultCache, the whole thing gets read in at once.
+ *
+ * Lines mostly go in in frame order, but not always: a batch run has a few
+ * frames going at once, and redoing a frame (or finishing one left over from
+ * a crash) puts its line at the very end.  sort puts the file back in key
+ * order with one line per frame, which is what a Reader needs.  The
+ * BatchProcessor does that at the end of every run, and the SessionExporter
+ * does it before it reads anything.
+ *
+ * @author Nicholas Killewald
+ */
+public class AnnotationSidecar {
+    public static final String FILENAME = "overlays.txt";
+
+    private static final String NEW_SUFFIX = ".new";
+
+    private Map<Long, Record> mRecords = new HashMap<Long, Record>();
+    private File mDir;
+
+    /**
+     * One frame's worth of overlay.
+     */
+    public static class Record {
+        private long mTime;
+        private double mLatitude;
+        private double mLongitude;
+        private boolean mLooked;
+        private Place mPlace;
+
+        public Record(long time, double latitude, double longitude, boolean looked, Place place) {
+            mTime = time;
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mLooked = looked;
+            mPlace = place;
+        }
+
+        public long getTime() { return mTime; }
+        public double getLatitude() { return mLatitude; }
+        public double getLongitude() { return mLongitude; }
+
+        /**
+         * Says whether the address lookup went through.  If it didn't, the
+         * Place is meaningless and ought to be looked up again.
+         *
+         * @return true if it went through
+         */
+        public boolean isLooked() { return mLooked; }
+
+        /**
+         * Gets the address, which is null if there wasn't one (or the lookup
+         * didn't go through).
+         *
+         * @return the Place
+         */
+        public Place getPlace() { return mPlace; }
+
+        /**
+         * Writes this Record out the way it goes in the sidecar, minus the
+         * key.  Two Records that'd draw the same overlay come out the same.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(mTime).append('\t')
+                    .append(mLatitude).append('\t')
+                    .append(mLongitude).append('\t')
+                    .append(mLooked ? '1' : '0').append('\t')
+                    .append(mPlace == null ? "" : clean(mPlace.getThoroughfare())).append('\t')
+                    .append(mPlace == null ? "" : clean(mPlace.getLocality())).append('\t')
+                    .append(mPlace == null ? "" : clean(mPlace.getAdminArea())).append('\t')
+                    // This is how a line that got cut off gets noticed.
+                    .append(mPlace == null ? '0' : '1');
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Writes down a frame's overlay.
+     *
+     * @param dir session directory
+     * @param key the frame's key
+     * @param record what to draw on it
+     * @throws IOException the sidecar couldn't be written
+     */
+    public static void append(File dir, long key, Record record) throws IOException {
+        String line = key + "\t" + record + "\n";
+
+        synchronized(AnnotationSidecar.class) {
+            FileOutputStream ostream = new FileOutputStream(new File(dir, FILENAME), true);
+            try {
+                ostream.write(line.getBytes("UTF-8"));
+            } finally {
+                ostream.close();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the sidecar in the given directory in key order, with only the
+     * last line for each frame and none of the lines that got cut off.  If
+     * it's already like that, it's left alone, which only takes a read
+     * through.  Otherwise, this needs to keep a key and an offset for every
+     * line while it works, but nothing more.
+     *
+     * @param dir session directory
+     * @return true if it had to be rewritten
+     * @throws IOException the sidecar couldn't be rewritten
+     */
+    public static boolean sort(File dir) throws IOException {
+        synchronized(AnnotationSidecar.class) {
+            File file = new File(dir, FILENAME);
+            File newFile = new File(dir, FILENAME + NEW_SUFFIX);
+
+            // If that's there, we got killed before it got swapped in, and the
+            // old one's still good.
+            newFile.delete();
+            if(!file.exists()) return false;
+
+            LineScanner scanner = new LineScanner(file);
+            boolean sorted = true;
+            long lastKey = Long.MIN_VALUE;
+            try {
+                while(scanner.next()) {
+                    if(scanner.getKey() <= lastKey || !scanner.isGood()) {
+                        sorted = false;
+                        break;
+                    }
+                    lastKey = scanner.getKey();
+                }
+            } finally {
+                scanner.close();
+            }
+            if(sorted) return false;
+
+            // Second time through, write down where every good line is.
+            int count = 0;
+            long[] keys = new long[256];
+            long[] offsets = new long[256];
+            int[] lengths = new int[256];
+            scanner = new LineScanner(file);
+            try {
+                while(scanner.next()) {
+                    if(!scanner.isGood()) continue;
+                    if(count == keys.length) {
+                        keys = Arrays.copyOf(keys, count * 2);
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                        lengths = Arrays.copyOf(lengths, count * 2);
+                    }
+                    keys[count] = scanner.getKey();
+                    offsets[count] = scanner.getOffset();
+                    lengths[count] = scanner.getLength();
+                    count++;
+                }
+            } finally {
+                scanner.close();
+            }
+
+            // Sort by key.  The sort's stable, so lines for the same frame
+            // stay in the order they were written, and the last one wins.
+            final long[] finalKeys = keys;
+            Integer[] order = new Integer[count];
+            for(int i = 0; i < count; i++) order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long ka = finalKeys[a];
+                    long kb = finalKeys[b];
+                    return ka < kb ? -1 : (ka == kb ? 0 : 1);
+                }
+            });
+
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            FileOutputStream fos = new FileOutputStream(newFile);
+            OutputStream out = new BufferedOutputStream(fos);
+            try {
+                byte[] buffer = new byte[256];
+                for(int i = 0; i < count; i++) {
+                    int line = order[i];
+                    if(i + 1 < count && keys[order[i + 1]] == keys[line]) continue;
+
+                    if(buffer.length < lengths[line] + 1) buffer = new byte[lengths[line] + 1];
+                    in.seek(offsets[line]);
+                    in.readFully(buffer, 0, lengths[line]);
+                    buffer[lengths[line]] = '\n';
+                    out.write(buffer, 0, lengths[line] + 1);
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                in.close();
+                out.close();
+            }
+
+            if(!newFile.renameTo(file))
+                throw new IOException("Couldn't swap in the sorted sidecar in " + dir);
+            return true;
+        }
+    }
+
+    /**
+     * A LineScanner goes through the sidecar a line at a time, keeping track
+     * of where each line is in the file, which a BufferedReader won't do.
+     */
+    private static class LineScanner {
+        private InputStream mIn;
+        private byte[] mLine = new byte[256];
+        private long mPosition;
+        private long mOffset;
+        private int mLength;
+        private long mKey;
+        private boolean mGood;
+
+        private LineScanner(File file) throws IOException {
+            mIn = new BufferedInputStream(new FileInputStream(file));
+        }
+
+        private boolean next() throws IOException {
+            mOffset = mPosition;
+            mLength = 0;
+            boolean ended = false;
+            int c;
+            while((c = mIn.read()) >= 0) {
+                mPosition++;
+                if(c == '\n') {
+                    ended = true;
+                    break;
+                }
+                if(mLength == mLine.length) mLine = Arrays.copyOf(mLine, mLength * 2);
+                mLine[mLength++] = (byte)c;
+            }
+            if(!ended && mLength == 0) return false;
+
+            // A line without its newline got cut off, whatever it looks like.
+            String[] parts = new String(mLine, 0, mLength, "UTF-8").split("\t", -1);
+            mGood = ended && parse(parts) != null;
+            mKey = mGood ? Long.parseLong(parts[0]) : -1;
+            return true;
+        }
+
+        private long getKey() { return mKey; }
+        private long getOffset() { return mOffset; }
+        private int getLength() { return mLength; }
+        private boolean isGood() { return mGood; }
+
+        private void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    private static String clean(String s) {
+        if(s == null) return "";
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String empty(String s) {
+        return s.length() == 0 ? null : s;
+    }
+
+    /**
+     * Parses one line of the sidecar.  If this doesn't return null, the key
+     * in parts[0] is good, too.
+     *
+     * @param parts the line, split on tabs
+     * @return the Record, or null if the line's no good
+     */
+    private static Record parse(String[] parts) {
+        if(parts.length != 9) return null;
+
+        try {
+            Long.parseLong(parts[0]);
+            boolean hasPlace = parts[8].equals("1");
+            return new Record(
+                    Long.parseLong(parts[1]),
+                    Double.parseDouble(parts[2]),
+                    Double.parseDouble(parts[3]),
+                    parts[4].equals("1"),
+                    hasPlace ? new Place(empty(parts[5]), empty(parts[6]), empty(parts[7])) : null);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the sidecar in the given directory.  If there isn't one, this just
+     * never finds anything.
+     *
+     * @param dir session directory
+     * @throws IOException the sidecar couldn't be read
+     */
+    public AnnotationSidecar(File dir) throws IOException {
+        mDir = dir;
+
+        File file = new File(dir, FILENAME);
+        if(!file.exists()) return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                Record record = parse(parts);
+                if(record != null) mRecords.put(Long.parseLong(parts[0]), record);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Gets the session directory this sidecar is for.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return mDir;
+    }
+
+    /**
+     * Writes down a frame's overlay, both in the file and in this copy of it.
+     *
+     * @param key the frame's key
+     * @param record what to draw on it
+     * @throws IOException the sidecar couldn't be written
+     */
+    public void add(long key, Record record) throws IOException {
+        append(mDir, key, record);
+        mRecords.put(key, record);
+    }
+
+    /**
+     * Gets a frame's overlay.
+     *
+     * @param key the frame's key
+     * @return the Record, or null if the frame isn't in the sidecar
+     */
+    public Record get(long key) {
+        return mRecords.get(key);
+    }
+
+    /**
+     * A Reader streams through a sidecar in key order, without reading the
+     * whole thing in like the constructor does.  It only ever holds one line,
+     * so it doesn't matter how long the sidecar is, but the sidecar has to be
+     * sorted first (see sort).  It can either go through every frame with
+     * next, or look frames up with get, but not both at once.
+     */
+    public static class Reader {
+        private BufferedReader mReader;
+        private boolean mStarted;
+        private long mKey = -1;
+        private Record mRecord;
+
+        /**
+         * Opens the sidecar in the given directory.  If there isn't one, this
+         * just never finds anything.
+         *
+         * @param dir session directory
+         * @throws IOException the sidecar couldn't be opened
+         */
+        public Reader(File dir) throws IOException {
+            File file = new File(dir, FILENAME);
+            if(file.exists()) {
+                mReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            }
+        }
+
+        /**
+         * Moves on to the next frame in the sidecar.
+         *
+         * @return false if there aren't any more
+         * @throws IOException the sidecar couldn't be read
+         */
+        public boolean next() throws IOException {
+            mStarted = true;
+            mRecord = null;
+            if(mReader == null) return false;
+
+            String line;
+            while((line = mReader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                Record record = parse(parts);
+                if(record == null) continue;
+
+                mKey = Long.parseLong(parts[0]);
+                mRecord = record;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Gets the key of the frame next moved to.
+         *
+         * @return the key
+         */
+        public long getKey() {
+            return mKey;
+        }
+
+        /**
+         * Gets the overlay of the frame next moved to.
+         *
+         * @return the Record, or null if there aren't any more
+         */
+        public Record getRecord() {
+            return mRecord;
+        }
+
+        /**
+         * Gets a frame's overlay.  Keys have to be asked for in increasing
+         * order; anything earlier than the last one asked for is gone.
+         *
+         * @param key the frame's key
+         * @return the Record, or null if the frame isn't in the sidecar
+         * @throws IOException the sidecar couldn't be read
+         */
+        public Record get(long key) throws IOException {
+            if(!mStarted) next();
+            while(mRecord != null && mKey < key) next();
+            return mRecord != null && mKey == key ? mRecord : null;
+        }
+
+        /**
+         * Closes the sidecar.
+         *
+         * @throws IOException the sidecar couldn't be closed
+         */
+        public void close() throws IOException {
+            if(mReader != null) mReader.close();
+            mReader = null;
+            mRecord = null;
+        }
+    }
+}
@@ -7,20 +7,23 @@
  */
 package net.exclaimindustries.drivelapse;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.text.DateFormat;
-import java.util.Calendar;
-import java.util.List;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import net.exclaimindustries.drivelapse.AssemblyLine.WorkOrder;
+import net.exclaimindustries.drivelapse.ReverseGeocoder.Place;
 
 import android.content.Context;
-import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.graphics.Rect;
 import android.graphics.Paint.Style;
-import android.location.Address;
-import android.location.Geocoder;
 import android.location.Location;
 import android.util.Log;
 
@@ -34,181 +37,320 @@ import android.util.Log;
 public class Annotator extends AssemblyLine.Station {
     private static final String DEBUG_TAG = "Annotator";
     
+    /** Where a custom overlay template goes, in the app's SD directory. */
+    public static final String TEMPLATE_FILENAME = "overlay.txt";
+    
     private Paint mBackgroundPaint;
     private Paint mTextPaint;
     
-    private Geocoder mGeocoder;
+    private AddressLookup mLookup;
     private Context mContext;
     
-    // The following three are defined once the first picture comes in.
-    /** How tall a box is. */
-    private int mBoxHeight;
-    /** Amount of padding in the box itself. */
-    private int mBoxPadding;
-    /** Distance between the box and the side and bottom of the pic. */
-    private int mBoxMargin;
+    private OverlayTemplate mTemplate;
+    /** The template's text, so the ResultCache knows when it changes. */
+    private String mTemplateSource;
+    /** The template, compiled for whatever size the last picture was. */
+    private OverlayTemplate.Compiled mOverlay;
+    
+    // Making a DateFormat every frame isn't cheap, so keep one around.
+    private DateFormat mDateFormat = DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.MEDIUM);
+    private Date mDate = new Date();
+    private String mUnknownLocation;
+    
+    /** The sidecar for whatever session the last frame was from. */
+    private AnnotationSidecar mSidecar;
+    
+    /** The overlay getOrderConfig worked out, and which frame it's for. */
+    private AnnotationSidecar.Record mRecord;
+    private String mRecordFrame;
+    
+    /** Whether the lookup went through, for a frame being done in bands. */
+    private boolean mLooked;
    
     public Annotator(Context context) {
         // Ready to annotate!
-        mGeocoder = new Geocoder(context);
+        mLookup = new AddressLookup(Geocoders.getPrefetcher(context), AddressLookup.RETRY_DELAY);
         mContext = context;
         
         mBackgroundPaint = new Paint();
         mBackgroundPaint.setStyle(Style.FILL);
         mBackgroundPaint.setColor(mContext.getResources().getColor(R.color.annotation_background));
         
-        // The text paint gets defined first time we get a picture, as we need
-        // to know how big the picture is to scale the text appropriately.
+        // The text size gets set when the template's compiled, as we need to
+        // know how big the picture is to scale the text appropriately.
+        mTextPaint = new Paint();
+        mTextPaint.setColor(mContext.getResources().getColor(R.color.annotation_textcolor));
+        mTextPaint.setAntiAlias(true);
+        
+        mUnknownLocation = mContext.getResources().getString(R.string.annotation_location_unknown);
+        mTemplate = loadTemplate();
     }
-
+    
     @Override
     public boolean processOrder(WorkOrder order) {
         // And away we go!
         Log.d(DEBUG_TAG, "Annotator thread has an image!  It's at " + order.getFileLocation());
         
-        // Right, we've got a picture!  Let's annotate!  First, get data.
-        List<Address> addresses = null;
+        boolean looked = prepare(order);
+        mOverlay.draw(order.getCanvas());
         
-        // Keep spinning this until this isn't null.  A successful lookup
-        // that has no data gives an empty list.  A failure keeps it null.
-        while(addresses == null) {
-            if(Thread.currentThread().isInterrupted()) {
-                Log.w(DEBUG_TAG, "Geocoder was interrupted, assuming this means to stop...");
-                break;
-            }
-            try {
-                addresses = mGeocoder.getFromLocation(
-                        order.getGpsLocation().getLatitude(),
-                        order.getGpsLocation().getLongitude(),
-                        1);
-            } catch (IOException e) {
-                e.printStackTrace();
-                if(Thread.currentThread().isInterrupted()) {
-                    Log.w(DEBUG_TAG, "Geocoder was interrupted, assuming this means to stop...");
-                    break;
-                }
-                
-                Log.i(DEBUG_TAG, "Geocoder lookup failure, sleeping...");
-                // Presumably, an IOException means we can't get a data
-                // connection (or whatever the Geocoder backend communicates
-                // with is dead).  So, sleep for a bit and try it again.
-                // TODO: Find something better to do, as this doesn't
-                // allow for canceling.
-                try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                    // What?  We were interrupted, too?!?  Geez.  Okay,
-                    // fine, at this point, assume we've got nothing and
-                    // don't know where we are.
-                    Log.w(DEBUG_TAG, "Geocoder sleep timeout interrupted, assuming this means to stop...");
-                    break;
-                }
-            }
+        // If the lookup never went through, this frame's not done; it ought
+        // to get annotated again next time.
+        return looked;
+    }
+    
+    @Override
+    public boolean canProcessBands() {
+        return true;
+    }
+    
+    @Override
+    public boolean beginBands(WorkOrder order) {
+        mLooked = prepare(order);
+        return true;
+    }
+    
+    @Override
+    public boolean needsRows(WorkOrder order, int top, int bottom) {
+        // The boxes only cover a few rows at the top and bottom; the bands in
+        // between can go right on by.
+        return mOverlay.intersects(top, bottom);
+    }
+    
+    @Override
+    public void processBand(WorkOrder order) {
+        // The canvas is already shifted to the band, so this is the same as
+        // drawing the whole thing, minus whatever lands off the band.
+        mOverlay.draw(order.getCanvas());
+    }
+    
+    @Override
+    public boolean endBands(WorkOrder order) {
+        return mLooked;
+    }
+    
+    /**
+     * Gets the overlay ready to draw on the given frame: looks up (or digs
+     * up) the address, compiles the template if need be, and fills in all the
+     * fields.
+     * 
+     * @return true if the lookup went through
+     */
+    private boolean prepare(WorkOrder order) {
+        // Right, we've got a picture!  Let's annotate!  First, get data.
+        // Usually that got worked out already, back when the frame was keyed
+        // (see getOrderConfig).
+        AnnotationSidecar.Record record;
+        if(mRecord != null && order.getFileLocation().equals(mRecordFrame)) {
+            record = mRecord;
+        } else {
+            record = resolveRecord(order);
         }
+        mRecord = null;
+        mRecordFrame = null;
 
-        Canvas canvas = order.getCanvas();
-        
-        // If we haven't made the text paint yet, we can use the bitmap to
-        // decide how big to make it.
-        if(mTextPaint == null) {
-            // TODO: Determine if I want to tweak the sizes based on the
-            // size of the incoming image.
-            mTextPaint = new Paint();
-            mTextPaint.setColor(mContext.getResources().getColor(R.color.annotation_textcolor));
-            mTextPaint.setTextSize(24);
-            mTextPaint.setAntiAlias(true);
-            mBoxHeight = 32;
-            mBoxPadding = 4;
-            mBoxMargin = 16;
-            
+        // If we haven't compiled the overlay yet (or the frames changed size
+        // on us), work out where everything goes.  That's the size of the
+        // whole frame, which isn't the canvas if we're going a band at a
+        // time.
+        int width = order.getFrameWidth();
+        int height = order.getFrameHeight();
+        if(mOverlay == null
+                || mOverlay.getWidth() != width
+                || mOverlay.getHeight() != height) {
+            mOverlay = mTemplate.compile(width, height, mTextPaint, mBackgroundPaint);
         }
         
-        drawCoordinates(canvas, order.getGpsLocation());
-        drawDateAndTime(canvas, order.getGpsLocation());
+        mOverlay.setField(OverlayTemplate.FIELD_COORDINATES,
+                UnitConverter.makeLatitudeCoordinateString(mContext, record.getLatitude(), false, UnitConverter.OUTPUT_LONG)
+                + " " + UnitConverter.makeLongitudeCoordinateString(mContext, record.getLongitude(), false, UnitConverter.OUTPUT_LONG));
+        mDate.setTime(record.getTime());
+        mOverlay.setField(OverlayTemplate.FIELD_DATETIME, mDateFormat.format(mDate));
         
-        if(addresses != null && !addresses.isEmpty()) {
+        Place place = record.getPlace();
+        if(place != null) {
             Log.d(DEBUG_TAG, "Address retrieved, now annotating...");
             
-            Address place = addresses.get(0);
-            
-            drawLessAddress(canvas, place);
+            mOverlay.setField(OverlayTemplate.FIELD_THOROUGHFARE, place.getThoroughfare());
+            mOverlay.setField(OverlayTemplate.FIELD_LOCALITY, place.getLocality() + ", " + place.getAdminArea());
         } else {
-            // If we got here, this might mean that the addresses list is
-            // empty.  However, it may also mean that it's null, meaning we
-            // got interrupted during a wait.  Even though that means we're
+            // If we got here, this might mean that the lookup found nothing.
+            // However, it may also mean that we got interrupted during a
+            // wait.  Even though that means we're
             // bailing out, we still have an annotation to wrap up.
-            drawUnknownAddress(canvas);
+            mOverlay.setField(OverlayTemplate.FIELD_THOROUGHFARE, null);
+            mOverlay.setField(OverlayTemplate.FIELD_LOCALITY, mUnknownLocation);
         }
         
-        return false;
+        return record.isLooked();
     }
     
-    private void drawLeftTextBox(Canvas canvas, String text, int position) {
-        Rect textBounds = new Rect();
-        mTextPaint.getTextBounds(text, 0, text.length(), textBounds);
-        
-        int baseline = canvas.getHeight() - mBoxHeight - mBoxMargin;
+    @Override
+    public String getOrderConfig(WorkOrder order) {
+        // The address is what actually gets drawn, so that's what decides
+        // whether the frame's up to date.  Once it's in the sidecar, it's the
+        // same from run to run, however the location got to us.
+        mRecord = resolveRecord(order);
+        mRecordFrame = order.getFileLocation();
+        return mRecord.toString();
+    }
+    
+    @Override
+    public boolean recordOrder(WorkOrder order) {
+        // The lookup's the part that can't wait; the address is only going to
+        // be in the prefetcher's cache for so long.  The rest goes in the
+        // sidecar for later.
+        Location loc = order.getGpsLocation();
+        AnnotationSidecar.Record record = lookUp(loc.getTime(), loc.getLatitude(), loc.getLongitude());
         
-        // DRAW!  First, a box.
-        canvas.drawRect(mBoxMargin,
-                baseline - (mBoxHeight * position),
-                (mBoxMargin * 2) + textBounds.right,
-                baseline - (mBoxHeight * (position - 1)),
-                mBackgroundPaint);
+        File frame = new File(order.getFileLocation());
+        if(!saveRecord(frame, record)) return false;
         
-        // Then, the text.
-        canvas.drawText(text,
-                mBoxMargin + mBoxPadding,
-                baseline - (2 * mBoxPadding) - (mBoxHeight * (position - 1)),
-                mTextPaint);
+        return record.isLooked();
     }
     
-    private void drawRightTextBox(Canvas canvas, String text, int position) {
-        Rect textBounds = new Rect();
-        mTextPaint.getTextBounds(text, 0, text.length(), textBounds);
-        
-        int baseline = canvas.getHeight() - mBoxHeight - mBoxMargin;
+    /**
+     * Gets a frame's overlay out of the sidecar.  If it isn't in there yet
+     * (or the lookup didn't go through last time), it gets looked up and
+     * written down, so the next run draws exactly the same thing.
+     */
+    private AnnotationSidecar.Record resolveRecord(WorkOrder order) {
+        File frame = new File(order.getFileLocation());
+        AnnotationSidecar.Record record = findRecord(frame);
+        if(record == null || !record.isLooked()) {
+            if(record == null) {
+                Location loc = order.getGpsLocation();
+                record = lookUp(loc.getTime(), loc.getLatitude(), loc.getLongitude());
+            } else {
+                record = lookUp(record.getTime(), record.getLatitude(), record.getLongitude());
+            }
+            saveRecord(frame, record);
+        }
+        return record;
+    }
+    
+    /**
+     * Looks up an address, retrying until it goes through (or we get
+     * interrupted).  The retrying's all in the AddressLookup.
+     */
+    private AnnotationSidecar.Record lookUp(long time, double latitude, double longitude) {
+        int failures = mLookup.getFailureCount();
+        AnnotationSidecar.Record record = mLookup.lookUp(time, latitude, longitude);
         
-        // DRAW DRAW DRAW!
-        canvas.drawRect(canvas.getWidth() - (mBoxMargin * 2) - textBounds.right,
-                baseline - (mBoxHeight * position),
-                canvas.getWidth() - mBoxMargin,
-                baseline - (mBoxHeight * (position - 1)),
-                mBackgroundPaint);
-     
-        // TEXT TEXT TEXT!
-        canvas.drawText(text,
-                canvas.getWidth() - mBoxPadding - textBounds.right - mBoxMargin,
-                baseline - (2 * mBoxPadding) - (mBoxHeight * (position - 1)),
-                mTextPaint);
-    }
-    
-    private void drawFullAddress(Canvas canvas, Address addr) {
-        for(int i = 0; i <= addr.getMaxAddressLineIndex(); i++) {
-            drawLeftTextBox(canvas, addr.getAddressLine(i), addr.getMaxAddressLineIndex() - i + 1);
+        if(mLookup.getFailureCount() > failures) {
+            Log.i(DEBUG_TAG, "Geocoder lookup failed " + (mLookup.getFailureCount() - failures) + " times before "
+                    + (record.isLooked() ? "going through" : "giving up"));
+        }
+        if(!record.isLooked()) {
+            Log.w(DEBUG_TAG, "Geocoder was interrupted, assuming this means to stop...");
         }
+        return record;
     }
     
-    private void drawLessAddress(Canvas canvas, Address addr) {
-        drawLeftTextBox(canvas, addr.getThoroughfare(), 2);
-        drawLeftTextBox(canvas, addr.getLocality() + ", " + addr.getAdminArea(), 1);
+    /**
+     * Writes a frame's overlay down in its session's sidecar.
+     */
+    private boolean saveRecord(File frame, AnnotationSidecar.Record record) {
+        long key = ThumbnailPack.keyFor(frame.getPath());
+        try {
+            AnnotationSidecar sidecar = getSidecar(frame.getParentFile());
+            if(sidecar != null) {
+                sidecar.add(key, record);
+            } else {
+                AnnotationSidecar.append(frame.getParentFile(), key, record);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Couldn't write the overlay down in the sidecar!");
+            e.printStackTrace();
+            return false;
+        }
     }
     
-    private void drawUnknownAddress(Canvas canvas) {
-        // This is used if the Geocoder lookup fails completely.
-        drawLeftTextBox(canvas, mContext.getResources().getString(R.string.annotation_location_unknown), 1);
+    /**
+     * Finds a frame's overlay in its session's sidecar, if it's in there.
+     */
+    private AnnotationSidecar.Record findRecord(File frame) {
+        AnnotationSidecar sidecar = getSidecar(frame.getParentFile());
+        if(sidecar == null) return null;
+        return sidecar.get(ThumbnailPack.keyFor(frame.getPath()));
     }
     
-    private void drawCoordinates(Canvas canvas, Location loc) {
-        drawLeftTextBox(canvas, UnitConverter.makeFullCoordinateString(mContext, loc, false, UnitConverter.OUTPUT_LONG), 0);
+    /**
+     * Gets the sidecar for a session, reading it in if it isn't the one from
+     * last time.
+     */
+    private AnnotationSidecar getSidecar(File dir) {
+        if(mSidecar == null || !mSidecar.getDirectory().equals(dir)) {
+            try {
+                mSidecar = new AnnotationSidecar(dir);
+            } catch (IOException e) {
+                Log.w(DEBUG_TAG, "Couldn't read the overlay sidecar, looking everything up again...");
+                e.printStackTrace();
+                mSidecar = null;
+            }
+        }
+        return mSidecar;
     }
     
-    private void drawDateAndTime(Canvas canvas, Location loc) {
-        Calendar date = Calendar.getInstance();
-        date.setTimeInMillis(loc.getTime());
+    @Override
+    public void warmUp(int width, int height) {
+        if(width <= 0 || height <= 0) return;
         
-        drawRightTextBox(canvas, DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.MEDIUM).format(date.getTime()), 0);
+        // Compile the overlay for the size we're expecting, and put some text
+        // through the paint and the date formatter so the font and the locale
+        // data are loaded before the first frame needs them.
+        mOverlay = mTemplate.compile(width, height, mTextPaint, mBackgroundPaint);
+        mDate.setTime(System.currentTimeMillis());
+        mOverlay.setField(OverlayTemplate.FIELD_DATETIME, mDateFormat.format(mDate));
+        mOverlay.setField(OverlayTemplate.FIELD_COORDINATES, "0123456789.,\u00b0'\" NSEW");
+        mOverlay.setField(OverlayTemplate.FIELD_LOCALITY, mUnknownLocation);
+    }
+    
+    @Override
+    public String getConfig() {
+        // Besides the template, the date depends on where (and when) we are.
+        return mTemplateSource + "\n" + Locale.getDefault() + "\n" + TimeZone.getDefault().getID();
+    }
+    
+    /**
+     * Loads the overlay template.  If there's one on the SD card, that gets
+     * used; otherwise (or if that one's broken), it's the stock one.
+     */
+    private OverlayTemplate loadTemplate() {
+        File custom = new File("/sdcard/" + mContext.getPackageName() + "/" + TEMPLATE_FILENAME);
+        if(custom.exists()) {
+            try {
+                String source = readAll(new InputStreamReader(new FileInputStream(custom), "UTF-8"));
+                OverlayTemplate template = OverlayTemplate.parse(new StringReader(source));
+                mTemplateSource = source;
+                return template;
+            } catch (IOException e) {
+                Log.w(DEBUG_TAG, "Couldn't read " + custom + ", using the stock overlay instead...");
+                e.printStackTrace();
+            }
+        }
+        
+        try {
+            mTemplateSource = readAll(new InputStreamReader(mContext.getResources().openRawResource(R.raw.overlay_default), "UTF-8"));
+            return OverlayTemplate.parse(new StringReader(mTemplateSource));
+        } catch (IOException e) {
+            // The stock one ships with the app, so this really shouldn't
+            // happen.
+            throw new RuntimeException("The stock overlay template is broken!", e);
+        }
+    }
+
+    private static String readAll(Reader reader) throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[1024];
+            int read;
+            while((read = reader.read(buffer)) > 0) sb.append(buffer, 0, read);
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
     }
 
     @Override
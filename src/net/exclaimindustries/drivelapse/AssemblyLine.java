@@ -7,14 +7,10 @@
  */
 package net.exclaimindustries.drivelapse;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.util.LinkedList;
-
 import android.app.IntentService;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.location.Location;
 import android.os.Bundle;
@@ -35,6 +31,25 @@ public class AssemblyLine extends IntentService {
     
     public static final String WORK_ORDER = "net.exclaimindustries.drivelapse.workorder";
     
+    /**
+     * Gets everything ready for frames of a given size (see the EXTRA_WIDTH
+     * and EXTRA_HEIGHT extras) before any actually show up.
+     */
+    public static final String ACTION_WARM_UP = "net.exclaimindustries.drivelapse.WARM_UP";
+    /** Lets go of everything the warm-up (and processing) set up. */
+    public static final String ACTION_RELEASE = "net.exclaimindustries.drivelapse.RELEASE";
+    public static final String EXTRA_WIDTH = "net.exclaimindustries.drivelapse.width";
+    public static final String EXTRA_HEIGHT = "net.exclaimindustries.drivelapse.height";
+    
+    /**
+     * The FrameProcessor sticks around between AssemblyLines.  An
+     * IntentService stops itself whenever it runs out of work, which, at one
+     * picture every few seconds, is after nearly every frame; without this,
+     * every frame would pay to set up the Stations all over again.  Only one
+     * AssemblyLine runs at a time, so only one thread ever uses it at once.
+     */
+    private static FrameProcessor sProcessor;
+    
     /**
      * A WorkOrder is the file and GPS location of a single picture to be worked
      * on.  Presumably, the file won't go away as we go along.  A WorkOrder can
@@ -46,9 +61,16 @@ public class AssemblyLine extends IntentService {
     public static class WorkOrder implements Parcelable {
         protected String mFileLocation;
         protected Location mGpsLocation;
+        protected Bitmap mWorkingBitmap;
         protected Canvas mWorkingCanvas;
         protected Bundle mExtraData;
-        
+
+        // When the frame's too big to decode all at once, the Bitmap's just
+        // one band of it; these say which one, and how big the whole thing is.
+        protected int mBandTop;
+        protected int mFrameWidth;
+        protected int mFrameHeight;
+
         public static final Parcelable.Creator<WorkOrder> CREATOR = new Parcelable.Creator<WorkOrder>() {
             public WorkOrder createFromParcel(Parcel in) {
                 return new WorkOrder(in);
@@ -71,7 +93,9 @@ public class AssemblyLine extends IntentService {
         
         /**
          * Gets the location of the image file this WorkOrder is working on.
-         * This is also where the processed image will be written.
+         * This is also where the processed image will be written.  The
+         * original capture gets moved out of the way first (see
+         * FrameProcessor.ORIGINALS_DIRNAME).
          * 
          * @return the image's location
          */
@@ -92,14 +116,85 @@ public class AssemblyLine extends IntentService {
         }
         
         /**
-         * Sets the canvas for future Stations to work on.  Note that, to save
-         * memory, this should ONLY be set right before the Stations kick in.
-         * Also note that the Canvas isn't parcelable.
+         * Sets the bitmap (and a canvas on it) for future Stations to work on.
+         * Note that, to save memory, this should ONLY be set right before the
+         * Stations kick in.  Also note that neither the Bitmap nor the Canvas
+         * is parcelable.
+         * 
+         * @param bitmap mutable Bitmap with the image data in it
+         */
+        void setBitmap(Bitmap bitmap) {
+            mWorkingBitmap = bitmap;
+            mWorkingCanvas = (bitmap == null ? null : new Canvas(bitmap));
+            mBandTop = 0;
+            mFrameWidth = (bitmap == null ? 0 : bitmap.getWidth());
+            mFrameHeight = (bitmap == null ? 0 : bitmap.getHeight());
+        }
+
+        /**
+         * Sets one band of a bigger frame for Stations to work on (see
+         * Station.processBand).  The Canvas is shifted up so the band's top
+         * lands where it would on the full frame, meaning anything drawn on it
+         * can use full-frame coordinates and whatever's outside the band just
+         * gets clipped off.
+         *
+         * @param band mutable Bitmap with the band's image data in it, or null
+         *             to just say how big the frame is before any bands come
+         * @param top which row of the frame the band starts on
+         * @param frameWidth the whole frame's width
+         * @param frameHeight the whole frame's height
+         */
+        void setBand(Bitmap band, int top, int frameWidth, int frameHeight) {
+            mWorkingBitmap = band;
+            mWorkingCanvas = null;
+            if(band != null) {
+                mWorkingCanvas = new Canvas(band);
+                mWorkingCanvas.translate(0, -top);
+            }
+            mBandTop = top;
+            mFrameWidth = frameWidth;
+            mFrameHeight = frameHeight;
+        }
+
+        /**
+         * Gets the width of the whole frame, which isn't necessarily the width
+         * of the Bitmap (see setBand).
+         *
+         * @return the frame's width
+         */
+        public int getFrameWidth() {
+            return mFrameWidth;
+        }
+
+        /**
+         * Gets the height of the whole frame, which isn't necessarily the
+         * height of the Bitmap (see setBand).
+         *
+         * @return the frame's height
+         */
+        public int getFrameHeight() {
+            return mFrameHeight;
+        }
+
+        /**
+         * Gets which row of the frame the Bitmap starts on.  That's zero
+         * unless the frame's being worked on a band at a time.
+         *
+         * @return the band's top row
+         */
+        public int getBandTop() {
+            return mBandTop;
+        }
+
+        /**
+         * Gets the current bitmap this WorkOrder has.  Anything drawn on the
+         * Canvas shows up here, too.  Stations that just need to read the
+         * image (to make smaller copies of it, for instance) should use this.
          * 
-         * @param canvas Canvas with the appropriate bitmap data on it
+         * @return the current Bitmap
          */
-        private void setCanvas(Canvas canvas) {
-            mWorkingCanvas = canvas; 
+        public Bitmap getBitmap() {
+            return mWorkingBitmap;
         }
         
         /**
@@ -167,7 +262,22 @@ public class AssemblyLine extends IntentService {
          * @return true on success, false if something went wrong
          */
         public abstract boolean processOrder(WorkOrder order);
-        
+
+        /**
+         * Does whatever part of this Station's work can't wait, for when the
+         * rest is being put off until later (see FrameProcessor.EXTRA_DEFER).
+         * There's no bitmap or canvas.  Whatever this works out has to be
+         * written down somewhere processOrder will find it, so the frame comes
+         * out the same later as it would have now.  By default, there's
+         * nothing that can't wait.
+         *
+         * @param order WorkOrder on which to work
+         * @return true on success, false if something went wrong
+         */
+        public boolean recordOrder(WorkOrder order) {
+            return true;
+        }
+
         /**
          * Gets the name of this Station.  Each Station in a given AssemblyLine
          * needs a unique name.
@@ -175,54 +285,165 @@ public class AssemblyLine extends IntentService {
          * @return this Station's name
          */
         public abstract String getName();
+        
+        /**
+         * Gets ready for frames of the given size, doing whatever setup would
+         * otherwise slow down the first one.  By default, that's nothing.
+         * 
+         * @param width frame width
+         * @param height frame height
+         */
+        public void warmUp(int width, int height) {
+        }
+
+        /**
+         * Gets this Station's version.  Bump this whenever a change to the
+         * code would make frames come out different, so frames done with the
+         * old code get done again (see ResultCache).
+         *
+         * @return this Station's version
+         */
+        public int getVersion() {
+            return 1;
+        }
+
+        /**
+         * Gets whatever settings this Station has that change how frames come
+         * out, as a string.  It doesn't have to be readable, just different
+         * whenever the frames would be.  By default, there aren't any.
+         *
+         * @return this Station's config
+         */
+        public String getConfig() {
+            return "";
+        }
+
+        /**
+         * Gets whatever this Station works out for one particular frame that
+         * changes how it comes out (an address, say), as a string, same as
+         * getConfig.  This gets called before processOrder, so whatever it
+         * works out has to be kept somewhere the next run will find the same
+         * thing, or the frame gets redone every time.  By default, there
+         * isn't anything.
+         *
+         * @param order WorkOrder about to be worked on
+         * @return this Station's config for that frame
+         */
+        public String getOrderConfig(WorkOrder order) {
+            return "";
+        }
+
+        /**
+         * Says whether this Station draws on the frame itself, as opposed to
+         * just reading it (to make copies, say).  Drawing Stations have to
+         * run again whenever any of them does, since they all draw on the
+         * same frame, starting from the original capture.  Stations that
+         * don't draw can run on their own, against the finished frame, so
+         * they ought to go after all the ones that do.  By default, Stations
+         * draw.
+         *
+         * @return true if this Station draws on the frame
+         */
+        public boolean drawsOnFrame() {
+            return true;
+        }
+
+        /**
+         * Says whether this Station can work on a frame a band at a time,
+         * for frames too big to decode all at once.  If it can, then instead
+         * of processOrder, it gets beginBands, then processBand for each band
+         * it needs (top to bottom), then endBands.  If any Station that has
+         * to run can't, the frame gets decoded whole like always.  By
+         * default, Stations can't.
+         *
+         * @return true if this Station can work in bands
+         */
+        public boolean canProcessBands() {
+            return false;
+        }
+
+        /**
+         * Gets ready to work on a frame a band at a time.  There's no bitmap
+         * yet, but the frame's size is there.
+         *
+         * @param order WorkOrder on which to work
+         * @return true on success, false if something went wrong (in which
+         *         case this Station gets no bands)
+         */
+        public boolean beginBands(WorkOrder order) {
+            return true;
+        }
+
+        /**
+         * Says whether this Station needs to see the given rows.  If nothing
+         * does (and nothing's drawing), that band doesn't even get decoded.
+         * By default, every row's needed.
+         *
+         * @param order WorkOrder being worked on
+         * @param top first row
+         * @param bottom one past the last row
+         * @return true if this Station wants that band
+         */
+        public boolean needsRows(WorkOrder order, int top, int bottom) {
+            return true;
+        }
+
+        /**
+         * Works on one band of a frame.  The WorkOrder's Bitmap is just that
+         * band, and its Canvas is shifted so full-frame coordinates land in
+         * the right spot (see WorkOrder.setBand).  Bands come in order, top to
+         * bottom, and the Bitmap gets reused for the next one, so hang on to
+         * whatever's needed from it.
+         *
+         * @param order WorkOrder on which to work
+         */
+        public void processBand(WorkOrder order) {
+        }
+
+        /**
+         * Wraps up a frame that was worked on a band at a time.
+         *
+         * @param order WorkOrder on which to work
+         * @return true on success, false if something went wrong
+         */
+        public boolean endBands(WorkOrder order) {
+            return true;
+        }
     }
     
     public AssemblyLine() {
         super("AssemblyLine");
     }
      
+    private synchronized static FrameProcessor getProcessor(Context context) {
+        if(sProcessor == null) {
+            Context app = context.getApplicationContext();
+            sProcessor = new FrameProcessor(app, DuplicateGate.fromPreferences(app));
+        }
+        return sProcessor;
+    }
+    
+    private synchronized static void releaseProcessor() {
+        if(sProcessor == null) return;
+        sProcessor.release();
+        sProcessor = null;
+    }
+     
     @Override
     protected void onHandleIntent(Intent intent) {
+        if(ACTION_WARM_UP.equals(intent.getAction())) {
+            getProcessor(this).warmUp(intent.getIntExtra(EXTRA_WIDTH, 0), intent.getIntExtra(EXTRA_HEIGHT, 0));
+            return;
+        } else if(ACTION_RELEASE.equals(intent.getAction())) {
+            releaseProcessor();
+            return;
+        }
+        
         // First off, grab the WorkOrder.
         Log.d(DEBUG_TAG, "Order up!");
         WorkOrder order = (WorkOrder)(intent.getParcelableExtra(WORK_ORDER));
         
-        // Make all our stations.  This is a very temporary setup; I'm certain
-        // there HAS to be a better way to do this (in fact, the whole
-        // IntentService thing may be changed significantly later).
-        LinkedList<Station> stations = new LinkedList<Station>();
-        
-        stations.add(new Annotator(this));
-        
-        // Now, let's crack that image open and get some tasty, tasty data.
-        try {
-            Bitmap origBitmap = BitmapFactory.decodeFile(order.getFileLocation());
-            Bitmap bitmap = origBitmap.copy(origBitmap.getConfig(), true);
-            origBitmap.recycle();
-            origBitmap = null;
-            order.setCanvas(new Canvas(bitmap));
-            
-            // Fire up the stations!
-            for(Station st : stations) {
-                st.processOrder(order);
-            }
-            
-            // With all the stations done working on the canvas, write it back
-            // out to SD.  Or, y'know, wherever it leads.
-            File output = new File(order.getFileLocation());
-            
-            FileOutputStream ostream = null;
-            ostream = new FileOutputStream(output);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, ostream);
-            ostream.close();
-            
-            bitmap.recycle();
-            bitmap = null;
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-
+        getProcessor(this).process(order);
         
         Log.d(DEBUG_TAG, "Order finished!");
     }
@@ -0,0 +1,430 @@
+/**
+ * BatchProcessor.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.exclaimindustries.drivelapse.AssemblyLine.WorkOrder;
+import net.exclaimindustries.drivelapse.TrackRecorder.Fix;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.media.ExifInterface;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * The BatchProcessor runs a whole finished session through the AssemblyLine's
+ * Stations at once, picking up every frame that never made it through during
+ * the drive (the app got killed with a backlog, say).  It's meant for leaving
+ * the phone on the charger overnight.
+ *
+ * Frames get handed out to one worker thread per core, each with its own
+ * FrameProcessor.  Progress shows up in a notification; tapping it cancels the
+ * run.  Since every finished frame goes in the session's processed list, a
+ * cancelled (or killed) run picks up right where it left off next time.
+ *
+ * There's no button for this yet.  To kick one off:
+ *
+ * <pre>
+ * adb shell am startservice -a net.exclaimindustries.drivelapse.BATCH_START \
+ *     -e net.exclaimindustries.drivelapse.session_dir /sdcard/.../DriveLapse-1234567890/
+ * </pre>
+ *
+ * Don't do that to a session that's still recording, though.
+ *
+ * That's also how the frames get finished if the overlay was put off during
+ * the drive (see FrameProcessor.EXTRA_DEFER).  Those frames are still sitting
+ * in the session directory just as the camera took them, and their overlays
+ * are in the AnnotationSidecar, so they go through the DuplicateGate and come
+ * out just like they would have during the drive, without looking anything up
+ * again.
+ *
+ * Add a reprocess extra (-ez net.exclaimindustries.drivelapse.reprocess true)
+ * to go through every frame again, not just the ones that haven't been done.
+ * That's for after changing something, like the overlay template.  Every
+ * frame starts over from its original capture, and anything a change didn't
+ * affect gets skipped (see ResultCache), so it's a lot quicker than the first
+ * time.  Frames processed before originals were kept can't be redone, so
+ * they're left alone, and so are frames the DuplicateGate tagged.
+ *
+ * It can also export a session's route (see SessionExporter) into the session
+ * directory, with the same session_dir extra plus a format of gpx, kml, or
+ * geojson:
+ *
+ * <pre>
+ * adb shell am startservice -a net.exclaimindustries.drivelapse.EXPORT \
+ *     -e net.exclaimindustries.drivelapse.session_dir /sdcard/.../DriveLapse-1234567890/ \
+ *     -e net.exclaimindustries.drivelapse.format gpx
+ * </pre>
+ *
+ * @author Nicholas Killewald
+ */
+public class BatchProcessor extends Service {
+    private static final String DEBUG_TAG = "BatchProcessor";
+
+    public static final String ACTION_START = "net.exclaimindustries.drivelapse.BATCH_START";
+    public static final String ACTION_CANCEL = "net.exclaimindustries.drivelapse.BATCH_CANCEL";
+    public static final String ACTION_EXPORT = "net.exclaimindustries.drivelapse.EXPORT";
+    public static final String EXTRA_SESSION_DIR = "net.exclaimindustries.drivelapse.session_dir";
+    public static final String EXTRA_FORMAT = "net.exclaimindustries.drivelapse.format";
+    public static final String EXTRA_REPROCESS = "net.exclaimindustries.drivelapse.reprocess";
+
+    private static final int NOTIFICATION_ID = 1;
+    /** How often the notification gets updated, in milliseconds. */
+    private static final long PROGRESS_INTERVAL = 1000;
+    /** How far a track fix can be from a frame's time and still count. */
+    private static final long MAX_TRACK_GAP = 30000;
+
+    /**
+     * The thread running the current batch or export, if any.  It clears this
+     * itself when it's done, so it's volatile.
+     */
+    private volatile Thread mCoordinator;
+    private volatile boolean mCancelled;
+
+    private NotificationManager mNotificationManager;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if(intent == null) return START_NOT_STICKY;
+
+        if(ACTION_CANCEL.equals(intent.getAction())) {
+            Log.i(DEBUG_TAG, "Cancelling...");
+            mCancelled = true;
+            if(mCoordinator == null) stopSelf();
+        } else if(ACTION_START.equals(intent.getAction()) || ACTION_EXPORT.equals(intent.getAction())) {
+            if(mCoordinator != null && mCoordinator.isAlive()) {
+                Log.w(DEBUG_TAG, "A batch is already running, ignoring this one...");
+                return START_NOT_STICKY;
+            }
+
+            String dirName = intent.getStringExtra(EXTRA_SESSION_DIR);
+            if(dirName == null) {
+                Log.e(DEBUG_TAG, "No session directory given!");
+                stopSelf();
+                return START_NOT_STICKY;
+            }
+
+            final File dir = new File(dirName);
+            mCancelled = false;
+
+            if(ACTION_EXPORT.equals(intent.getAction())) {
+                final int format = SessionExporter.formatFor(intent.getStringExtra(EXTRA_FORMAT));
+                if(format < 0) {
+                    Log.e(DEBUG_TAG, "Unknown export format " + intent.getStringExtra(EXTRA_FORMAT) + "!");
+                    stopSelf();
+                    return START_NOT_STICKY;
+                }
+
+                mCoordinator = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runExport(dir, format);
+                    }
+                }, "BatchProcessor");
+            } else {
+                final boolean reprocess = intent.getBooleanExtra(EXTRA_REPROCESS, false);
+                mCoordinator = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runBatch(dir, reprocess);
+                    }
+                }, "BatchProcessor");
+            }
+            mCoordinator.start();
+        }
+
+        // If we get killed, don't bother restarting; the next run will resume
+        // from the processed list anyway.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mCancelled = true;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private void runBatch(File dir, boolean reprocess) {
+        // What's left to do?  A frame that got moved to the originals but
+        // never got written back out (we got killed right in the middle) is
+        // only in there, so look in both.
+        FileFilter jpegs = new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(".jpg");
+            }
+        };
+        File originals = new File(dir, FrameProcessor.ORIGINALS_DIRNAME);
+        Set<String> names = new TreeSet<String>();
+        Set<String> kept = new HashSet<String>();
+        addNames(dir.listFiles(jpegs), names);
+        addNames(originals.listFiles(jpegs), kept);
+        names.addAll(kept);
+
+        // Anything the DuplicateGate already tagged got processed once, and
+        // that's all it's getting.
+        long[] duplicates;
+        try {
+            duplicates = DuplicateList.read(dir);
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Couldn't read the duplicate list, redoing duplicates too...");
+            e.printStackTrace();
+            duplicates = new long[0];
+        }
+
+        final List<File> todo = new ArrayList<File>();
+        Set<String> processed = FrameProcessor.readProcessed(dir);
+        for(String name : names) {
+            if(DuplicateList.contains(duplicates, ThumbnailPack.keyFor(name))) continue;
+            if(!processed.contains(name) || (reprocess && kept.contains(name))) todo.add(new File(dir, name));
+        }
+
+        Log.i(DEBUG_TAG, todo.size() + " frames left to process in " + dir);
+
+        TrackReader track = null;
+        if(TrackReader.exists(dir)) {
+            try {
+                track = new TrackReader(dir);
+            } catch (IOException e) {
+                Log.w(DEBUG_TAG, "Couldn't open the track, falling back to EXIF for locations...");
+                e.printStackTrace();
+            }
+        }
+        final TrackReader finalTrack = track;
+
+        startForeground(NOTIFICATION_ID, makeNotification(getString(R.string.batch_progress, 0, todo.size()), 0, todo.size()));
+
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger done = new AtomicInteger(0);
+        final AtomicInteger failed = new AtomicInteger(0);
+        final AtomicInteger duplicateCount = new AtomicInteger(0);
+        final AtomicLong timeSaved = new AtomicLong(0);
+
+        // One worker per core, each with its own FrameProcessor, pulling
+        // frames off the list until there aren't any left.
+        int workerCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), todo.size()));
+        Thread[] workers = new Thread[workerCount];
+        for(int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    FrameProcessor processor = new FrameProcessor(BatchProcessor.this,
+                            DuplicateGate.fromPreferences(BatchProcessor.this));
+                    try {
+                        int index;
+                        while(!mCancelled && (index = next.getAndIncrement()) < todo.size()) {
+                            WorkOrder order = makeOrder(todo.get(index), finalTrack);
+                            if(order == null || !processor.process(order)) failed.incrementAndGet();
+                            done.incrementAndGet();
+                        }
+                    } finally {
+                        duplicateCount.addAndGet(processor.getDuplicateGate().getDuplicateCount());
+                        timeSaved.addAndGet(processor.getTimeSaved());
+                        processor.release();
+                    }
+                }
+            }, "BatchProcessor-" + i);
+            workers[i].start();
+        }
+
+        // Now just keep the notification up to date until they're done.
+        try {
+            for(Thread worker : workers) {
+                while(worker.isAlive()) {
+                    worker.join(PROGRESS_INTERVAL);
+                    mNotificationManager.notify(NOTIFICATION_ID,
+                            makeNotification(getString(R.string.batch_progress, done.get(), todo.size()),
+                                    done.get(), todo.size()));
+                }
+            }
+        } catch (InterruptedException e) {
+            mCancelled = true;
+        }
+
+        if(finalTrack != null) {
+            try {
+                finalTrack.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Every frame that got redone left its old thumbnail behind in the
+        // pack.  The workers are all done, so now's the time to clear those
+        // out.  A cancelled run might still have one going, though.
+        if(!mCancelled) {
+            try {
+                int dropped = ThumbnailPack.compact(dir);
+                if(dropped > 0) Log.i(DEBUG_TAG, "Dropped " + dropped + " old thumbnails from the pack");
+            } catch (IOException e) {
+                Log.w(DEBUG_TAG, "Couldn't compact the thumbnail pack...");
+                e.printStackTrace();
+            }
+        }
+
+        // Redone frames also left their new overlays at the end of the
+        // sidecar, and the workers finished them in whatever order.  Exports
+        // want it in frame order.
+        try {
+            if(AnnotationSidecar.sort(dir)) Log.i(DEBUG_TAG, "Put the overlay sidecar back in order");
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Couldn't sort the overlay sidecar...");
+            e.printStackTrace();
+        }
+
+        String result = getString(mCancelled ? R.string.batch_cancelled : R.string.batch_done,
+                done.get() - failed.get(), failed.get());
+        Log.i(DEBUG_TAG, result);
+        if(duplicateCount.get() > 0) {
+            Log.i(DEBUG_TAG, duplicateCount.get() + " new duplicates; dropping saved about " + timeSaved.get() + "ms");
+        }
+
+        stopForeground(true);
+        mNotificationManager.notify(NOTIFICATION_ID, new Notification.Builder(this)
+                .setContentTitle(getString(R.string.batch_title))
+                .setContentText(result)
+                .setSmallIcon(R.drawable.icon)
+                .getNotification());
+
+        mCoordinator = null;
+        stopSelf();
+    }
+
+    private void runExport(File dir, int format) {
+        File output = new File(dir, dir.getName() + "." + SessionExporter.EXTENSIONS[format]);
+        SessionExporter exporter = new SessionExporter(dir, format);
+
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+            try {
+                exporter.export(out);
+            } finally {
+                out.close();
+            }
+            Log.i(DEBUG_TAG, "Exported " + exporter.getFrameCount() + " frames ("
+                    + exporter.getSkippedCount() + " skipped, " + exporter.getDuplicateCount()
+                    + " duplicates) and " + exporter.getFixCount()
+                    + " fixes to " + output);
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Couldn't export " + dir + "!");
+            e.printStackTrace();
+        }
+
+        mCoordinator = null;
+        stopSelf();
+    }
+
+    private Notification makeNotification(String text, int progress, int max) {
+        Intent cancel = new Intent(this, BatchProcessor.class);
+        cancel.setAction(ACTION_CANCEL);
+
+        return new Notification.Builder(this)
+                .setContentTitle(getString(R.string.batch_title))
+                .setContentText(text)
+                .setSmallIcon(R.drawable.icon)
+                .setProgress(max, progress, false)
+                .setOngoing(true)
+                .setContentIntent(PendingIntent.getService(this, 0, cancel, 0))
+                .getNotification();
+    }
+
+    /**
+     * Makes a WorkOrder for a frame, using the track to find out where it was
+     * taken.  If there's no track (or nothing in it close enough), the EXIF
+     * data the camera wrote gets used instead.
+     *
+     * @param frame the frame's file
+     * @param track the session's track, or null if there isn't one
+     * @return a WorkOrder, or null if there's no way to tell where the frame
+     *         was taken
+     */
+    private WorkOrder makeOrder(File frame, TrackReader track) {
+        long time = ThumbnailPack.keyFor(frame.getPath());
+        if(time < 0) return null;
+
+        Location loc = new Location("batch");
+        loc.setTime(time);
+
+        if(track != null) {
+            Fix fix = new Fix();
+            boolean found;
+            try {
+                // The TrackReader's buffers aren't shared-safe.
+                synchronized(track) {
+                    found = track.findNearest(time, fix);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                found = false;
+            }
+
+            if(found && Math.abs(fix.getTime() - time) <= MAX_TRACK_GAP) {
+                loc.setLatitude(fix.getLatitude());
+                loc.setLongitude(fix.getLongitude());
+                if(fix.hasAltitude()) loc.setAltitude(fix.getAltitude());
+                if(fix.hasSpeed()) loc.setSpeed(fix.getSpeed());
+                if(fix.hasBearing()) loc.setBearing(fix.getBearing());
+                if(fix.hasAccuracy()) loc.setAccuracy(fix.getAccuracy());
+                return new WorkOrder(frame.getPath(), loc);
+            }
+        }
+
+        try {
+            // The processed frame doesn't have any EXIF left, so ask the
+            // original if there is one.
+            File original = new File(new File(frame.getParentFile(), FrameProcessor.ORIGINALS_DIRNAME), frame.getName());
+            float[] latLong = new float[2];
+            if(new ExifInterface((original.exists() ? original : frame).getPath()).getLatLong(latLong)) {
+                loc.setLatitude(latLong[0]);
+                loc.setLongitude(latLong[1]);
+                return new WorkOrder(frame.getPath(), loc);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        Log.w(DEBUG_TAG, "No idea where " + frame + " was taken, skipping it...");
+        return null;
+    }
+
+    private static void addNames(File[] files, Set<String> names) {
+        if(files == null) return;
+        for(File f : files) names.add(f.getName());
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * CaptureQueue.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.util.LinkedList;
+
+/**
+ * The CaptureQueue is what stands between the triggers and the camera: one
+ * picture in flight at a time, and a short line of triggers waiting behind
+ * it.  If the line's full when another trigger comes in, the oldest one in
+ * line gets thrown out (coalesced), as a picture of where we were a few
+ * seconds ago isn't much use by the time it'd get taken.
+ *
+ * It doesn't know anything about cameras, so it doesn't touch Android, which
+ * means the TripSimulator in the tools can put its fake camera behind the
+ * very same queue as the CaptureScheduler.  It isn't synchronized; whoever
+ * owns it has to lock around it.
+ *
+ * @author Nicholas Killewald
+ */
+public class CaptureQueue<T> {
+    /** How many triggers can wait for the camera at once. */
+    public static final int MAX_PENDING = 2;
+
+    private T mInFlight;
+    private LinkedList<T> mPending = new LinkedList<T>();
+
+    /**
+     * Puts a trigger at the end of the line.  This doesn't start it; call
+     * next to see if the camera can take it.
+     *
+     * @param item the trigger
+     * @return the trigger that got thrown out to make room, or null if there
+     *         was room
+     */
+    public T add(T item) {
+        T old = null;
+        if(mPending.size() >= MAX_PENDING) old = mPending.removeFirst();
+        mPending.addLast(item);
+        return old;
+    }
+
+    /**
+     * If nothing's in flight, takes the next trigger out of line and marks it
+     * as in flight.  Whoever gets it back has to start it, and has to call
+     * finish when it's done (or couldn't be started).
+     *
+     * @return the trigger to start now, or null if the camera's busy or
+     *         there's nothing waiting
+     */
+    public T next() {
+        if(mInFlight != null || mPending.isEmpty()) return null;
+        mInFlight = mPending.removeFirst();
+        return mInFlight;
+    }
+
+    /**
+     * Marks a trigger as done, either because its picture came back or
+     * because it couldn't be taken.
+     *
+     * @param item the trigger
+     * @return false if that wasn't the one in flight (say, the queue got
+     *         cleared since), in which case nothing changes
+     */
+    public boolean finish(T item) {
+        if(item == null || item != mInFlight) return false;
+        mInFlight = null;
+        return true;
+    }
+
+    /**
+     * Gets whether a picture's in flight.
+     *
+     * @return true if one is
+     */
+    public boolean isBusy() {
+        return mInFlight != null;
+    }
+
+    /**
+     * Gets how many triggers are waiting in line, not counting the one in
+     * flight.
+     *
+     * @return the count
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Throws out everything, the one in flight included.
+     */
+    public void clear() {
+        mPending.clear();
+        mInFlight = null;
+    }
+}
@@ -0,0 +1,450 @@
+/**
+ * CaptureScheduler.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import android.hardware.Camera;
+import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+/**
+ * The CaptureScheduler owns the Camera and is the only thing that ever tells
+ * it to take a picture.  The Camera can only take one picture at a time, and
+ * calling takePicture while one's already going either throws or just gets
+ * ignored, depending on the phone.  So, triggers that come in while a picture
+ * is in flight get queued up and fired off as soon as the camera's ready
+ * again.
+ *
+ * The queue's short on purpose (see CaptureQueue).  If triggers pile up
+ * faster than the camera can keep up, the oldest waiting one gets thrown out
+ * in favor of the newer one (that is, they get coalesced), as a picture of
+ * where we were a few seconds ago isn't much use by the time it'd get taken.
+ *
+ * Every picture gets tagged with the Location of the trigger that asked for
+ * it, not whatever fix happens to be around when the shutter finally goes.
+ *
+ * The camera gets opened and configured on its own thread, so the UI doesn't
+ * sit there waiting on it at startup.  Triggers still come in from the UI
+ * thread and pictures come back on the camera thread, so everything touching
+ * the camera is synchronized.
+ *
+ * @author Nicholas Killewald
+ */
+public class CaptureScheduler {
+    private static final String DEBUG_TAG = "CaptureScheduler";
+
+    private Camera mCamera;
+    private PictureTaker mPictureTaker;
+
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+    /** Whether the camera should be open (that is, open() was called last). */
+    private boolean mWantOpen;
+    private long mOpenRequestTime;
+    private long mOpenTime = -1;
+    private OnReadyListener mListener;
+
+    private int mPictureWidth;
+    private int mPictureHeight;
+
+    /** The capture the camera's working on right now and the ones waiting. */
+    private CaptureQueue<Capture> mQueue = new CaptureQueue<Capture>();
+
+    // Stats!
+    private int mTriggerCount;
+    private int mCaptureCount;
+    private int mCoalescedCount;
+    private int mNoCameraCount;
+    private int mFailedCount;
+    private int mShutterCount;
+    private long mTotalLatency;
+    private long mMaxLatency;
+    private long mFirstShutterTime = -1;
+
+    /**
+     * Gets told when the camera's open and previewing, or when it couldn't be
+     * opened at all.  Both get called on the camera thread.
+     */
+    public interface OnReadyListener {
+        /**
+         * The camera's ready to take pictures.
+         *
+         * @param openTime how long it took from open() to a running preview,
+         *                 in milliseconds
+         */
+        public void onCameraReady(long openTime);
+
+        /**
+         * The camera couldn't be opened.
+         */
+        public void onCameraFailed();
+    }
+
+    /**
+     * Makes a CaptureScheduler.  It doesn't have a camera until open() is
+     * called.
+     *
+     * @param pictureTaker PictureTaker to hand the pictures off to
+     * @param width width of the pictures to take
+     * @param height height of the pictures to take
+     */
+    public CaptureScheduler(PictureTaker pictureTaker, int width, int height) {
+        mPictureTaker = pictureTaker;
+        mPictureWidth = width;
+        mPictureHeight = height;
+
+        // Opening the camera can take the better part of a second on some
+        // phones, and configuring it isn't free either, so none of that
+        // happens on the UI thread.  The camera delivers its callbacks to
+        // whatever thread opened it, so the pictures get written out here,
+        // too.
+        mCameraThread = new HandlerThread("CameraThread");
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+    }
+
+    /**
+     * Sets who gets told when the camera's ready.
+     *
+     * @param listener the OnReadyListener, or null for nobody
+     */
+    public synchronized void setOnReadyListener(OnReadyListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts opening the camera on the camera thread and points its preview
+     * at the given surface.  This returns right away; triggers that come in
+     * before the camera's open get dropped.
+     *
+     * @param holder SurfaceHolder for the preview
+     */
+    public synchronized void open(final SurfaceHolder holder) {
+        mWantOpen = true;
+        mOpenRequestTime = SystemClock.elapsedRealtime();
+
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                openCamera(holder);
+            }
+        });
+    }
+
+    private void openCamera(SurfaceHolder holder) {
+        synchronized(this) {
+            if(!mWantOpen || mCamera != null) return;
+        }
+
+        // This is the slow part, so it's done without holding the lock.
+        Camera camera = null;
+        try {
+            camera = Camera.open();
+            camera.setPreviewDisplay(holder);
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "Couldn't open the camera!");
+            e.printStackTrace();
+            if(camera != null) camera.release();
+            OnReadyListener listener;
+            synchronized(this) {
+                listener = mListener;
+            }
+            if(listener != null) listener.onCameraFailed();
+            return;
+        }
+
+        synchronized(this) {
+            if(!mWantOpen) {
+                // Closed while we were opening.  Never mind.
+                camera.release();
+                return;
+            }
+            mCamera = camera;
+            Log.d(DEBUG_TAG, "Camera opened in " + (SystemClock.elapsedRealtime() - mOpenRequestTime) + "ms");
+        }
+    }
+
+    /**
+     * Configures the camera and starts up the preview, once it's open.  The
+     * camera won't take pictures without one.
+     */
+    public void startPreview() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnReadyListener listener;
+                long openTime;
+
+                synchronized(CaptureScheduler.this) {
+                    if(mCamera == null) return;
+
+                    // It appears that not setting the preview size seems to
+                    // just make it take up the whole screen.  Which is good,
+                    // as that's what we need to do, and I've seen crashes on
+                    // some phones (i.e. the Droid) if I manually feed in a
+                    // size it doesn't like (i.e. no title but with
+                    // notifications still on).
+                    Camera.Parameters params = mCamera.getParameters();
+                    params.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+                    params.setPictureSize(mPictureWidth, mPictureHeight);
+                    mCamera.setParameters(params);
+                    mCamera.startPreview();
+
+                    openTime = SystemClock.elapsedRealtime() - mOpenRequestTime;
+                    mOpenTime = openTime;
+                    listener = mListener;
+                }
+
+                if(listener != null) listener.onCameraReady(openTime);
+            }
+        });
+    }
+
+    /**
+     * Lets go of the camera.  Anything still waiting for it gets dropped, and
+     * if a picture's in flight, it's lost.  This happens right away, not on
+     * the camera thread, as the preview surface is about to go away.
+     */
+    public synchronized void close() {
+        mWantOpen = false;
+        if(mCamera == null) return;
+
+        if(mQueue.isBusy()) mFailedCount++;
+        mNoCameraCount += mQueue.getPendingCount();
+        mQueue.clear();
+
+        mCamera.stopPreview();
+        mCamera.release();
+        mCamera = null;
+    }
+
+    /**
+     * Closes the camera and stops the camera thread for good.  The
+     * CaptureScheduler can't be used after this.
+     */
+    public void shutdown() {
+        close();
+        mCameraThread.quit();
+    }
+
+    /**
+     * Gets how long the last open took, from open() to a running preview.
+     *
+     * @return the open time, in milliseconds, or -1 if the camera's never
+     *         gotten that far
+     */
+    public synchronized long getOpenTime() {
+        return mOpenTime;
+    }
+
+    /**
+     * Gets when the first picture since the stats were reset was taken, for
+     * working out time-to-first-frame.
+     *
+     * @return the first shutter time, per SystemClock.elapsedRealtime, or -1
+     *         if nothing's been taken yet
+     */
+    public synchronized long getFirstShutterTime() {
+        return mFirstShutterTime;
+    }
+
+    /**
+     * Asks for a picture at the given Location.  If the camera's free, it
+     * happens right away; otherwise, it waits its turn.
+     *
+     * @param loc where the trigger happened
+     * @param distance how far along the trip the trigger happened, in meters
+     */
+    public synchronized void trigger(Location loc, double distance) {
+        mTriggerCount++;
+
+        if(mCamera == null) {
+            Log.w(DEBUG_TAG, "No camera, dropping the picture at " + loc.getTime());
+            mNoCameraCount++;
+            return;
+        }
+
+        Capture old = mQueue.add(new Capture(loc, distance, SystemClock.elapsedRealtime()));
+        if(old != null) {
+            Log.w(DEBUG_TAG, "Camera's backed up, dropping the picture at " + old.mLocation.getTime());
+            mCoalescedCount++;
+        }
+
+        // If the camera's free, that's this one.
+        fireNext();
+    }
+
+    /**
+     * Gets whether the camera's in the middle of a picture.
+     *
+     * @return true if a picture's in flight
+     */
+    public synchronized boolean isBusy() {
+        return mQueue.isBusy();
+    }
+
+    private void fireNext() {
+        Capture capture;
+        while((capture = mQueue.next()) != null) {
+            if(fire(capture)) return;
+        }
+    }
+
+    private boolean fire(Capture capture) {
+        Location loc = capture.mLocation;
+        try {
+            Camera.Parameters params = mCamera.getParameters();
+            params.setGpsLatitude(loc.getLatitude());
+            params.setGpsLongitude(loc.getLongitude());
+            params.setGpsTimestamp(loc.getTime());
+            params.setGpsAltitude(loc.getAltitude());
+            mCamera.setParameters(params);
+
+            mCamera.takePicture(capture, null, capture);
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(DEBUG_TAG, "Camera wouldn't take the picture at " + loc.getTime() + "!");
+            e.printStackTrace();
+            mQueue.finish(capture);
+            mFailedCount++;
+            return false;
+        }
+    }
+
+    private synchronized void onShutter(Capture capture) {
+        long now = SystemClock.elapsedRealtime();
+        long latency = now - capture.mTriggerTime;
+        if(mShutterCount == 0) mFirstShutterTime = now;
+        mShutterCount++;
+        mTotalLatency += latency;
+        if(latency > mMaxLatency) mMaxLatency = latency;
+    }
+
+    private void onPictureTaken(Capture capture, byte[] data, Camera camera) {
+        synchronized(this) {
+            // If the camera got closed while this was in flight, it was
+            // already counted as lost, and the camera it came from is gone.
+            if(!mQueue.finish(capture)) {
+                Log.w(DEBUG_TAG, "Picture at " + capture.mLocation.getTime() + " came back after the camera closed, ignoring it...");
+                return;
+            }
+
+            mCaptureCount++;
+
+            // Get the camera going again before anything else, so the next
+            // picture can be on its way while this one's being written.  Its
+            // callbacks come back on this thread, so they'll wait their turn.
+            mCamera.startPreview();
+            fireNext();
+        }
+
+        // Writing the picture to SD takes a while, and the UI thread needs
+        // the lock for triggers and closing, so this happens outside it.
+        mPictureTaker.getPictureHandle(capture.mLocation, capture.mDistance).save(data);
+    }
+
+    /**
+     * Gets how many pictures have been asked for.
+     *
+     * @return the count
+     */
+    public synchronized int getTriggerCount() {
+        return mTriggerCount;
+    }
+
+    /**
+     * Gets how many pictures have actually been taken.
+     *
+     * @return the count
+     */
+    public synchronized int getCaptureCount() {
+        return mCaptureCount;
+    }
+
+    /**
+     * Gets how many triggers got thrown out for newer ones while waiting for
+     * the camera.
+     *
+     * @return the count
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Gets how many triggers got dropped for any reason: coalesced, no camera,
+     * or the camera failing.
+     *
+     * @return the count
+     */
+    public synchronized int getDroppedCount() {
+        return mCoalescedCount + mNoCameraCount + mFailedCount;
+    }
+
+    /**
+     * Gets the average time from a trigger to the shutter going off.
+     *
+     * @return average latency, in milliseconds, or 0 if nothing's been taken
+     */
+    public synchronized long getAverageLatency() {
+        if(mShutterCount == 0) return 0;
+        return mTotalLatency / mShutterCount;
+    }
+
+    /**
+     * Gets the longest time from a trigger to the shutter going off.
+     *
+     * @return maximum latency, in milliseconds
+     */
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /**
+     * Resets the stats, for a new session.
+     */
+    public synchronized void resetStats() {
+        mTriggerCount = 0;
+        mCaptureCount = 0;
+        mCoalescedCount = 0;
+        mNoCameraCount = 0;
+        mFailedCount = 0;
+        mShutterCount = 0;
+        mTotalLatency = 0;
+        mMaxLatency = 0;
+        mFirstShutterTime = -1;
+    }
+
+    /**
+     * A Capture is one trigger on its way through the camera.
+     */
+    private class Capture implements Camera.ShutterCallback, Camera.PictureCallback {
+        private Location mLocation;
+        private double mDistance;
+        private long mTriggerTime;
+
+        private Capture(Location loc, double distance, long triggerTime) {
+            mLocation = loc;
+            mDistance = distance;
+            mTriggerTime = triggerTime;
+        }
+
+        @Override
+        public void onShutter() {
+            CaptureScheduler.this.onShutter(this);
+        }
+
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            CaptureScheduler.this.onPictureTaken(this, data, camera);
+        }
+    }
+}
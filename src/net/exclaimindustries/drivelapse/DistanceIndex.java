@@ -0,0 +1,315 @@
+/**
+ * DistanceIndex.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The DistanceIndex is how to find "the frame at kilometer 42.7" without
+ * listing the session directory and reading every frame.  It's one fixed-size
+ * record per processed frame: how far along the trip the frame was taken
+ * (from the Odometer), when it was taken, and the frame's key (see
+ * ThumbnailPack.keyFor), as big-endian double, long, long.
+ *
+ * Records are kept in time order.  Since the Odometer only ever counts up,
+ * that makes them in distance order too, so a Reader can binary-search on
+ * either one straight out of the mapped file, no matter how long the trip is.
+ *
+ * @author Nicholas Killewald
+ */
+public class DistanceIndex {
+    public static final String FILENAME = "distance.idx";
+
+    /**
+     * WorkOrder extra data key for how far along the trip (in meters) a frame
+     * was taken.  Frames without it don't get indexed.
+     */
+    public static final String EXTRA_DISTANCE = "net.exclaimindustries.drivelapse.distance";
+
+    static final int RECORD_SIZE = 8 + 8 + 8;
+
+    /**
+     * How many records an out-of-order frame can go in front of.  Anything
+     * further back than that gets turned away, so adding a frame never has to
+     * move more than this many records (six kilobytes or so), however long the
+     * index gets.
+     */
+    public static final int MAX_SHIFT = 256;
+
+    /**
+     * Adds a frame to the index in the given directory, making the index if it
+     * isn't there yet.  Frames usually get finished in order, so this is
+     * almost always a plain append; if one shows up out of order (a batch run
+     * with a few threads going, say), the records after it get shifted down to
+     * make room, as long as there's no more than MAX_SHIFT of them.  If the
+     * frame's already in there, its record gets replaced where it is.  Either
+     * way, finding its spot is a binary search, not a walk through the file.
+     *
+     * @param dir session directory
+     * @param distance distance along the trip, in meters
+     * @param time when the frame was taken
+     * @param key the frame's key
+     * @throws IOException the index couldn't be written, or the frame's more
+     *                     than MAX_SHIFT records out of order
+     */
+    public static void append(File dir, double distance, long time, long key) throws IOException {
+        synchronized(DistanceIndex.class) {
+            RandomAccessFile index = new RandomAccessFile(new File(dir, FILENAME), "rw");
+
+            try {
+                // If a previous write got cut off halfway through a record,
+                // write over the partial one.
+                long count = index.length() / RECORD_SIZE;
+
+                // Find the first record taken after this one.  That's where
+                // this one goes.
+                long low = 0;
+                long high = count;
+                while(low < high) {
+                    long mid = (low + high) >>> 1;
+                    index.seek((mid * RECORD_SIZE) + 8);
+                    if(index.readLong() <= time) low = mid + 1;
+                    else high = mid;
+                }
+                long pos = low;
+
+                // If it's already in there, it's right before that, with the
+                // same time (PictureTaker names frames after their time, so a
+                // frame's key doesn't change and neither does its time).
+                boolean replace = false;
+                for(long prev = pos - 1; prev >= 0; prev--) {
+                    index.seek((prev * RECORD_SIZE) + 8);
+                    long prevTime = index.readLong();
+                    long prevKey = index.readLong();
+                    if(prevTime != time) break;
+                    if(prevKey == key) {
+                        pos = prev;
+                        replace = true;
+                        break;
+                    }
+                }
+
+                if(!replace && pos < count) {
+                    if(count - pos > MAX_SHIFT) {
+                        throw new IOException("Frame " + key + " is " + (count - pos)
+                                + " frames out of order, too far back to index");
+                    }
+
+                    byte[] tail = new byte[(int)((count - pos) * RECORD_SIZE)];
+                    index.seek(pos * RECORD_SIZE);
+                    index.readFully(tail);
+                    index.seek((pos + 1) * RECORD_SIZE);
+                    index.write(tail);
+                }
+
+                index.seek(pos * RECORD_SIZE);
+                index.writeDouble(distance);
+                index.writeLong(time);
+                index.writeLong(key);
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the distance of the last frame in the index, so a resumed session
+     * can keep counting from there.
+     *
+     * @param dir session directory
+     * @return the last distance, or 0 if there's no index (or it's empty)
+     */
+    public static double getLastDistance(File dir) {
+        File file = new File(dir, FILENAME);
+        if(!file.exists()) return 0;
+
+        try {
+            RandomAccessFile index = new RandomAccessFile(file, "r");
+            try {
+                long count = index.length() / RECORD_SIZE;
+                if(count == 0) return 0;
+                index.seek((count - 1) * RECORD_SIZE);
+                return index.readDouble();
+            } finally {
+                index.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Gets called once per frame during a range read.
+     */
+    public interface Callback {
+        /**
+         * Here's a frame.
+         *
+         * @param position the frame's position in the index
+         * @param distance distance along the trip, in meters
+         * @param time when the frame was taken
+         * @param key the frame's key
+         * @return true to keep going, false to stop reading
+         */
+        public boolean onFrame(int position, double distance, long time, long key);
+    }
+
+    /**
+     * A Reader maps an index and answers questions about it.  It only sees
+     * what was in the index when it was made; make a new one to see anything
+     * added since.
+     */
+    public static class Reader {
+        private ByteBuffer mIndex;
+        private int mCount;
+
+        /**
+         * Maps the index in the given directory.
+         *
+         * @param dir session directory
+         * @throws IOException the index couldn't be read
+         */
+        public Reader(File dir) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(new File(dir, FILENAME), "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                mIndex = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+            mCount = mIndex.capacity() / RECORD_SIZE;
+        }
+
+        /**
+         * Gets how many frames there are.
+         *
+         * @return the count
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Gets how far along the trip a frame was taken.
+         *
+         * @param position which frame
+         * @return its distance, in meters
+         */
+        public double getDistance(int position) {
+            return mIndex.getDouble(position * RECORD_SIZE);
+        }
+
+        /**
+         * Gets when a frame was taken.
+         *
+         * @param position which frame
+         * @return its time
+         */
+        public long getTime(int position) {
+            return mIndex.getLong((position * RECORD_SIZE) + 8);
+        }
+
+        /**
+         * Gets a frame's key.  The frame itself is the key plus ".jpg" in the
+         * session directory.
+         *
+         * @param position which frame
+         * @return its key
+         */
+        public long getKey(int position) {
+            return mIndex.getLong((position * RECORD_SIZE) + 16);
+        }
+
+        /**
+         * Finds the frame taken closest to the given distance.
+         *
+         * @param distance distance along the trip, in meters
+         * @return the frame's position, or -1 if the index is empty
+         */
+        public int findByDistance(double distance) {
+            if(mCount == 0) return -1;
+
+            int pos = firstAtDistance(distance);
+            if(pos == mCount) return mCount - 1;
+            if(pos > 0 && distance - getDistance(pos - 1) < getDistance(pos) - distance) return pos - 1;
+            return pos;
+        }
+
+        /**
+         * Finds the frame taken closest to the given time.
+         *
+         * @param time time of interest
+         * @return the frame's position, or -1 if the index is empty
+         */
+        public int findByTime(long time) {
+            if(mCount == 0) return -1;
+
+            int pos = firstAtTime(time);
+            if(pos == mCount) return mCount - 1;
+            if(pos > 0 && time - getTime(pos - 1) < getTime(pos) - time) return pos - 1;
+            return pos;
+        }
+
+        /**
+         * Reads every frame between the two distances, inclusive.
+         *
+         * @param start starting distance, in meters
+         * @param end ending distance, in meters
+         * @param callback where the frames go
+         */
+        public void readDistance(double start, double end, Callback callback) {
+            for(int pos = firstAtDistance(start); pos < mCount; pos++) {
+                double distance = getDistance(pos);
+                if(distance > end) return;
+                if(!callback.onFrame(pos, distance, getTime(pos), getKey(pos))) return;
+            }
+        }
+
+        /**
+         * Reads every frame between the two times, inclusive.
+         *
+         * @param start earliest time
+         * @param end latest time
+         * @param callback where the frames go
+         */
+        public void readTime(long start, long end, Callback callback) {
+            for(int pos = firstAtTime(start); pos < mCount; pos++) {
+                long time = getTime(pos);
+                if(time > end) return;
+                if(!callback.onFrame(pos, getDistance(pos), time, getKey(pos))) return;
+            }
+        }
+
+        private int firstAtDistance(double distance) {
+            int low = 0;
+            int high = mCount;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(getDistance(mid) < distance) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        private int firstAtTime(long time) {
+            int low = 0;
+            int high = mCount;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(getTime(mid) < time) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+    }
+}
@@ -1,14 +1,24 @@
 package net.exclaimindustries.drivelapse;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Activity;
 import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.PowerManager.WakeLock;
-//import android.util.Log;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.SubMenu;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
@@ -17,7 +27,6 @@ import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.ScrollView;
 import android.widget.TextView;
-import android.hardware.Camera;
 
 public class DriveLapse extends Activity implements LocationListener, SurfaceHolder.Callback {
     private static final String DEBUG_TAG = "DriveLapse";
@@ -25,6 +34,40 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
     private static final String SAVE_STATE = "State";
     private static final String SAVE_ACTIVE_DATE = "ActiveDate";
     
+    /** Distance between pictures, in meters.  400 feet or so. */
+    static final float TRIGGER_DISTANCE = 100;
+    
+    /**
+     * Preference for whether to put off drawing the overlay (and everything
+     * else that needs the frame decoded) until a batch run, instead of doing
+     * it during the drive.  The address still gets looked up during the drive.
+     * It's toggled from the menu.
+     */
+    private static final String PREF_DEFER_OVERLAY = "DeferOverlay";
+    
+    private static final int MENU_DEFER_OVERLAY = 1;
+    
+    // The DuplicateGate settings are radio groups in submenus.  The item ids
+    // are the base plus the index into the arrays below.
+    private static final int GROUP_DUPLICATE_MODE = 1;
+    private static final int GROUP_DUPLICATE_THRESHOLD = 2;
+    private static final int MENU_DUPLICATE_MODE = 100;
+    private static final int MENU_DUPLICATE_THRESHOLD = 200;
+    
+    private static final int[] DUPLICATE_MODES = {
+        DuplicateGate.MODE_OFF, DuplicateGate.MODE_TAG, DuplicateGate.MODE_DROP };
+    private static final int[] DUPLICATE_MODE_NAMES = {
+        R.string.menu_duplicates_off, R.string.menu_duplicates_tag, R.string.menu_duplicates_drop };
+    private static final int[] DUPLICATE_THRESHOLDS = {
+        3, DuplicateGate.DEFAULT_THRESHOLD, 12 };
+    private static final int[] DUPLICATE_THRESHOLD_NAMES = {
+        R.string.menu_duplicate_threshold_strict, R.string.menu_duplicate_threshold_normal,
+        R.string.menu_duplicate_threshold_loose };
+    
+    // TODO: The picture size should be set by an option!
+    private static final int PICTURE_WIDTH = 1024;
+    private static final int PICTURE_HEIGHT = 768;
+    
     /** The recording is stopped entirely.  Display the Go button. */
     private static final int STATE_STOP = 0;
     /** We're recording!  Display the Pause button. */
@@ -45,22 +88,43 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
     private int mCount;
     
     private Location mLastLoc;
+    private double mLastLocDistance;
     
-    private WakeLock mWakeLock;
+    private Odometer mOdometer = new Odometer(TRIGGER_DISTANCE);
+    /**
+     * Distance covered before the Odometer was last reset, for when a session
+     * gets picked back up after the app was killed.
+     */
+    private double mDistanceOffset;
+    private SamplingScheduler mScheduler = new SamplingScheduler();
     
-    private Camera mCamera;
+    private WakeLock mWakeLock;
     
     private PictureTaker mPictureTaker;
+    private CaptureScheduler mCapture;
+    
+    private GeocodePrefetcher mPrefetcher;
+    
+    private TrackRecorder mTrackRecorder;
+    private TrackRecorder.Fix mTrackFix = new TrackRecorder.Fix();
     
     private ScrollView mScroller;
     private SurfaceView mSurface;
     
+    private SessionLog mSessionLog;
+    
     private long mActiveDate = -1;
     
+    // For working out how long startup takes.
+    private long mCreateTime;
+    private long mGoTime = -1;
+    private long mFirstFixTime = -1;
+    
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.elapsedRealtime();
         
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         setContentView(R.layout.main);
@@ -71,6 +135,7 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
         mTextView = (TextView)findViewById(R.id.textstuff);
         mScroller = (ScrollView)findViewById(R.id.debugscroller);
         mSurface = (SurfaceView)findViewById(R.id.camerasurface);
+        mSessionLog = new SessionLog(mTextView, mScroller);
         
         mLastState = STATE_STOP;
         
@@ -79,7 +144,30 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
         holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
 
         mPictureTaker = new PictureTaker(getPackageName(), this);
+        mPictureTaker.setDeferOverlay(PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(PREF_DEFER_OVERLAY, false));
+        mCapture = new CaptureScheduler(mPictureTaker, PICTURE_WIDTH, PICTURE_HEIGHT);
+        mCapture.setOnReadyListener(new CaptureScheduler.OnReadyListener() {
+            @Override
+            public void onCameraReady(long openTime) {
+                writeLog("Camera ready in " + openTime + "ms ("
+                        + (SystemClock.elapsedRealtime() - mCreateTime) + "ms after launch)\n");
+            }
+            
+            @Override
+            public void onCameraFailed() {
+                writeLog("*** Couldn't open the camera! ***\n");
+            }
+        });
+        
+        // While the camera's opening and the user's still lining things up,
+        // get the AssemblyLine ready for the first picture.
+        warmUpPipeline();
+        mPrefetcher = Geocoders.getPrefetcher(this);
         
+        // The screen has to stay on for the whole recording, as the camera
+        // won't take pictures without a live preview surface.  What we CAN do
+        // is keep the GPS from running flat out; see SamplingScheduler.
         PowerManager pl = (PowerManager)getSystemService(Context.POWER_SERVICE);
         mWakeLock = pl.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK
                 | PowerManager.ACQUIRE_CAUSES_WAKEUP
@@ -89,7 +177,6 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
 
             @Override
             public void onClick(View v) {
-                // First test: Every 100 meters.  So... um... 400 feet or so?
                 String logString;
                 
                 // If we were stopped, make a new AssemblyLine.
@@ -98,14 +185,25 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
                     mActiveDate = System.currentTimeMillis();
                     mPictureTaker.restart(mActiveDate);
                     mCount = 0;
+                    mOdometer.reset();
+                    mDistanceOffset = 0;
+                    mScheduler.reset();
+                    mCapture.resetStats();
+                    warmUpPipeline();
+                    mLastLoc = null;
                     logString = "\n\n--- START! ---\n";
                 } else {
+                    mOdometer.breakPath();
                     logString = "--- RESUME! ---\n";
                 }
                 
                 switchButtonStates(STATE_RECORD);
+                mGoTime = SystemClock.elapsedRealtime();
+                mFirstFixTime = -1;
 
-                mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 100, DriveLapse.this);
+                openTrack();
+                mScheduler.start(SystemClock.elapsedRealtime());
+                requestUpdates();
                 if(!mWakeLock.isHeld()) mWakeLock.acquire();
                 writeLog(logString);
             }
@@ -120,7 +218,30 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
                 mActiveDate = -1;
                 mLocationManager.removeUpdates(DriveLapse.this);
                 if(mWakeLock.isHeld()) mWakeLock.release();
-                writeLog("--- END ---\nTotal clicks: " + mCount + "\n");
+                long now = SystemClock.elapsedRealtime();
+                mScheduler.stop(now);
+                long fixes = closeTrack();
+                
+                // The pipeline won't be needed again until the next GO.
+                releasePipeline();
+                
+                writeLog("--- END ---\nTotal clicks: " + mCount + "\n"
+                        + "Pictures taken: " + mCapture.getCaptureCount() + " ("
+                        + mCapture.getDroppedCount() + " dropped, "
+                        + mCapture.getCoalescedCount() + " of those coalesced)\n"
+                        + "Shutter latency: " + mCapture.getAverageLatency() + "ms average, "
+                        + mCapture.getMaxLatency() + "ms max\n"
+                        + "Last GO: first fix after " + sinceGo(mFirstFixTime) + ", first picture after "
+                        + sinceGo(mCapture.getFirstShutterTime()) + "\n"
+                        + "Track fixes recorded: " + fixes + "\n"
+                        + "Distance: " + Math.round(mOdometer.getTotalDistance()) + "m ("
+                        + mOdometer.getStationaryCount() + " stationary fixes, "
+                        + mOdometer.getRejectedCount() + " rejected)\n"
+                        + "GPS: " + Math.round(mScheduler.getFixesPerHour(now)) + " fixes/hour, "
+                        + mScheduler.getFixesSaved(now) + " fixes and ~"
+                        + mScheduler.getCpuTimeSaved(now) + "ms CPU saved\n"
+                        + "Geocode cache: " + mPrefetcher.getHitCount() + " hits, "
+                        + mPrefetcher.getMissCount() + " misses\n");
             }
             
         });
@@ -134,6 +255,8 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
                 mLocationManager.removeUpdates(DriveLapse.this);
                 // We don't add in the end order yet.  We just pause updates.
                 if(mWakeLock.isHeld()) mWakeLock.release();
+                mScheduler.stop(SystemClock.elapsedRealtime());
+                closeTrack();
                 writeLog("--- PAUSED ---\n");
             }
             
@@ -154,6 +277,9 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
             mActiveDate = savedInstanceState.getLong(SAVE_ACTIVE_DATE);
             if(mActiveDate >= 0) {
                 mPictureTaker.restart(mActiveDate);
+                // The Odometer starts over from zero, but the distance index
+                // shouldn't.
+                mDistanceOffset = DistanceIndex.getLastDistance(new File(mPictureTaker.getDirName()));
             }
             
             // The state determines if we should be looking for locations right
@@ -163,7 +289,9 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
             if(state == STATE_RECORD) {
                 // We're recording!  LocationManager, back to work!  We need to
                 // get started immediately!
-                mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 100, this);
+                openTrack();
+                mScheduler.start(SystemClock.elapsedRealtime());
+                requestUpdates();
                 if(!mWakeLock.isHeld()) mWakeLock.acquire();
             }
             
@@ -175,6 +303,74 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCapture.shutdown();
+        
+        // Without a STOP, nobody else is going to tell the AssemblyLine to let
+        // go of its buffers.  It's an IntentService, so anything still waiting
+        // gets done first; if more frames come in after, it just sets itself
+        // up again.
+        releasePipeline();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, MENU_DEFER_OVERLAY, Menu.NONE, R.string.menu_defer_overlay).setCheckable(true);
+        
+        SubMenu modes = menu.addSubMenu(R.string.menu_duplicates);
+        for(int i = 0; i < DUPLICATE_MODES.length; i++)
+            modes.add(GROUP_DUPLICATE_MODE, MENU_DUPLICATE_MODE + i, i, DUPLICATE_MODE_NAMES[i]);
+        modes.setGroupCheckable(GROUP_DUPLICATE_MODE, true, true);
+        
+        SubMenu thresholds = menu.addSubMenu(R.string.menu_duplicate_threshold);
+        for(int i = 0; i < DUPLICATE_THRESHOLDS.length; i++)
+            thresholds.add(GROUP_DUPLICATE_THRESHOLD, MENU_DUPLICATE_THRESHOLD + i, i, DUPLICATE_THRESHOLD_NAMES[i]);
+        thresholds.setGroupCheckable(GROUP_DUPLICATE_THRESHOLD, true, true);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(MENU_DEFER_OVERLAY).setChecked(mPictureTaker.getDeferOverlay());
+        
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int mode = prefs.getInt(DuplicateGate.PREF_MODE, DuplicateGate.MODE_TAG);
+        for(int i = 0; i < DUPLICATE_MODES.length; i++)
+            menu.findItem(MENU_DUPLICATE_MODE + i).setChecked(DUPLICATE_MODES[i] == mode);
+        int threshold = prefs.getInt(DuplicateGate.PREF_THRESHOLD, DuplicateGate.DEFAULT_THRESHOLD);
+        for(int i = 0; i < DUPLICATE_THRESHOLDS.length; i++)
+            menu.findItem(MENU_DUPLICATE_THRESHOLD + i).setChecked(DUPLICATE_THRESHOLDS[i] == threshold);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if(item.getItemId() == MENU_DEFER_OVERLAY) {
+            // This takes effect on the next picture, so it's fine to flip it
+            // in the middle of a drive.  Whatever got put off is still waiting
+            // for the batch run either way.
+            boolean defer = !item.isChecked();
+            item.setChecked(defer);
+            mPictureTaker.setDeferOverlay(defer);
+            PreferenceManager.getDefaultSharedPreferences(this).edit()
+                    .putBoolean(PREF_DEFER_OVERLAY, defer).commit();
+            return true;
+        }
+        
+        int id = item.getItemId();
+        if(id >= MENU_DUPLICATE_MODE && id < MENU_DUPLICATE_MODE + DUPLICATE_MODES.length) {
+            saveDuplicateSetting(DuplicateGate.PREF_MODE, DUPLICATE_MODES[id - MENU_DUPLICATE_MODE]);
+            return true;
+        }
+        if(id >= MENU_DUPLICATE_THRESHOLD && id < MENU_DUPLICATE_THRESHOLD + DUPLICATE_THRESHOLDS.length) {
+            saveDuplicateSetting(DuplicateGate.PREF_THRESHOLD, DUPLICATE_THRESHOLDS[id - MENU_DUPLICATE_THRESHOLD]);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         // TODO Auto-generated method stub
@@ -191,6 +387,8 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
         
         mLocationManager.removeUpdates(this);
         if(mWakeLock.isHeld()) mWakeLock.release();
+        mScheduler.stop(SystemClock.elapsedRealtime());
+        closeTrack();
     }
 
     @Override
@@ -208,24 +406,47 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
     
     @Override
     public void onLocationChanged(Location loc) {
+        long startNanos = System.nanoTime();
+        if(mFirstFixTime < 0) mFirstFixTime = SystemClock.elapsedRealtime();
+        
+        recordFix(loc);
+        
+        // Get the Geocoder working on where we're headed before the picture
+        // even gets taken.
+        mPrefetcher.onFix(loc.getTime(), loc.getLatitude(), loc.getLongitude());
+        
+        // Now, is it time for a picture?
+        float speed = loc.hasSpeed() ? loc.getSpeed() : -1;
+        boolean trigger = mOdometer.update(loc.getTime(),
+                loc.getLatitude(),
+                loc.getLongitude(),
+                loc.hasAccuracy() ? loc.getAccuracy() : 0,
+                speed);
+        
+        // And when do we need to hear from the GPS again?
+        if(mScheduler.update(speed, mOdometer.isStationary(),
+                mOdometer.getDistanceToTrigger(), TRIGGER_DISTANCE)) {
+            requestUpdates();
+        }
+        
+        // The picture's not counted in the per-fix time; the fixes we skip
+        // wouldn't have taken pictures anyway.
+        mScheduler.countFix(System.nanoTime() - startNanos);
+        
+        if(trigger) takePicture(loc);
+    }
+    
+    private void takePicture(Location loc) {
         writeLog("Location: " + loc.getLatitude() + "," + loc.getLongitude() + "\n");
         if(mLastLoc != null) {
-            writeLog("(displacement: " + mLastLoc.distanceTo(loc) + ")\n");
+            writeLog("(displacement: " + mLastLoc.distanceTo(loc)
+                    + ", path: " + (mOdometer.getTotalDistance() - mLastLocDistance) + ")\n");
         }
         mLastLoc = loc;
+        mLastLocDistance = mOdometer.getTotalDistance();
 
-        if(mCamera != null) {
-            Camera.Parameters params = mCamera.getParameters();
-            params.setGpsLatitude(loc.getLatitude());
-            params.setGpsLongitude(loc.getLongitude());
-            params.setGpsTimestamp(loc.getTime());
-            params.setGpsAltitude(loc.getAltitude());
-            
-            // TODO: This should be set by an option!
-            params.setPictureSize(1024, 768);
-            mCamera.setParameters(params);
-            mCamera.takePicture(null, null, mPictureTaker.getPictureHandle(loc));
-        }
+        // If the camera's still busy with the last one, this'll wait its turn.
+        mCapture.trigger(loc, mDistanceOffset + mOdometer.getTotalDistance());
         mCount++;
     }
 
@@ -248,38 +469,109 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width,
             int height) {
-        Camera.Parameters params = mCamera.getParameters();
-        
-        // It appears that not setting the preview size seems to just make it
-        // take up the whole screen.  Which is good, as that's what we need to
-        // do, and I've seen crashes on some phones (i.e. the Droid) if I
-        // manually feed in a size it doesn't like (i.e. no title but with
-        // notifications still on).
-        
-        params.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
-        mCamera.setParameters(params);
-        mCamera.startPreview();
-        
+        mCapture.startPreview();
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
-        mCamera = Camera.open();
+        mCapture.open(holder);
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        mCapture.close();
+    }
+    
+    private void requestUpdates() {
+        // We want every fix, not just the ones minDistance apart; the
+        // Odometer's the one who decides when to take a picture.  How often
+        // those fixes come is up to the SamplingScheduler.  If we're already
+        // registered, this just changes the interval.
+        mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, mScheduler.getInterval(), 0, this);
+    }
+    
+    private void saveDuplicateSetting(String key, int value) {
+        PreferenceManager.getDefaultSharedPreferences(this).edit().putInt(key, value).commit();
+        
+        // The AssemblyLine's FrameProcessor got its DuplicateGate when it was
+        // made.  If we're stopped, nothing's using it, so swap it out now.  In
+        // the middle of a drive, pictures are still going through it, so the
+        // new setting waits for the next START (STOP releases it anyway).
+        if(mLastState == STATE_STOP) {
+            releasePipeline();
+            warmUpPipeline();
+        }
+    }
+    
+    private void warmUpPipeline() {
+        Intent warmUp = new Intent(this, AssemblyLine.class);
+        warmUp.setAction(AssemblyLine.ACTION_WARM_UP);
+        warmUp.putExtra(AssemblyLine.EXTRA_WIDTH, PICTURE_WIDTH);
+        warmUp.putExtra(AssemblyLine.EXTRA_HEIGHT, PICTURE_HEIGHT);
+        startService(warmUp);
+    }
+    
+    private void releasePipeline() {
+        Intent release = new Intent(this, AssemblyLine.class);
+        release.setAction(AssemblyLine.ACTION_RELEASE);
+        startService(release);
+    }
+    
+    private String sinceGo(long time) {
+        if(mGoTime < 0 || time < mGoTime) return "(never)";
+        return (time - mGoTime) + "ms";
+    }
+    
+    private void openTrack() {
+        if(mTrackRecorder != null || mPictureTaker.getDirName() == null) return;
+        
         try {
-            mCamera.setPreviewDisplay(holder);
-        } catch (Exception e) {
-            mCamera.release();
-            mCamera = null;
+            mTrackRecorder = new TrackRecorder(new File(mPictureTaker.getDirName()));
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Couldn't open the track file, no track will be recorded!");
             e.printStackTrace();
         }
+    }
+    
+    private long closeTrack() {
+        if(mTrackRecorder == null) return 0;
         
+        long fixes = mTrackRecorder.getFixCount();
+        if(mTrackRecorder.getRefusedCount() > 0) {
+            Log.w(DEBUG_TAG, mTrackRecorder.getRefusedCount()
+                    + " fixes were older than the ones before them and didn't go in the track");
+        }
+        try {
+            mTrackRecorder.close();
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Couldn't close the track file!");
+            e.printStackTrace();
+        }
+        mTrackRecorder = null;
+        return fixes;
     }
-
-    @Override
-    public void surfaceDestroyed(SurfaceHolder holder) {
-        mCamera.stopPreview();
-        mCamera.release();
-        mCamera = null;
+    
+    private void recordFix(Location loc) {
+        if(mTrackRecorder == null) return;
+        
+        mTrackFix.clear();
+        mTrackFix.setTime(loc.getTime());
+        mTrackFix.setLatitude(loc.getLatitude());
+        mTrackFix.setLongitude(loc.getLongitude());
+        if(loc.hasAltitude()) mTrackFix.setAltitude(loc.getAltitude());
+        if(loc.hasSpeed()) mTrackFix.setSpeed(loc.getSpeed());
+        if(loc.hasBearing()) mTrackFix.setBearing(loc.getBearing());
+        if(loc.hasAccuracy()) mTrackFix.setAccuracy(loc.getAccuracy());
+        
+        try {
+            mTrackRecorder.append(mTrackFix);
+        } catch (IOException e) {
+            // If the SD card's gone away, the pictures are going to be in
+            // trouble too.  Stop trying to record the track, at least.
+            Log.e(DEBUG_TAG, "Couldn't write to the track file, giving up on it!");
+            e.printStackTrace();
+            closeTrack();
+        }
     }
     
     private void switchButtonStates(int newState) {
@@ -314,9 +606,8 @@ public class DriveLapse extends Activity implements LocationListener, SurfaceHol
     }
     
     private void writeLog(String data) {
-        if(mTextView == null || mScroller == null) return;
+        if(mSessionLog == null) return;
         
-        mTextView.append(data);
-        mScroller.fullScroll(View.FOCUS_DOWN);
+        mSessionLog.write(data);
     }
 }
\ No newline at end of file
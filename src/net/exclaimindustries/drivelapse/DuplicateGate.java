@@ -0,0 +1,256 @@
+/**
+ * DuplicateGate.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * The DuplicateGate catches frames that look just like the one before them,
+ * which is what happens at red lights and in traffic jams when GPS drift keeps
+ * triggering the camera.  It goes in front of everything else in a
+ * FrameProcessor so that a duplicate never gets fully decoded at all.
+ *
+ * Each frame gets a difference hash: it's decoded at 1/8 scale (which JPEG
+ * decoders can do almost for free), squashed down to 9x8, and every pixel's
+ * brightness is compared to its right-hand neighbor, one bit per comparison.
+ * If that's within the threshold of the last frame that got kept, it's a
+ * duplicate.  Comparing against the last kept frame instead of just the last
+ * frame means a slow creep forward still gets through eventually.
+ *
+ * Duplicates can either be dropped (moved off to a subdirectory, where the
+ * movie won't pick them up) or just tagged (put on the session's DuplicateList
+ * and processed like normal, once; batch re-runs and exports skip them).  Which
+ * one, and how picky it is, are settings (see fromPreferences).
+ *
+ * @author Nicholas Killewald
+ */
+public class DuplicateGate {
+    private static final String DEBUG_TAG = "DuplicateGate";
+
+    /** Nothing gets checked at all, so nothing pays for the hash. */
+    public static final int MODE_OFF = -1;
+    /** Duplicates get processed as normal, but listed in the duplicate list. */
+    public static final int MODE_TAG = 0;
+    /** Duplicates get moved to the duplicates directory and not processed. */
+    public static final int MODE_DROP = 1;
+
+    /** Preference for the mode, one of the MODE_ statics. */
+    public static final String PREF_MODE = "DuplicateMode";
+    /** Preference for the threshold, in hash bits. */
+    public static final String PREF_THRESHOLD = "DuplicateThreshold";
+    /** Where dropped frames go, under the session directory. */
+    public static final String DUPLICATES_DIRNAME = "duplicates";
+
+    /**
+     * Default number of hash bits (out of 64) that can differ for two frames
+     * to still count as the same.  Sensor noise and a passing car usually
+     * flip a few; actually moving forward flips dozens.
+     */
+    public static final int DEFAULT_THRESHOLD = 6;
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    private static final int SAMPLE_SIZE = 8;
+
+    private int mThreshold;
+    private int mMode;
+
+    private long mLastHash;
+    private boolean mHaveLast;
+
+    private int[] mPixels = new int[HASH_WIDTH * HASH_HEIGHT];
+
+    // Stats!
+    private int mCheckedCount;
+    private int mDuplicateCount;
+    private long mHashTime;
+
+    /**
+     * Makes a DuplicateGate that tags duplicates with the default threshold.
+     */
+    public DuplicateGate() {
+        this(DEFAULT_THRESHOLD, MODE_TAG);
+    }
+
+    /**
+     * Makes a DuplicateGate.
+     *
+     * @param threshold how many hash bits can differ for frames to still count
+     *                  as duplicates (0 means only exact hash matches, negative
+     *                  turns the gate off entirely)
+     * @param mode MODE_OFF, MODE_TAG, or MODE_DROP
+     */
+    public DuplicateGate(int threshold, int mode) {
+        mThreshold = threshold;
+        mMode = mode;
+    }
+
+    /**
+     * Makes a DuplicateGate out of whatever the user set (see DriveLapse's
+     * menu).  Without any settings, it's the same as the default constructor.
+     *
+     * @param context Context to get the preferences from
+     * @return a new DuplicateGate
+     */
+    public static DuplicateGate fromPreferences(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return new DuplicateGate(prefs.getInt(PREF_THRESHOLD, DEFAULT_THRESHOLD),
+                prefs.getInt(PREF_MODE, MODE_TAG));
+    }
+
+    /**
+     * Checks if a frame's a duplicate and, if so, deals with it according to
+     * the mode.
+     *
+     * @param fileLocation the frame's file
+     * @return true if the frame should go on through the rest of the pipeline,
+     *         false if it got dropped
+     */
+    public boolean check(String fileLocation) {
+        if(mThreshold < 0 || mMode == MODE_OFF) return true;
+
+        long start = System.nanoTime();
+        long hash;
+        try {
+            hash = hash(fileLocation);
+        } finally {
+            mHashTime += System.nanoTime() - start;
+        }
+        mCheckedCount++;
+
+        if(hash == -1L) {
+            // Couldn't decode it.  Whatever's next will find that out the hard
+            // way.
+            return true;
+        }
+
+        if(!mHaveLast || distance(hash, mLastHash) > mThreshold) {
+            mLastHash = hash;
+            mHaveLast = true;
+            return true;
+        }
+
+        mDuplicateCount++;
+        File frame = new File(fileLocation);
+        Log.d(DEBUG_TAG, frame.getName() + " looks like a duplicate (" + distance(hash, mLastHash) + " bits off)");
+
+        try {
+            DuplicateList.append(frame.getParentFile(), frame.getName());
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Couldn't write down that " + frame.getName() + " is a duplicate!");
+            e.printStackTrace();
+        }
+
+        if(mMode == MODE_DROP) {
+            File dir = new File(frame.getParentFile(), DUPLICATES_DIRNAME);
+            if((dir.isDirectory() || dir.mkdirs()) && frame.renameTo(new File(dir, frame.getName()))) {
+                return false;
+            }
+            // If it couldn't be moved, it's still in the movie, so it'd better
+            // get processed like everything else.
+            Log.w(DEBUG_TAG, "Couldn't move " + frame.getName() + " out of the way, processing it anyway...");
+        }
+
+        return true;
+    }
+
+    /**
+     * Forgets the last kept frame, so the next one always gets through.  Call
+     * this when there's a gap in the frames (a new session, say).
+     */
+    public void reset() {
+        mHaveLast = false;
+    }
+
+    private long hash(String fileLocation) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = SAMPLE_SIZE;
+        Bitmap small = BitmapFactory.decodeFile(fileLocation, opts);
+        if(small == null) return -1L;
+
+        Bitmap tiny = Bitmap.createScaledBitmap(small, HASH_WIDTH, HASH_HEIGHT, true);
+        small.recycle();
+        tiny.getPixels(mPixels, 0, HASH_WIDTH, 0, 0, HASH_WIDTH, HASH_HEIGHT);
+        tiny.recycle();
+
+        return differenceHash(mPixels);
+    }
+
+    /**
+     * Makes a difference hash out of 9x8 ARGB pixels.  Each bit is whether a
+     * pixel's brighter than the one to its right.
+     *
+     * @param pixels 72 pixels, row by row
+     * @return the hash
+     */
+    static long differenceHash(int[] pixels) {
+        long hash = 0;
+        for(int y = 0; y < HASH_HEIGHT; y++) {
+            int row = y * HASH_WIDTH;
+            int left = luma(pixels[row]);
+            for(int x = 1; x < HASH_WIDTH; x++) {
+                int right = luma(pixels[row + x]);
+                hash <<= 1;
+                if(left > right) hash |= 1;
+                left = right;
+            }
+        }
+        return hash;
+    }
+
+    private static int luma(int argb) {
+        // Close enough to Rec. 601, in integers.
+        return (((argb >> 16) & 0xff) * 299 + ((argb >> 8) & 0xff) * 587 + (argb & 0xff) * 114) / 1000;
+    }
+
+    /**
+     * Gets how many bits differ between two hashes.
+     *
+     * @param a one hash
+     * @param b another hash
+     * @return the Hamming distance, 0 to 64
+     */
+    static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Gets how many frames have been checked.
+     *
+     * @return the count
+     */
+    public int getCheckedCount() {
+        return mCheckedCount;
+    }
+
+    /**
+     * Gets how many frames turned out to be duplicates.
+     *
+     * @return the count
+     */
+    public int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * Gets how long all the hashing took, to weigh against what it saved.
+     *
+     * @return total hashing time, in milliseconds
+     */
+    public long getHashTime() {
+        return mHashTime / 1000000;
+    }
+}
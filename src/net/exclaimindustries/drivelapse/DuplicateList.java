@@ -0,0 +1,91 @@
+/**
+ * DuplicateList.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * The DuplicateList is the session's list of frames the DuplicateGate tagged
+ * as duplicates, one filename per line.  Tagged frames still get processed
+ * once, but batch re-runs and exports leave them out.
+ *
+ * It doesn't touch Android, so the SessionExporter can use it on a desktop.
+ *
+ * @author Nicholas Killewald
+ */
+public class DuplicateList {
+    public static final String FILENAME = "duplicates.txt";
+
+    /**
+     * Adds a frame to the list.
+     *
+     * @param dir session directory
+     * @param name the frame's filename
+     * @throws IOException the list couldn't be written
+     */
+    public static void append(File dir, String name) throws IOException {
+        synchronized(DuplicateList.class) {
+            FileOutputStream ostream = new FileOutputStream(new File(dir, FILENAME), true);
+            try {
+                ostream.write((name + "\n").getBytes("UTF-8"));
+            } finally {
+                ostream.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the keys (see ThumbnailPack.keyFor) of every frame on the list,
+     * sorted, for contains.  It's one long per duplicate, not per frame.
+     *
+     * @param dir session directory
+     * @return the keys, which is empty if there's no list
+     * @throws IOException the list couldn't be read
+     */
+    public static long[] read(File dir) throws IOException {
+        File file = new File(dir, FILENAME);
+        long[] keys = new long[0];
+        if(!file.exists()) return keys;
+
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                long key = ThumbnailPack.keyFor(line.trim());
+                if(key < 0) continue;
+
+                if(count == keys.length) keys = Arrays.copyOf(keys, Math.max(16, count * 2));
+                keys[count++] = key;
+            }
+        } finally {
+            reader.close();
+        }
+
+        keys = Arrays.copyOf(keys, count);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Says whether a frame's on a list from read.
+     *
+     * @param keys the list
+     * @param key the frame's key
+     * @return true if it's a duplicate
+     */
+    public static boolean contains(long[] keys, long key) {
+        return Arrays.binarySearch(keys, key) >= 0;
+    }
+}
@@ -0,0 +1,636 @@
+/**
+ * FrameProcessor.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import net.exclaimindustries.drivelapse.AssemblyLine.Station;
+import net.exclaimindustries.drivelapse.AssemblyLine.WorkOrder;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.location.Location;
+import android.util.Log;
+
+/**
+ * A FrameProcessor is one set of Stations plus everything they need to work on
+ * a frame: decoding it, running it down the line, and writing it back out.
+ * The Stations keep their own drawing state and the decoded bitmap gets reused
+ * from frame to frame, so a FrameProcessor isn't safe to share between
+ * threads; anything that wants to process frames in parallel should make one
+ * per thread.
+ *
+ * Every frame that makes it all the way through gets its name written down in
+ * the session's processed list, which is how a batch run knows what's left.
+ * Each name only goes in once, no matter how many times the frame gets
+ * redone.
+ *
+ * Before any of that, though, the frame has to get past the DuplicateGate.
+ * Frames that look just like the last one (sitting at a red light, say) get
+ * tagged or dropped there, depending on how the gate's set up.  Note that the
+ * gate compares against the last frame this FrameProcessor kept, so a batch
+ * run with several of these going will compare frames a few apart instead of
+ * right next to each other.  That's close enough.
+ *
+ * The first time through, the frame gets moved into the originals directory,
+ * and the processed frame gets written where it used to be.  Every time after
+ * that starts from the original again, so running a frame twice never draws
+ * the overlay on twice or loses quality twice.  The ResultCache keeps track of
+ * what each Station last did, so if a Station's inputs haven't changed since,
+ * it gets skipped; if none of them changed, the frame doesn't even get
+ * decoded.
+ *
+ * Frames with more than MAX_FRAME_PIXELS in them don't get decoded whole at
+ * all.  Instead, they go down the line a band at a time, straight from the
+ * JPEG and straight back out to the encoder, so how big the sensor is doesn't
+ * change how much memory it takes, just how long.
+ *
+ * If the WorkOrder says to put off drawing (see EXTRA_DEFER), the frame stays
+ * right where the camera left it, and each Station just writes down whatever
+ * can't wait (see Station.recordOrder).  Nothing gets decoded or encoded, not
+ * even for the DuplicateGate, and the frame doesn't go in the processed list,
+ * so the next batch run gates it and finishes it off.
+ *
+ * @author Nicholas Killewald
+ */
+public class FrameProcessor {
+    private static final String DEBUG_TAG = "FrameProcessor";
+
+    /** Where the names of finished frames get written. */
+    public static final String PROCESSED_FILENAME = "processed.txt";
+    /** Where the original captures go, in the session directory. */
+    public static final String ORIGINALS_DIRNAME = "originals";
+
+    /**
+     * WorkOrder extra data key for putting off everything but the parts that
+     * can't wait until a batch run, instead of drawing the frame now.
+     */
+    public static final String EXTRA_DEFER = "net.exclaimindustries.drivelapse.defer";
+
+    private static final int JPEG_QUALITY = 90;
+
+    /**
+     * The processed list for whatever session the last frame was from, so
+     * frames that are already on it don't get written down again.  Every
+     * FrameProcessor writes to the same file, so this is shared, and guarded
+     * by the class lock along with the file.
+     */
+    private static Set<String> sProcessed;
+    private static File sProcessedDir;
+
+    /**
+     * Frames with more pixels than this don't get decoded all at once; they
+     * go through a band at a time instead (see Station.canProcessBands).
+     * That's a bit over a 1600x1200 frame, or eight megs of ARGB.
+     */
+    public static final int MAX_FRAME_PIXELS = 2 * 1024 * 1024;
+    /** About how many pixels each band gets, for frames that go in bands. */
+    private static final int BAND_PIXELS = 1024 * 1024;
+
+    private List<Station> mStations;
+
+    /** The last decoded bitmap, to decode the next frame into. */
+    private Bitmap mBitmap;
+    /** Where the encoder gets the frame's pixels from. */
+    private BitmapPixels mBitmapPixels = new BitmapPixels();
+
+    private StripJpegEncoder mEncoder = new StripJpegEncoder(JPEG_QUALITY);
+
+    private DuplicateGate mGate;
+
+    /** The cache for whatever session the last frame was from. */
+    private ResultCache mCache;
+
+    // How long full processing takes, so we know what dropping duplicates
+    // saved.
+    private int mProcessedCount;
+    private int mDroppedCount;
+    private long mProcessTime;
+    private int mUpToDateCount;
+    private int mStationsSkipped;
+    private int mDeferredCount;
+
+    /**
+     * Makes a FrameProcessor.  Whoever makes one decides how duplicates get
+     * handled; usually, that's DuplicateGate.fromPreferences.
+     *
+     * @param context Context to load resources from
+     * @param gate DuplicateGate to check frames with
+     */
+    public FrameProcessor(Context context, DuplicateGate gate) {
+        mGate = gate;
+
+        // Make all our stations.  This is still a fixed setup, but at least
+        // now it only happens once per FrameProcessor instead of once per
+        // frame.
+        mStations = new LinkedList<Station>();
+        mStations.add(new Annotator(context));
+        mStations.add(new Resizer());
+    }
+
+    /**
+     * Processes one frame, start to finish.
+     *
+     * @param order the WorkOrder to process
+     * @return true if it all went well, false if not
+     */
+    public boolean process(WorkOrder order) {
+        long start = System.nanoTime();
+        try {
+            File output = new File(order.getFileLocation());
+            File dir = output.getParentFile();
+            if(mCache == null || !mCache.getDirectory().equals(dir)) mCache = new ResultCache(dir);
+
+            File original = new File(new File(dir, ORIGINALS_DIRNAME), output.getName());
+
+            if(order.getExtraData().getBoolean(EXTRA_DEFER, false)) {
+                // Just the parts that can't wait, then.  Even the gate can
+                // wait, since it has to decode the frame; the frame stays
+                // right where it is, and the batch run gates it on the way
+                // into the originals like any other new frame.
+                boolean success = true;
+                for(Station st : mStations) {
+                    if(!st.recordOrder(order)) success = false;
+                }
+                indexDistance(order);
+                mDeferredCount++;
+                return success;
+            }
+
+            if(!original.exists()) {
+                // First time through.  Is this even worth the trouble?
+                if(!mGate.check(order.getFileLocation())) {
+                    mDroppedCount++;
+                    return true;
+                }
+
+                File originals = original.getParentFile();
+                if(!(originals.isDirectory() || originals.mkdirs()) || !output.renameTo(original)) {
+                    // Well, we can still process it in place, like the old
+                    // days.  It just can't be redone cleanly later.
+                    Log.w(DEBUG_TAG, "Couldn't keep the original of " + output.getName() + ", processing it in place...");
+                    original = output;
+                }
+            }
+
+            // Work out every Station's key.  Drawing Stations pass theirs on
+            // to everything after them, since their result is the next one's
+            // input.  The location gets rounded the way the track stores it,
+            // and the time comes from the frame's name, not the fix, so a
+            // batch run (which gets them from the track) comes up with the
+            // same key the drive did.
+            Location loc = order.getGpsLocation();
+            String key = ResultCache.hash(ResultCache.hashFile(original),
+                    ThumbnailPack.keyFor(output.getPath()),
+                    Math.round(loc.getLatitude() * 1e7), Math.round(loc.getLongitude() * 1e7),
+                    JPEG_QUALITY);
+            String[] keys = new String[mStations.size()];
+            boolean[] stale = new boolean[keys.length];
+            boolean redraw = !output.exists();
+            boolean anyStale = redraw;
+
+            int i = 0;
+            for(Station st : mStations) {
+                keys[i] = ResultCache.hash(key, st.getName(), st.getVersion(), st.getConfig(),
+                        st.getOrderConfig(order));
+                stale[i] = !keys[i].equals(mCache.get(output.getName(), st.getName()));
+                if(stale[i]) anyStale = true;
+                if(st.drawsOnFrame()) {
+                    key = keys[i];
+                    if(stale[i]) redraw = true;
+                }
+                i++;
+            }
+
+            if(!anyStale) {
+                // Nothing to do at all!
+                mUpToDateCount++;
+                mStationsSkipped += keys.length;
+            } else {
+                // Now, let's crack that image open and get some tasty, tasty
+                // data.  If anything has to draw, that starts from the
+                // original; if not, the finished frame is what the rest want.
+                // This is the only time it gets decoded; it comes out mutable,
+                // so there's no need to copy it, and every Station works on
+                // this one.
+                File source = redraw ? original : output;
+                boolean[] done = new boolean[keys.length];
+
+                // Unless it's too big for that, in which case it goes a band
+                // at a time, as long as everything that has to run can.
+                BitmapFactory.Options bounds = new BitmapFactory.Options();
+                bounds.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(source.getPath(), bounds);
+                boolean banded = (long)bounds.outWidth * bounds.outHeight > MAX_FRAME_PIXELS;
+                i = 0;
+                for(Station st : mStations) {
+                    if((stale[i] || (redraw && st.drawsOnFrame())) && !st.canProcessBands()) banded = false;
+                    i++;
+                }
+
+                if(banded) {
+                    processBands(order, source, output, redraw, stale, done);
+                } else {
+                    Bitmap bitmap = decode(source.getPath());
+                    if(bitmap == null) {
+                        Log.e(DEBUG_TAG, "Couldn't decode " + source + "!");
+                        return false;
+                    }
+                    order.setBitmap(bitmap);
+
+                    // Fire up the stations!  Well, the ones that need it.
+                    i = 0;
+                    for(Station st : mStations) {
+                        if(stale[i] || (redraw && st.drawsOnFrame())) {
+                            done[i] = st.processOrder(order);
+                        } else {
+                            mStationsSkipped++;
+                        }
+                        i++;
+                    }
+
+                    // With all the stations done working on the canvas, write
+                    // it back out to SD.  Or, y'know, wherever it leads.  If
+                    // nothing drew on it, it's the same as what's already
+                    // there.
+                    if(redraw) {
+                        // Bitmap.compress only ever uses one core, so the
+                        // pixels go through the StripJpegEncoder instead.
+                        // It pulls them out a strip at a time, so they never
+                        // get copied out all at once.
+                        OutputStream ostream = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+                        try {
+                            mBitmapPixels.set(bitmap, 0);
+                            mEncoder.encode(mBitmapPixels, bitmap.getWidth(), bitmap.getHeight(), ostream);
+                        } finally {
+                            mBitmapPixels.set(null, 0);
+                            ostream.close();
+                        }
+                    }
+
+                    order.setBitmap(null);
+                }
+
+                // Only now that it's all on disk do the results count.  If
+                // the original's gone, though, they can't be redone from it,
+                // so there's no point remembering them.
+                if(original != output) {
+                    i = 0;
+                    for(Station st : mStations) {
+                        if(done[i]) mCache.put(output.getName(), st.getName(), keys[i]);
+                        i++;
+                    }
+                }
+            }
+
+            markProcessed(output.getParentFile(), output.getName());
+            indexDistance(order);
+
+            // Frames that were already done don't count toward how long
+            // processing takes.
+            if(anyStale) {
+                long elapsed = System.nanoTime() - start;
+                mProcessedCount++;
+                mProcessTime += elapsed;
+                if(mProcessedCount == 1) {
+                    Log.i(DEBUG_TAG, "First frame processed in " + (elapsed / 1000000) + "ms");
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "Processing " + order.getFileLocation() + " failed!");
+            e.printStackTrace();
+            order.setBitmap(null);
+            return false;
+        }
+    }
+
+    /**
+     * Runs a frame through the Stations a band at a time, for frames too big
+     * to decode all at once.  Bands go all the way across, since that's the
+     * order the JPEG comes in (and goes back out in), so how much memory this
+     * takes depends on the frame's width, not its height.  If nothing's
+     * drawing, bands that no Station needs don't even get decoded.
+     *
+     * The processed frame goes to a temporary file first, since the frame
+     * being read might be the one being written (if the original couldn't be
+     * moved out of the way).
+     */
+    private void processBands(WorkOrder order, File source, File output, boolean redraw,
+            boolean[] stale, boolean[] done) throws IOException {
+        RegionDecoderSource region = new RegionDecoderSource(source.getPath());
+        File temp = new File(output.getPath() + ".tmp");
+        OutputStream ostream = null;
+        boolean written = false;
+
+        try {
+            int width = region.getWidth();
+            int height = region.getHeight();
+            int bandRows = Math.max(16, (BAND_PIXELS / width) / 16 * 16);
+
+            if(redraw) {
+                ostream = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+                bandRows = mEncoder.begin(width, height, bandRows, ostream);
+            }
+
+            order.setBand(null, 0, width, height);
+
+            Station[] stations = mStations.toArray(new Station[mStations.size()]);
+            boolean[] running = new boolean[stations.length];
+            boolean[] wants = new boolean[stations.length];
+            for(int i = 0; i < stations.length; i++) {
+                if(stale[i] || (redraw && stations[i].drawsOnFrame())) {
+                    running[i] = stations[i].beginBands(order);
+                } else {
+                    mStationsSkipped++;
+                }
+            }
+
+            for(int top = 0; top < height; top += bandRows) {
+                int rows = Math.min(bandRows, height - top);
+
+                // If it's getting written back out, every band has to be
+                // decoded anyway.
+                boolean needed = redraw;
+                for(int i = 0; i < stations.length; i++) {
+                    wants[i] = running[i] && stations[i].needsRows(order, top, top + rows);
+                    if(wants[i]) needed = true;
+                }
+                if(!needed) continue;
+
+                Bitmap band = region.decodeBand(top, rows);
+                order.setBand(band, top, width, height);
+                for(int i = 0; i < stations.length; i++) {
+                    if(wants[i]) stations[i].processBand(order);
+                }
+
+                if(redraw) {
+                    mBitmapPixels.set(band, top);
+                    mEncoder.writeBand(mBitmapPixels, rows);
+                }
+            }
+
+            order.setBand(null, 0, width, height);
+            for(int i = 0; i < stations.length; i++) {
+                if(running[i]) done[i] = stations[i].endBands(order);
+            }
+
+            if(redraw) {
+                mEncoder.finish();
+                ostream.close();
+                ostream = null;
+                output.delete();
+                if(!temp.renameTo(output)) throw new IOException("Couldn't move " + temp + " to " + output);
+                written = true;
+            }
+        } finally {
+            order.setBitmap(null);
+            mBitmapPixels.set(null, 0);
+            region.close();
+            if(ostream != null) ostream.close();
+            if(redraw && !written) temp.delete();
+        }
+    }
+
+    /**
+     * If we know how far along the trip a frame was, it can go in the distance
+     * index.  The frame's fine either way, though.
+     */
+    private static void indexDistance(WorkOrder order) {
+        if(!order.getExtraData().containsKey(DistanceIndex.EXTRA_DISTANCE)) return;
+
+        File frame = new File(order.getFileLocation());
+        try {
+            DistanceIndex.append(frame.getParentFile(),
+                    order.getExtraData().getDouble(DistanceIndex.EXTRA_DISTANCE),
+                    order.getGpsLocation().getTime(),
+                    ThumbnailPack.keyFor(order.getFileLocation()));
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Couldn't add " + frame.getName() + " to the distance index!");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets everything ready for frames of the given size, so the first real
+     * one doesn't have to pay for it: the bitmap frames get decoded into, and
+     * whatever each Station wants to set up ahead of time.
+     *
+     * @param width frame width
+     * @param height frame height
+     */
+    public void warmUp(int width, int height) {
+        long start = System.nanoTime();
+
+        if(width > 0 && height > 0 && (long)width * height > MAX_FRAME_PIXELS) {
+            // Frames that big go in bands, so there's no point in a bitmap
+            // for the whole thing.
+            release();
+        } else if(width > 0 && height > 0) {
+            if(mBitmap != null && (mBitmap.getWidth() != width || mBitmap.getHeight() != height)) release();
+            if(mBitmap == null) mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        for(Station st : mStations) {
+            st.warmUp(width, height);
+        }
+
+        Log.i(DEBUG_TAG, "Warmed up for " + width + "x" + height + " in "
+                + ((System.nanoTime() - start) / 1000000) + "ms");
+    }
+
+    /**
+     * Lets go of the reusable bitmap.  The FrameProcessor can still be used
+     * after this; it'll just have to allocate a new one.
+     */
+    public void release() {
+        if(mGate.getCheckedCount() > 0) {
+            Log.i(DEBUG_TAG, mGate.getDuplicateCount() + " of " + mGate.getCheckedCount()
+                    + " frames were duplicates, " + mDroppedCount + " dropped; hashing took "
+                    + mGate.getHashTime() + "ms, dropping saved about " + getTimeSaved() + "ms");
+        }
+
+        if(mDeferredCount > 0) {
+            Log.i(DEBUG_TAG, mDeferredCount + " frames were put off until the next batch run");
+        }
+
+        if(mStationsSkipped > 0) {
+            Log.i(DEBUG_TAG, mUpToDateCount + " frames were already up to date; "
+                    + mStationsSkipped + " Station runs skipped in all");
+        }
+
+        if(mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+    }
+
+    /**
+     * Gets the DuplicateGate this FrameProcessor checks frames with, mostly
+     * for its stats.
+     *
+     * @return the DuplicateGate
+     */
+    public DuplicateGate getDuplicateGate() {
+        return mGate;
+    }
+
+    /**
+     * Estimates how much time dropping duplicates saved, going by how long
+     * the frames that did get processed took on average.  Hashing time isn't
+     * subtracted out; get that from the DuplicateGate.
+     *
+     * @return time saved, in milliseconds
+     */
+    public long getTimeSaved() {
+        if(mProcessedCount == 0) return 0;
+        return (mProcessTime / mProcessedCount) * mDroppedCount / 1000000;
+    }
+
+    private Bitmap decode(String fileLocation) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inMutable = true;
+        opts.inBitmap = mBitmap;
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(fileLocation, opts);
+        } catch (IllegalArgumentException e) {
+            // The old bitmap's the wrong size to reuse.  Toss it and make a
+            // new one.
+            release();
+            opts.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(fileLocation, opts);
+        }
+
+        if(bitmap != null) mBitmap = bitmap;
+        return bitmap;
+    }
+
+    /**
+     * Reads the names of every frame in a session that's been processed.
+     *
+     * @param dir session directory
+     * @return a Set of filenames (no directories), which is empty if nothing's
+     *         been processed yet
+     */
+    public static Set<String> readProcessed(File dir) {
+        Set<String> names = new HashSet<String>();
+        File file = new File(dir, PROCESSED_FILENAME);
+        if(!file.exists()) return names;
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    if(line.length() > 0) names.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Couldn't read " + file + ", assuming nothing's been processed...");
+            e.printStackTrace();
+        }
+
+        return names;
+    }
+
+    private static void markProcessed(File dir, String name) throws IOException {
+        synchronized(FrameProcessor.class) {
+            if(sProcessed == null || !dir.equals(sProcessedDir)) {
+                sProcessed = readProcessed(dir);
+                sProcessedDir = dir;
+                compactProcessed(dir, sProcessed);
+            }
+
+            // Redoing a frame (a batch re-run, or one that got put off) doesn't
+            // need another line.
+            if(sProcessed.contains(name)) return;
+
+            FileOutputStream ostream = new FileOutputStream(new File(dir, PROCESSED_FILENAME), true);
+            try {
+                ostream.write((name + "\n").getBytes("UTF-8"));
+            } finally {
+                ostream.close();
+            }
+            sProcessed.add(name);
+        }
+    }
+
+    /**
+     * Rewrites the processed list with each name just once, if it's got more
+     * lines than that.  Older versions wrote a frame down every time it got
+     * processed, so a session that's been re-run a few times can have the
+     * same names over and over.
+     */
+    private static void compactProcessed(File dir, Set<String> names) {
+        File file = new File(dir, PROCESSED_FILENAME);
+        if(!file.exists()) return;
+
+        File temp = new File(dir, PROCESSED_FILENAME + ".new");
+        try {
+            int lines = 0;
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                while(reader.readLine() != null) lines++;
+            } finally {
+                reader.close();
+            }
+            if(lines <= names.size()) return;
+
+            FileOutputStream ostream = new FileOutputStream(temp);
+            try {
+                for(String name : names) ostream.write((name + "\n").getBytes("UTF-8"));
+                ostream.getFD().sync();
+            } finally {
+                ostream.close();
+            }
+            if(!temp.renameTo(file)) throw new IOException("Couldn't move " + temp + " to " + file);
+            Log.i(DEBUG_TAG, "Compacted the processed list from " + lines + " lines to " + names.size());
+        } catch (IOException e) {
+            // The list's still fine as it is, just longer than it has to be.
+            Log.w(DEBUG_TAG, "Couldn't compact " + file + "...");
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    /**
+     * Lets the encoder pull rows straight out of a Bitmap, which might just
+     * be one band of the frame.  Bitmap.getPixels doesn't change anything, so
+     * the encoder's threads can all do this at once.
+     */
+    private static class BitmapPixels implements StripJpegEncoder.PixelSource {
+        private Bitmap mBitmap;
+        private int mTop;
+
+        void set(Bitmap bitmap, int top) {
+            mBitmap = bitmap;
+            mTop = top;
+        }
+
+        @Override
+        public void getPixels(int[] pixels, int top, int rows) {
+            int width = mBitmap.getWidth();
+            mBitmap.getPixels(pixels, 0, width, 0, top - mTop, width, rows);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * GeocodePrefetcher.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The GeocodePrefetcher sits in front of another ReverseGeocoder and tries to
+ * have the answer ready before the Annotator ever asks.  Every fix that comes
+ * in gets used to guess where we'll be a few trigger distances from now, and
+ * lookups for those spots get fired off in the background.
+ *
+ * Results are cached by grid cell, so any lookups that land in the same cell
+ * (prefetched or not) all share one request.  Only a handful of lookups run at
+ * once, so we don't hammer the network Geocoder into rate-limiting us.  That
+ * counts the ones run by whoever's asking, not just the background ones.
+ *
+ * The app's shared one comes from Geocoders.getPrefetcher.  This class itself
+ * doesn't touch Android, so the tools can run it on a desktop.
+ *
+ * @author Nicholas Killewald
+ */
+public class GeocodePrefetcher implements ReverseGeocoder {
+    /** Size of a cache cell, in degrees.  About 55m of latitude. */
+    public static final double CELL_SIZE = 0.0005;
+    /** Most lookups we'll have going at once. */
+    public static final int MAX_CONCURRENT = 2;
+    /** Most prefetches we'll have waiting for a free slot. */
+    public static final int MAX_QUEUED = 8;
+    /** Farthest ahead we'll look, in trigger distances. */
+    public static final int MAX_LOOKAHEAD = 4;
+    /** How many cells to remember. */
+    public static final int CACHE_SIZE = 256;
+
+    /** Below this speed, in m/s, we're not going anywhere worth predicting. */
+    private static final float STATIONARY_SPEED = 1.0f;
+    /** Fixes closer together than this (meters) don't get used for heading. */
+    private static final double MIN_HEADING_DISTANCE = 10.0;
+
+    private static final double EARTH_RADIUS = 6371009.0;
+
+    private ReverseGeocoder mDelegate;
+    private float mTriggerDistance;
+    private ThreadPoolExecutor mExecutor;
+
+    private LinkedHashMap<Long, CellLookup> mCells;
+
+    // The last fix we got, for working out heading and speed.
+    private boolean mHasLastFix;
+    private long mLastTime;
+    private double mLastLat;
+    private double mLastLon;
+
+    /**
+     * Every call to the delegate has to get one of these first, whichever
+     * thread it's on.  Lookups that miss run on the thread that asked, so the
+     * executor alone doesn't keep a lid on things.
+     */
+    private Semaphore mSlots = new Semaphore(MAX_CONCURRENT, true);
+
+    /** Running average of how long the delegate takes, in milliseconds. */
+    private double mAverageLatency = 1000;
+
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * Builds a GeocodePrefetcher.
+     *
+     * @param delegate the ReverseGeocoder that does the real work
+     * @param triggerDistance distance between pictures, in meters
+     */
+    public GeocodePrefetcher(ReverseGeocoder delegate, float triggerDistance) {
+        mDelegate = delegate;
+        mTriggerDistance = triggerDistance;
+
+        mCells = new LinkedHashMap<Long, CellLookup>(CACHE_SIZE, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CellLookup> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        // If the queue's full, the oldest prefetch gets thrown out; it's the
+        // one we're most likely to have driven past already.
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT, MAX_CONCURRENT,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if(executor.isShutdown()) return;
+
+                        Runnable oldest = executor.getQueue().poll();
+                        if(oldest instanceof CellLookup) forget((CellLookup)oldest);
+                        executor.execute(r);
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Feeds in a new fix.  The heading and speed come from the last fix we got
+     * fed, and those decide which cells get prefetched.
+     *
+     * @param time time of the fix, in milliseconds
+     * @param latitude latitude, in degrees
+     * @param longitude longitude, in degrees
+     */
+    public void onFix(long time, double latitude, double longitude) {
+        // Whatever else happens, we'll want the cell we're in right now.
+        prefetch(latitude, longitude);
+
+        double heading = 0;
+        double speed = 0;
+
+        synchronized(this) {
+            if(mHasLastFix) {
+                double dist = distance(mLastLat, mLastLon, latitude, longitude);
+
+                // Too close to the last one, and the heading's mostly noise.
+                // Hang on to the old fix and wait for a better one.
+                if(dist < MIN_HEADING_DISTANCE) return;
+
+                heading = bearing(mLastLat, mLastLon, latitude, longitude);
+                if(time > mLastTime) speed = dist / ((time - mLastTime) / 1000.0);
+            }
+
+            mHasLastFix = true;
+            mLastTime = time;
+            mLastLat = latitude;
+            mLastLon = longitude;
+        }
+
+        if(speed < STATIONARY_SPEED) return;
+
+        // Look far enough ahead that the lookup has time to finish before we
+        // get there, plus one for good measure.
+        double latencyDistance = speed * (getAverageLatency() / 1000.0);
+        int lookahead = (int)Math.ceil(latencyDistance / mTriggerDistance) + 1;
+        lookahead = Math.min(lookahead, MAX_LOOKAHEAD);
+
+        double lat1 = Math.toRadians(latitude);
+        double lon1 = Math.toRadians(longitude);
+        double theta = Math.toRadians(heading);
+
+        for(int i = 1; i <= lookahead; i++) {
+            double delta = (i * mTriggerDistance) / EARTH_RADIUS;
+
+            double lat2 = Math.asin(Math.sin(lat1) * Math.cos(delta)
+                    + Math.cos(lat1) * Math.sin(delta) * Math.cos(theta));
+            double lon2 = lon1 + Math.atan2(Math.sin(theta) * Math.sin(delta) * Math.cos(lat1),
+                    Math.cos(delta) - Math.sin(lat1) * Math.sin(lat2));
+
+            prefetch(Math.toDegrees(lat2), Math.toDegrees(lon2));
+        }
+    }
+
+    @Override
+    public Place lookup(double latitude, double longitude) throws IOException {
+        while(true) {
+            CellLookup task;
+            boolean mine = false;
+            synchronized(this) {
+                long key = cellKey(latitude, longitude);
+                task = mCells.get(key);
+                if(task == null || task.isCancelled()) {
+                    task = new CellLookup(key, latitude, longitude);
+                    mCells.put(key, task);
+                    mine = true;
+                    mMisses++;
+                } else {
+                    mHits++;
+                }
+            }
+
+            // If nobody's started on it yet (it's new, or still waiting in the
+            // queue), just do it right here, as soon as there's a free slot.
+            // FutureTask only ever runs once, so whoever gets there second
+            // simply waits for the result.
+            task.run();
+
+            try {
+                return task.get();
+            } catch (CancellationException e) {
+                // Got tossed out of the queue while we were looking.  Try
+                // again, which will make a new one.
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting on a lookup");
+            } catch (ExecutionException e) {
+                // Failed.  Forget it so the next try actually tries again.
+                // If it was somebody else's (stale) failure, that next try
+                // can be right now.
+                forget(task);
+                if(e.getCause() instanceof InterruptedException) {
+                    // Interrupted waiting for a slot.
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting on a lookup");
+                }
+                if(!mine) continue;
+
+                if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+                throw new IOException("Lookup failed: " + e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Gets how many lookups found their cell already cached or in flight.
+     *
+     * @return the hit count
+     */
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * Gets how many lookups had to go to the delegate themselves.
+     *
+     * @return the miss count
+     */
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    private synchronized double getAverageLatency() {
+        return mAverageLatency;
+    }
+
+    private synchronized void addLatency(long millis) {
+        mAverageLatency = (mAverageLatency * 0.8) + (millis * 0.2);
+    }
+
+    private void prefetch(double latitude, double longitude) {
+        CellLookup task;
+        synchronized(this) {
+            long key = cellKey(latitude, longitude);
+            if(mCells.containsKey(key)) return;
+
+            task = new CellLookup(key, latitude, longitude);
+            mCells.put(key, task);
+        }
+
+        mExecutor.execute(task);
+    }
+
+    private synchronized void forget(CellLookup task) {
+        task.cancel(false);
+        if(mCells.get(task.mKey) == task) mCells.remove(task.mKey);
+    }
+
+    private static long cellKey(double latitude, double longitude) {
+        long row = (long)Math.floor(latitude / CELL_SIZE);
+        long col = (long)Math.floor(longitude / CELL_SIZE);
+        return (row << 32) | (col & 0xffffffffL);
+    }
+
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    private static double bearing(double lat1, double lon1, double lat2, double lon2) {
+        double p1 = Math.toRadians(lat1);
+        double p2 = Math.toRadians(lat2);
+        double dLon = Math.toRadians(lon2 - lon1);
+        return Math.toDegrees(Math.atan2(Math.sin(dLon) * Math.cos(p2),
+                Math.cos(p1) * Math.sin(p2) - Math.sin(p1) * Math.cos(p2) * Math.cos(dLon)));
+    }
+
+    /**
+     * One cell's worth of lookup.  It's a FutureTask so that anyone who wants
+     * the answer can wait on it (or just run it themselves).
+     */
+    private class CellLookup extends FutureTask<Place> {
+        private final long mKey;
+
+        public CellLookup(long key, final double latitude, final double longitude) {
+            super(new Callable<Place>() {
+                @Override
+                public Place call() throws Exception {
+                    mSlots.acquire();
+                    try {
+                        long start = System.currentTimeMillis();
+                        Place place = mDelegate.lookup(latitude, longitude);
+                        addLatency(System.currentTimeMillis() - start);
+                        return place;
+                    } finally {
+                        mSlots.release();
+                    }
+                }
+            });
+            mKey = key;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Geocoders.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Geocoders is where the app gets its ReverseGeocoder from.  It's the Android
+ * half of the GeocodePrefetcher, more or less: picking a delegate needs a
+ * Context, and the GeocodePrefetcher itself doesn't, so it can run on a plain
+ * JVM (see TripSimulator in the tools).
+ *
+ * @author Nicholas Killewald
+ */
+public class Geocoders {
+    private static final String DEBUG_TAG = "Geocoders";
+
+    private static GeocodePrefetcher sPrefetcher;
+
+    /**
+     * Gets the shared GeocodePrefetcher for this process.  DriveLapse feeds it
+     * fixes and the Annotator asks it for Places, so they both need to be
+     * looking at the same one.
+     *
+     * @param context Context to use; only the application Context is kept
+     * @return the GeocodePrefetcher
+     */
+    public static synchronized GeocodePrefetcher getPrefetcher(Context context) {
+        if(sPrefetcher == null) {
+            sPrefetcher = new GeocodePrefetcher(makeGeocoder(context.getApplicationContext()),
+                    DriveLapse.TRIGGER_DISTANCE);
+        }
+        return sPrefetcher;
+    }
+
+    /**
+     * Picks a ReverseGeocoder.  If there's an offline index on the SD card,
+     * we'll use that, as it's faster and works without a data connection.
+     * Otherwise, it's the network Geocoder.
+     *
+     * @param context Context from whence the network Geocoder comes
+     * @return a ReverseGeocoder ready to go
+     */
+    private static ReverseGeocoder makeGeocoder(Context context) {
+        File index = new File("/sdcard/" + context.getPackageName() + "/" + OfflineReverseGeocoder.INDEX_FILENAME);
+
+        if(index.exists()) {
+            try {
+                return new OfflineReverseGeocoder(index);
+            } catch (IOException e) {
+                Log.w(DEBUG_TAG, "Couldn't open offline index " + index + ", falling back to the network...");
+                e.printStackTrace();
+            }
+        }
+
+        return new NetworkReverseGeocoder(context);
+    }
+}
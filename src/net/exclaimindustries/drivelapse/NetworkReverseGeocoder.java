@@ -0,0 +1,43 @@
+/**
+ * NetworkReverseGeocoder.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.IOException;
+import java.util.List;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+
+/**
+ * The NetworkReverseGeocoder is the plain old Android Geocoder wearing a
+ * ReverseGeocoder hat.  It needs a data connection, and it'll throw an
+ * IOException if it doesn't have one.
+ *
+ * @author Nicholas Killewald
+ */
+public class NetworkReverseGeocoder implements ReverseGeocoder {
+    private Geocoder mGeocoder;
+
+    public NetworkReverseGeocoder(Context context) {
+        mGeocoder = new Geocoder(context);
+    }
+
+    @Override
+    public Place lookup(double latitude, double longitude) throws IOException {
+        List<Address> addresses = mGeocoder.getFromLocation(latitude, longitude, 1);
+
+        // A successful lookup with no data gives an empty list.  Some backends
+        // apparently like handing back null instead.  Either way, nothing's
+        // there.
+        if(addresses == null || addresses.isEmpty()) return null;
+
+        Address addr = addresses.get(0);
+        return new Place(addr.getThoroughfare(), addr.getLocality(), addr.getAdminArea());
+    }
+}
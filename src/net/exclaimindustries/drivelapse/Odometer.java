@@ -0,0 +1,364 @@
+/**
+ * Odometer.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+/**
+ * The Odometer decides when it's time to take another picture.  LocationManager
+ * can do that on its own with minDistance, but that's straight-line distance
+ * from the last fix it handed out, which cuts corners on curvy roads and
+ * happily fires off pictures while we're parked and the GPS is wandering
+ * around.
+ *
+ * So instead, every fix gets smoothed with a simple accuracy-weighted Kalman
+ * filter, and the distance traveled along the smoothed path gets added up.
+ * The path is followed in chords no shorter than the current noise floor, and
+ * nothing gets added at all while we look to be stopped.  Once enough distance
+ * has built up, it's picture time.
+ *
+ * Stopped means the fix says we're going slower than STATIONARY_SPEED.  Not
+ * every fix has a speed, though, and those would otherwise let GPS drift at a
+ * red light add up.  For those, the filtered position gets compared against
+ * where it was a few seconds back (STATIONARY_WINDOW), and if that works out
+ * slower than STATIONARY_SPEED, we're stopped just the same.
+ *
+ * Nothing here is Android-specific, so it can be run over recorded tracks on a
+ * desktop just as well as on the phone.
+ *
+ * @author Nicholas Killewald
+ */
+public class Odometer {
+    /** Meters per degree of latitude, near enough. */
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    /** Below this speed (m/s), we're stopped, whatever the position says. */
+    public static final float STATIONARY_SPEED = 0.8f;
+    /** Fixes worse than this (meters) aren't worth using at all. */
+    public static final float MAX_ACCURACY = 50.0f;
+    /** Accuracy to assume if the fix doesn't say, in meters. */
+    private static final float DEFAULT_ACCURACY = 10.0f;
+    /** Least amount the position can be expected to wander, in m/s. */
+    private static final float MIN_PROCESS_NOISE = 3.0f;
+    /** The jitter floor is this fraction of the current accuracy. */
+    private static final float JITTER_FACTOR = 0.5f;
+    /** Move the origin once we get this far from it, in meters. */
+    private static final double MAX_ORIGIN_DISTANCE = 20000.0;
+    /** How far back to look to judge speed from position, in milliseconds. */
+    public static final long STATIONARY_WINDOW = 10000;
+    /** Don't judge speed from position over any less time than this. */
+    private static final long MIN_STATIONARY_SPAN = 2000;
+    /** How many past positions to keep for that. */
+    private static final int HISTORY_SIZE = 16;
+
+    private float mTriggerDistance;
+
+    // Filter state, in meters from the origin on a flat local plane.
+    private boolean mHasOrigin;
+    private double mOriginLat;
+    private double mOriginLon;
+    private double mLonScale;
+
+    private boolean mHasFix;
+    private long mLastTime;
+    private double mX;
+    private double mY;
+    private double mVariance;
+
+    // The last few filtered positions, oldest first starting at mHistoryStart,
+    // for fixes that don't come with a speed.
+    private long[] mHistoryTimes = new long[HISTORY_SIZE];
+    private double[] mHistoryX = new double[HISTORY_SIZE];
+    private double[] mHistoryY = new double[HISTORY_SIZE];
+    private int mHistoryStart;
+    private int mHistoryCount;
+
+    // The last point on the path that got counted.
+    private boolean mHasAnchor;
+    private double mAnchorX;
+    private double mAnchorY;
+
+    private double mTotal;
+    private double mSinceTrigger;
+    private boolean mStationary;
+    private boolean mFirstTrigger = true;
+
+    private long mFixCount;
+    private long mRejectedCount;
+    private long mStationaryCount;
+
+    /**
+     * Builds an Odometer.
+     *
+     * @param triggerDistance distance between pictures, in meters
+     */
+    public Odometer(float triggerDistance) {
+        mTriggerDistance = triggerDistance;
+    }
+
+    /**
+     * Resets everything, for when we're starting a whole new trip.
+     */
+    public void reset() {
+        mHasOrigin = false;
+        mHasFix = false;
+        mHasAnchor = false;
+        mHistoryCount = 0;
+        mTotal = 0;
+        mSinceTrigger = 0;
+        mStationary = false;
+        mFirstTrigger = true;
+        mFixCount = 0;
+        mRejectedCount = 0;
+        mStationaryCount = 0;
+    }
+
+    /**
+     * Breaks the path, for when we're resuming after a pause.  Whatever
+     * distance gets covered between the last fix and the next one doesn't get
+     * counted, but everything else stays put.
+     */
+    public void breakPath() {
+        mHasFix = false;
+        mHasAnchor = false;
+        mHistoryCount = 0;
+    }
+
+    /**
+     * Feeds in a new fix.
+     *
+     * @param time time of the fix, in milliseconds
+     * @param latitude latitude, in degrees
+     * @param longitude longitude, in degrees
+     * @param accuracy accuracy radius in meters, or zero or less if unknown
+     * @param speed speed in m/s, or less than zero if unknown
+     * @return true if it's time to take a picture
+     */
+    public boolean update(long time, double latitude, double longitude, float accuracy, float speed) {
+        mFixCount++;
+
+        if(accuracy <= 0) accuracy = DEFAULT_ACCURACY;
+        if(accuracy > MAX_ACCURACY) {
+            mRejectedCount++;
+            return false;
+        }
+
+        if(!mHasOrigin) {
+            mOriginLat = latitude;
+            mOriginLon = longitude;
+            mLonScale = Math.cos(Math.toRadians(latitude));
+            mHasOrigin = true;
+        }
+
+        double measX = (longitude - mOriginLon) * mLonScale * METERS_PER_DEGREE;
+        double measY = (latitude - mOriginLat) * METERS_PER_DEGREE;
+        double measVariance = accuracy * accuracy;
+
+        if(!mHasFix || time <= mLastTime) {
+            // First one (or the clock went backwards, which happens).  Just
+            // take it as-is.  Whatever positions we had to judge speed by
+            // don't line up with this one anymore.
+            mHistoryCount = 0;
+            mX = measX;
+            mY = measY;
+            mVariance = measVariance;
+        } else {
+            // The faster we're going, the farther we could have gotten since
+            // the last fix, so the less the old estimate is worth.  If we were
+            // stopped as of the last fix, we can't have gotten far, so a fix
+            // that jumps off somewhere (buildings do that) barely moves us.
+            double dt = (time - mLastTime) / 1000.0;
+            double q = mStationary ? STATIONARY_SPEED : Math.max(MIN_PROCESS_NOISE, speed);
+            mVariance += dt * q * q;
+
+            double gain = mVariance / (mVariance + measVariance);
+            mX += gain * (measX - mX);
+            mY += gain * (measY - mY);
+            mVariance *= (1 - gain);
+        }
+        mHasFix = true;
+        mLastTime = time;
+
+        // Are we going anywhere?  If the fix knows its speed, trust that.
+        // If not, see how far we've gotten lately.
+        if(speed >= 0) {
+            mStationary = speed < STATIONARY_SPEED;
+        } else {
+            mStationary = recentSpeed(time) < STATIONARY_SPEED;
+        }
+        remember(time);
+
+        if(!mHasAnchor) {
+            mAnchorX = mX;
+            mAnchorY = mY;
+            mHasAnchor = true;
+        } else if(mStationary) {
+            // Sitting still.  Drag the anchor along with the noise so none of
+            // it gets counted once we get going again.
+            mStationaryCount++;
+            mAnchorX = mX;
+            mAnchorY = mY;
+        } else {
+            double dx = mX - mAnchorX;
+            double dy = mY - mAnchorY;
+            double step = Math.sqrt((dx * dx) + (dy * dy));
+
+            // Wait until we've gotten farther than the noise could account
+            // for before counting anything.
+            if(step >= accuracy * JITTER_FACTOR) {
+                mTotal += step;
+                mSinceTrigger += step;
+                mAnchorX = mX;
+                mAnchorY = mY;
+            }
+        }
+
+        // A flat plane is fine for a few kilometers, but not for a whole
+        // road trip.  Every so often, move the origin to where we are now.
+        if(Math.abs(mX) > MAX_ORIGIN_DISTANCE || Math.abs(mY) > MAX_ORIGIN_DISTANCE) {
+            recenter();
+        }
+
+        if(mFirstTrigger) {
+            // Always get a picture right at the start.
+            mFirstTrigger = false;
+            return true;
+        }
+
+        if(mSinceTrigger >= mTriggerDistance) {
+            // If we came out of a tunnel a kilometer later, that's still just
+            // one picture.
+            mSinceTrigger %= mTriggerDistance;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Works out how fast the filtered position has been moving, going back
+     * about STATIONARY_WINDOW.  Drift wanders back and forth, so over a few
+     * seconds it doesn't get far; actually driving does.
+     *
+     * @param time time of the current fix
+     * @return the speed in m/s, or infinity if there's not enough history
+     */
+    private double recentSpeed(long time) {
+        // Find the newest position that's at least a window old.  If nothing's
+        // that old (fixes coming in fast, or we just started), settle for the
+        // oldest we've got.
+        int found = -1;
+        for(int i = mHistoryCount - 1; i >= 0; i--) {
+            int index = (mHistoryStart + i) % HISTORY_SIZE;
+            found = index;
+            if(time - mHistoryTimes[index] >= STATIONARY_WINDOW) break;
+        }
+        if(found < 0 || time - mHistoryTimes[found] < MIN_STATIONARY_SPAN) return Double.POSITIVE_INFINITY;
+
+        double dx = mX - mHistoryX[found];
+        double dy = mY - mHistoryY[found];
+        return Math.sqrt((dx * dx) + (dy * dy)) * 1000.0 / (time - mHistoryTimes[found]);
+    }
+
+    private void remember(long time) {
+        int index;
+        if(mHistoryCount < HISTORY_SIZE) {
+            index = (mHistoryStart + mHistoryCount) % HISTORY_SIZE;
+            mHistoryCount++;
+        } else {
+            index = mHistoryStart;
+            mHistoryStart = (mHistoryStart + 1) % HISTORY_SIZE;
+        }
+        mHistoryTimes[index] = time;
+        mHistoryX[index] = mX;
+        mHistoryY[index] = mY;
+    }
+
+    private void recenter() {
+        double newLat = mOriginLat + (mY / METERS_PER_DEGREE);
+        double newLon = mOriginLon + (mX / (mLonScale * METERS_PER_DEGREE));
+        double newScale = Math.cos(Math.toRadians(newLat));
+
+        // The anchor's only ever a few meters from the filtered position, so
+        // it just moves along with it.
+        mAnchorX = (mAnchorX - mX) * (newScale / mLonScale);
+        mAnchorY = mAnchorY - mY;
+        for(int i = 0; i < mHistoryCount; i++) {
+            int index = (mHistoryStart + i) % HISTORY_SIZE;
+            mHistoryX[index] = (mHistoryX[index] - mX) * (newScale / mLonScale);
+            mHistoryY[index] -= mY;
+        }
+
+        mOriginLat = newLat;
+        mOriginLon = newLon;
+        mLonScale = newScale;
+        mX = 0;
+        mY = 0;
+    }
+
+    /**
+     * Gets the total filtered distance traveled.
+     *
+     * @return the distance, in meters
+     */
+    public double getTotalDistance() {
+        return mTotal;
+    }
+
+    /**
+     * Gets how much farther we have to go before the next picture.
+     *
+     * @return the distance, in meters
+     */
+    public double getDistanceToTrigger() {
+        return Math.max(0, mTriggerDistance - mSinceTrigger);
+    }
+
+    /**
+     * Gets the distance between pictures.
+     *
+     * @return the trigger distance, in meters
+     */
+    public float getTriggerDistance() {
+        return mTriggerDistance;
+    }
+
+    /**
+     * Checks if the last fix looked like we were stopped.
+     *
+     * @return true if stationary
+     */
+    public boolean isStationary() {
+        return mStationary;
+    }
+
+    /**
+     * Gets how many fixes have been fed in since the last reset.
+     *
+     * @return the fix count
+     */
+    public long getFixCount() {
+        return mFixCount;
+    }
+
+    /**
+     * Gets how many fixes were thrown out for being too inaccurate.
+     *
+     * @return the rejected count
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Gets how many fixes came in while we were stopped.
+     *
+     * @return the stationary count
+     */
+    public long getStationaryCount() {
+        return mStationaryCount;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * OfflineReverseGeocoder.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The OfflineReverseGeocoder answers lookups out of a SpatialIndex on local
+ * storage, which means it works just fine in the middle of nowhere with zero
+ * bars.  It only knows about whatever road is closest, so it won't give you
+ * house numbers, but that's all the Annotator draws anyway.
+ *
+ * @author Nicholas Killewald
+ */
+public class OfflineReverseGeocoder implements ReverseGeocoder {
+    /** The name of the index file, if one's been put on the SD card. */
+    public static final String INDEX_FILENAME = "geoindex.dlgi";
+
+    /** How far from a road we can be and still say we're on it, in meters. */
+    public static final int DEFAULT_MAX_DISTANCE = 250;
+
+    private SpatialIndex mIndex;
+    private int mMaxDistance;
+
+    // Consecutive frames tend to be on the same road, so the last answer gets
+    // remembered to save making a new Place every time.
+    private int mLastSegment = -1;
+    private Place mLastPlace;
+
+    public OfflineReverseGeocoder(File indexFile) throws IOException {
+        this(indexFile, DEFAULT_MAX_DISTANCE);
+    }
+
+    public OfflineReverseGeocoder(File indexFile, int maxDistance) throws IOException {
+        mIndex = new SpatialIndex(indexFile);
+        mMaxDistance = maxDistance;
+    }
+
+    @Override
+    public synchronized Place lookup(double latitude, double longitude) {
+        int segment = mIndex.findNearestSegment(
+                (int)Math.round(latitude * 1000000.0),
+                (int)Math.round(longitude * 1000000.0),
+                mMaxDistance);
+
+        if(segment < 0) return null;
+
+        if(segment != mLastSegment) {
+            mLastSegment = segment;
+            mLastPlace = new Place(
+                    mIndex.getString(mIndex.getThoroughfare(segment)),
+                    mIndex.getString(mIndex.getLocality(segment)),
+                    mIndex.getString(mIndex.getAdminArea(segment)));
+        }
+
+        return mLastPlace;
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * OverlayTemplate.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * An OverlayTemplate says what info boxes go where on a frame.  It gets read
+ * from a little text file (see res/raw/overlay_default.txt for the format),
+ * so the layout can change without touching any code.
+ *
+ * A template isn't used directly to draw.  Instead, it gets compiled for a
+ * specific frame size into a Compiled overlay, which has every box's position
+ * worked out ahead of time.  After that, each frame just sets the field values
+ * (only the ones that changed get measured again) and draws, which comes to
+ * one rectangle and one string per field.
+ *
+ * @author Nicholas Killewald
+ */
+public class OverlayTemplate {
+    /** Latitude and longitude. */
+    public static final int FIELD_COORDINATES = 0;
+    /** Date and time of the fix. */
+    public static final int FIELD_DATETIME = 1;
+    /** Road name. */
+    public static final int FIELD_THOROUGHFARE = 2;
+    /** City and state, or "location unknown" if there's no Place at all. */
+    public static final int FIELD_LOCALITY = 3;
+    /** Fixed text, straight from the template. */
+    public static final int FIELD_TEXT = 4;
+
+    public static final int ANCHOR_BOTTOM_LEFT = 0;
+    public static final int ANCHOR_BOTTOM_RIGHT = 1;
+    public static final int ANCHOR_TOP_LEFT = 2;
+    public static final int ANCHOR_TOP_RIGHT = 3;
+
+    private static final String[] FIELD_NAMES = { "coordinates", "datetime", "thoroughfare", "locality" };
+    private static final String[] ANCHOR_NAMES = { "bottom_left", "bottom_right", "top_left", "top_right" };
+
+    // These are all fractions of the frame height.
+    private float mTextSize = 0.03125f;
+    private float mBoxHeight = 0.0416667f;
+    private float mBoxPadding = 0.0052083f;
+    private float mBoxMargin = 0.0208333f;
+
+    private List<Entry> mEntries = new ArrayList<Entry>();
+
+    private static class Entry {
+        int field;
+        int anchor;
+        int row;
+        String text;
+    }
+
+    /**
+     * Reads a template.
+     *
+     * @param in where the template comes from
+     * @return the template
+     * @throws IOException the template couldn't be read, or is malformed
+     */
+    public static OverlayTemplate parse(Reader in) throws IOException {
+        OverlayTemplate template = new OverlayTemplate();
+        BufferedReader reader = new BufferedReader(in);
+
+        String line;
+        int lineNumber = 0;
+        while((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if(line.length() == 0 || line.startsWith("#")) continue;
+
+            String[] parts = line.split("\\s+", 2);
+            String key = parts[0];
+            String value = parts.length > 1 ? parts[1] : "";
+
+            try {
+                if(key.equals("text_size")) {
+                    template.mTextSize = Float.parseFloat(value);
+                } else if(key.equals("box_height")) {
+                    template.mBoxHeight = Float.parseFloat(value);
+                } else if(key.equals("box_padding")) {
+                    template.mBoxPadding = Float.parseFloat(value);
+                } else if(key.equals("box_margin")) {
+                    template.mBoxMargin = Float.parseFloat(value);
+                } else if(key.equals("field")) {
+                    template.mEntries.add(parseField(value));
+                } else {
+                    throw new IOException("unknown setting " + key);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + ": bad number: " + e.getMessage());
+            } catch (IOException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+
+        return template;
+    }
+
+    private static Entry parseField(String value) throws IOException {
+        // The field name can be text with spaces in it, so the anchor and row
+        // get pulled off the end instead.
+        String[] parts = value.split("\\s+");
+        if(parts.length < 3) throw new IOException("field needs a name, an anchor, and a row");
+
+        Entry entry = new Entry();
+        entry.row = Integer.parseInt(parts[parts.length - 1]);
+        entry.anchor = indexOf(ANCHOR_NAMES, parts[parts.length - 2]);
+        if(entry.anchor < 0) throw new IOException("unknown anchor " + parts[parts.length - 2]);
+
+        String name = value.substring(0, value.lastIndexOf(parts[parts.length - 2])).trim();
+        if(name.startsWith("text:")) {
+            entry.field = FIELD_TEXT;
+            entry.text = name.substring(5);
+        } else {
+            entry.field = indexOf(FIELD_NAMES, name);
+            if(entry.field < 0) throw new IOException("unknown field " + name);
+        }
+
+        return entry;
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for(int i = 0; i < names.length; i++) {
+            if(names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Works out where everything goes on a frame of the given size.
+     *
+     * @param width frame width
+     * @param height frame height
+     * @param textPaint Paint to draw the text with; its text size gets set
+     * @param backgroundPaint Paint to draw the boxes with
+     * @return a Compiled overlay, ready to draw
+     */
+    public Compiled compile(int width, int height, Paint textPaint, Paint backgroundPaint) {
+        return new Compiled(this, width, height, textPaint, backgroundPaint);
+    }
+
+    /**
+     * A Compiled overlay is a template worked out for one frame size.  It's a
+     * flat list of boxes with everything but their widths already known.  It
+     * isn't thread-safe; each thread drawing overlays wants its own.
+     */
+    public static class Compiled {
+        private int mWidth;
+        private int mHeight;
+        private int mBoxMargin;
+        private int mBoxPadding;
+
+        private Paint mTextPaint;
+        private Paint mBackgroundPaint;
+
+        // One of each of these per draw op.
+        private int mOpCount;
+        private int[] mField;
+        private boolean[] mRight;
+        private int[] mTop;
+        private int[] mBottom;
+        private int[] mTextY;
+        private String[] mText;
+        private int[] mTextRight;
+
+        private Rect mBounds = new Rect();
+
+        private Compiled(OverlayTemplate template, int width, int height, Paint textPaint, Paint backgroundPaint) {
+            mWidth = width;
+            mHeight = height;
+            mTextPaint = textPaint;
+            mBackgroundPaint = backgroundPaint;
+
+            mTextPaint.setTextSize(Math.round(template.mTextSize * height));
+            int boxHeight = Math.round(template.mBoxHeight * height);
+            mBoxPadding = Math.round(template.mBoxPadding * height);
+            mBoxMargin = Math.round(template.mBoxMargin * height);
+
+            mOpCount = template.mEntries.size();
+            mField = new int[mOpCount];
+            mRight = new boolean[mOpCount];
+            mTop = new int[mOpCount];
+            mBottom = new int[mOpCount];
+            mTextY = new int[mOpCount];
+            mText = new String[mOpCount];
+            mTextRight = new int[mOpCount];
+
+            for(int i = 0; i < mOpCount; i++) {
+                Entry entry = template.mEntries.get(i);
+                mField[i] = entry.field;
+                mRight[i] = entry.anchor == ANCHOR_BOTTOM_RIGHT || entry.anchor == ANCHOR_TOP_RIGHT;
+
+                if(entry.anchor == ANCHOR_TOP_LEFT || entry.anchor == ANCHOR_TOP_RIGHT) {
+                    // Rows count down from the top.
+                    mTop[i] = mBoxMargin + (boxHeight * entry.row);
+                } else {
+                    // Rows count up from the bottom.
+                    mTop[i] = height - mBoxMargin - (boxHeight * (entry.row + 1));
+                }
+                mBottom[i] = mTop[i] + boxHeight;
+                mTextY[i] = mBottom[i] - (2 * mBoxPadding);
+
+                // Fixed text never changes, so it might as well get measured
+                // right now.
+                if(entry.field == FIELD_TEXT) setText(i, entry.text);
+            }
+        }
+
+        /**
+         * Gets the frame width this was compiled for.
+         *
+         * @return the width
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * Gets the frame height this was compiled for.
+         *
+         * @return the height
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Sets the value of a field.  If it's the same as last time, nothing
+         * happens; otherwise, it gets measured.
+         *
+         * @param field one of the FIELD_ statics (but not FIELD_TEXT)
+         * @param value the new value, or null to not draw that field at all
+         */
+        public void setField(int field, String value) {
+            for(int i = 0; i < mOpCount; i++) {
+                if(mField[i] == field) setText(i, value);
+            }
+        }
+
+        private void setText(int op, String value) {
+            if(value == null ? mText[op] == null : value.equals(mText[op])) return;
+
+            mText[op] = value;
+            if(value != null) {
+                mTextPaint.getTextBounds(value, 0, value.length(), mBounds);
+                mTextRight[op] = mBounds.right;
+            }
+        }
+
+        /**
+         * Says whether anything would get drawn between two rows, for when
+         * the frame's being drawn a band at a time.
+         *
+         * @param top first row
+         * @param bottom one past the last row
+         * @return true if any box overlaps those rows
+         */
+        public boolean intersects(int top, int bottom) {
+            for(int i = 0; i < mOpCount; i++) {
+                if(mText[i] != null && mTop[i] < bottom && mBottom[i] > top) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Draws the overlay.
+         *
+         * @param canvas Canvas to draw on, which should be the size this was
+         *               compiled for
+         */
+        public void draw(Canvas canvas) {
+            for(int i = 0; i < mOpCount; i++) {
+                if(mText[i] == null) continue;
+
+                if(mRight[i]) {
+                    canvas.drawRect(mWidth - (mBoxMargin * 2) - mTextRight[i], mTop[i],
+                            mWidth - mBoxMargin, mBottom[i], mBackgroundPaint);
+                    canvas.drawText(mText[i], mWidth - mBoxPadding - mTextRight[i] - mBoxMargin,
+                            mTextY[i], mTextPaint);
+                } else {
+                    canvas.drawRect(mBoxMargin, mTop[i],
+                            (mBoxMargin * 2) + mTextRight[i], mBottom[i], mBackgroundPaint);
+                    canvas.drawText(mText[i], mBoxMargin + mBoxPadding, mTextY[i], mTextPaint);
+                }
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ public class PictureTaker {
     private String mPackageName;
     private String mDirName;
     private Context mContext;
+    private volatile boolean mDeferOverlay;
 
     public PictureTaker(String packageName, Context context) {
         mPackageName = packageName;
@@ -75,6 +76,36 @@ public class PictureTaker {
         }
     }
     
+    /**
+     * Gets the directory this session's pictures (and anything else about the
+     * session) go in.
+     * 
+     * @return the current directory, with a trailing slash, or null if
+     *         restart() hasn't been called yet
+     */
+    public String getDirName() {
+        return mDirName;
+    }
+    
+    /**
+     * Sets whether pictures taken from here on should put off their overlays
+     * until a batch run (see FrameProcessor.EXTRA_DEFER).
+     * 
+     * @param defer true to put them off, false to draw them during the drive
+     */
+    public void setDeferOverlay(boolean defer) {
+        mDeferOverlay = defer;
+    }
+    
+    /**
+     * Gets whether pictures are putting off their overlays.
+     * 
+     * @return true if they are
+     */
+    public boolean getDeferOverlay() {
+        return mDeferOverlay;
+    }
+    
     /**
      * Gets a SinglePicture handle, prepped with the given Location and the
      * current directory name.
@@ -83,7 +114,19 @@ public class PictureTaker {
      * @return a SinglePicture, of course
      */
     public SinglePicture getPictureHandle(Location loc) {
-        return new SinglePicture(loc, mDirName, mContext);
+        return new SinglePicture(loc, -1, mDirName, mContext, mDeferOverlay);
+    }
+    
+    /**
+     * Gets a SinglePicture handle, prepped with the given Location, how far
+     * along the trip it is, and the current directory name.
+     * 
+     * @param loc Location of choice
+     * @param distance distance along the trip, in meters
+     * @return a SinglePicture, of course
+     */
+    public SinglePicture getPictureHandle(Location loc, double distance) {
+        return new SinglePicture(loc, distance, mDirName, mContext, mDeferOverlay);
     }
     
     /**
@@ -96,22 +139,39 @@ public class PictureTaker {
     public class SinglePicture implements Camera.PictureCallback {
         
         private Location mLocation;
+        private double mDistance;
         private String mDirName;
         private Context mContext;
+        private boolean mDefer;
         
         /**
          * Constructs a SinglePicture with the given Location, ready for action.
          * 
          * @param loc Location at which this picture took place.
+         * @param distance distance along the trip, or negative if unknown
+         * @param defer whether to put off the overlay until a batch run
          */
-        private SinglePicture(Location loc, String dirName, Context context) {
+        private SinglePicture(Location loc, double distance, String dirName, Context context, boolean defer) {
             mLocation = loc;
+            mDistance = distance;
             mDirName = dirName;
             mContext = context;
+            mDefer = defer;
         }
 
         @Override
         public void onPictureTaken(byte[] data, Camera camera) {
+            save(data);
+            camera.startPreview();
+        }
+        
+        /**
+         * Writes the picture out and sends it down the line, without touching
+         * the camera.  Whoever calls this has to restart the preview.
+         * 
+         * @param data the JPEG
+         */
+        public void save(byte[] data) {
             String filename = mDirName + mLocation.getTime() + ".jpg";
             File output = new File(filename);
             try {
@@ -122,6 +182,10 @@ public class PictureTaker {
                 ostream.close();
                 
                 AssemblyLine.WorkOrder order = new AssemblyLine.WorkOrder(filename, mLocation);
+                if(mDistance >= 0)
+                    order.getExtraData().putDouble(DistanceIndex.EXTRA_DISTANCE, mDistance);
+                if(mDefer)
+                    order.getExtraData().putBoolean(FrameProcessor.EXTRA_DEFER, true);
                 Intent i = new Intent(mContext, AssemblyLine.class);
                 i.putExtra(AssemblyLine.WORK_ORDER, order);
                 mContext.startService(i);
@@ -129,7 +193,6 @@ public class PictureTaker {
                 Log.e(DEBUG_TAG, "EXCEPTION!");
                 e.printStackTrace();
             }
-            camera.startPreview();
         }
         
     }
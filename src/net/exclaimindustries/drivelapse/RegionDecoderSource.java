@@ -0,0 +1,106 @@
+/**
+ * RegionDecoderSource.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+/**
+ * A RegionDecoderSource is a RegionSource on top of BitmapRegionDecoder,
+ * which is how the phone gets at a band of a JPEG without decoding the whole
+ * thing.  Bands get decoded into the same Bitmap every time, as long as
+ * they're the same size, so it doesn't matter how many there are.
+ *
+ * @author Nicholas Killewald
+ */
+public class RegionDecoderSource implements RegionSource {
+    private BitmapRegionDecoder mDecoder;
+    private BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private Rect mRect = new Rect();
+
+    /** The last band, to decode the next one into. */
+    private Bitmap mBand;
+
+    /**
+     * Opens a JPEG.
+     *
+     * @param fileLocation the JPEG's file
+     * @throws IOException it couldn't be opened
+     */
+    public RegionDecoderSource(String fileLocation) throws IOException {
+        // Sharing means it can hold on to the file instead of copying it into
+        // memory, which is the whole point.
+        mDecoder = BitmapRegionDecoder.newInstance(fileLocation, true);
+        if(mDecoder == null) throw new IOException("Couldn't open " + fileLocation + " for region decoding");
+        mOptions.inMutable = true;
+        mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public int getWidth() {
+        return mDecoder.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mDecoder.getHeight();
+    }
+
+    /**
+     * Decodes a band of rows, all the way across, into a mutable Bitmap.  The
+     * Bitmap's only good until the next band gets decoded, and it belongs to
+     * this; don't recycle it.
+     *
+     * @param top first row
+     * @param rows how many rows
+     * @return the band
+     * @throws IOException the band couldn't be decoded
+     */
+    public Bitmap decodeBand(int top, int rows) throws IOException {
+        mRect.set(0, top, getWidth(), top + rows);
+
+        // The last band's usually shorter than the rest, which means it can't
+        // go in the same Bitmap.  It's just the one, though.
+        boolean reuse = mBand != null && mBand.getHeight() == rows;
+        mOptions.inBitmap = reuse ? mBand : null;
+
+        Bitmap band;
+        try {
+            band = mDecoder.decodeRegion(mRect, mOptions);
+        } catch (IllegalArgumentException e) {
+            // Some decoders won't reuse a Bitmap at all.
+            mOptions.inBitmap = null;
+            band = mDecoder.decodeRegion(mRect, mOptions);
+        }
+        if(band == null) throw new IOException("Couldn't decode rows " + top + " to " + (top + rows));
+
+        if(band != mBand) {
+            if(mBand != null) mBand.recycle();
+            mBand = band;
+        }
+        return band;
+    }
+
+    @Override
+    public void read(int top, int rows, int[] pixels) throws IOException {
+        decodeBand(top, rows).getPixels(pixels, 0, getWidth(), 0, 0, getWidth(), rows);
+    }
+
+    @Override
+    public void close() {
+        if(mBand != null) {
+            mBand.recycle();
+            mBand = null;
+        }
+        mDecoder.recycle();
+    }
+}
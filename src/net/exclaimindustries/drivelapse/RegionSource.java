@@ -0,0 +1,53 @@
+/**
+ * RegionSource.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.IOException;
+
+/**
+ * A RegionSource hands out a frame a band of rows at a time, without ever
+ * decoding the whole thing at once.  That way, how much memory it takes to
+ * work on a frame depends on how wide it is and how tall the bands are, not
+ * on how many megapixels the camera has.
+ *
+ * On the phone, that's a RegionDecoderSource.  Anything else (ImageIO on a
+ * desktop, say) just needs to be able to do the same thing.
+ *
+ * @author Nicholas Killewald
+ */
+public interface RegionSource {
+    /**
+     * Gets the frame's width.
+     *
+     * @return the width
+     */
+    public int getWidth();
+
+    /**
+     * Gets the frame's height.
+     *
+     * @return the height
+     */
+    public int getHeight();
+
+    /**
+     * Reads a band of rows, all the way across.
+     *
+     * @param top first row
+     * @param rows how many rows
+     * @param pixels where the pixels go, as ARGB, row by row, with no gaps
+     *               between rows
+     * @throws IOException the band couldn't be decoded
+     */
+    public void read(int top, int rows, int[] pixels) throws IOException;
+
+    /**
+     * Lets go of whatever the source was holding on to.
+     */
+    public void close();
+}
@@ -0,0 +1,258 @@
+/**
+ * Resizer.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.exclaimindustries.drivelapse.AssemblyLine.WorkOrder;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * The Resizer makes smaller copies of each frame while the full-size one is
+ * still decoded in memory, so nothing down the line (a downscaled movie, a
+ * gallery) ever has to decode the full-size JPEGs again.  Each size goes in
+ * its own subdirectory of the session, named after its height.  The smallest
+ * one is a thumbnail, which goes in the session's ThumbnailPack instead.
+ *
+ * Each size gets made from the one before it, halving with filtering along the
+ * way, which is both cheaper and better-looking than scaling the full-size
+ * frame straight down to a thumbnail.  Sizes bigger than the frame itself get
+ * skipped.
+ *
+ * Frames too big to decode all at once come through in bands instead.  Each
+ * band gets halved a few times and drawn into its spot on the biggest copy,
+ * and once they've all gone by, everything else is made from that copy like
+ * usual.
+ *
+ * This should go after anything that draws on the frame, so the copies get
+ * the drawing too.
+ *
+ * @author Nicholas Killewald
+ */
+public class Resizer extends AssemblyLine.Station {
+    private static final String DEBUG_TAG = "Resizer";
+
+    /** Heights of the copies that get written as separate files. */
+    public static final int[] HEIGHTS = { 720, 360 };
+    /** Height of the thumbnail. */
+    public static final int THUMBNAIL_HEIGHT = 96;
+
+    private static final int JPEG_QUALITY = 85;
+    private static final int THUMBNAIL_QUALITY = 75;
+
+    // Thumbnails are small, so this gets reused instead of made every time.
+    private ByteArrayOutputStream mThumbBuffer = new ByteArrayOutputStream(16 * 1024);
+
+    // For frames done a band at a time, the biggest copy gets built up here
+    // as the bands go by.
+    private Bitmap mTarget;
+    private Canvas mTargetCanvas;
+    private Paint mBandPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private Rect mBandRect = new Rect();
+
+    @Override
+    public boolean processOrder(WorkOrder order) {
+        Bitmap full = order.getBitmap();
+        if(full == null) return false;
+
+        return resize(order, full);
+    }
+
+    @Override
+    public boolean canProcessBands() {
+        return true;
+    }
+
+    @Override
+    public boolean beginBands(WorkOrder order) {
+        int frameWidth = order.getFrameWidth();
+        int frameHeight = order.getFrameHeight();
+
+        // The biggest copy that's smaller than the frame is the only one that
+        // has to come from the bands; everything else comes from that, same
+        // as always.
+        int height = THUMBNAIL_HEIGHT;
+        for(int h : HEIGHTS) {
+            if(h < frameHeight) {
+                height = h;
+                break;
+            }
+        }
+        height = Math.min(height, frameHeight);
+        int width = Math.max(1, Math.round((float)frameWidth * height / frameHeight));
+
+        // If the last frame fell over halfway through, its copy's still here.
+        if(mTarget != null) mTarget.recycle();
+        mTarget = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mTargetCanvas = new Canvas(mTarget);
+        return true;
+    }
+
+    @Override
+    public void processBand(WorkOrder order) {
+        if(mTarget == null) return;
+
+        Bitmap band = order.getBitmap();
+        int top = order.getBandTop();
+        int rows = band.getHeight();
+        float scale = (float)mTarget.getHeight() / order.getFrameHeight();
+
+        // Halve the band first, like downscale does, so the filtering doesn't
+        // just skip over most of the pixels.  Bands are a multiple of 16 rows
+        // (except maybe the last one), so a few halvings come out even.
+        Bitmap current = band;
+        for(int i = 0; i < 4 && scale * 2 <= (float)current.getHeight() / rows
+                && current.getWidth() >= 2 && current.getHeight() >= 2; i++) {
+            Bitmap half = Bitmap.createScaledBitmap(current,
+                    current.getWidth() / 2, current.getHeight() / 2, true);
+            if(current != band) current.recycle();
+            current = half;
+        }
+
+        mBandRect.set(0, Math.round(top * scale), mTarget.getWidth(), Math.round((top + rows) * scale));
+        mTargetCanvas.drawBitmap(current, null, mBandRect, mBandPaint);
+        if(current != band) current.recycle();
+    }
+
+    @Override
+    public boolean endBands(WorkOrder order) {
+        if(mTarget == null) return false;
+
+        boolean success = true;
+        try {
+            File source = new File(order.getFileLocation());
+            for(int height : HEIGHTS) {
+                if(height == mTarget.getHeight()) success &= writeCopy(source, height, mTarget);
+            }
+            success &= resize(order, mTarget);
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Couldn't write a resized copy of " + order.getFileLocation() + "!");
+            e.printStackTrace();
+            success = false;
+        } finally {
+            mTarget.recycle();
+            mTarget = null;
+            mTargetCanvas = null;
+        }
+
+        return success;
+    }
+
+    /**
+     * Writes every copy smaller than the given bitmap, plus the thumbnail.
+     */
+    private boolean resize(WorkOrder order, Bitmap full) {
+        File source = new File(order.getFileLocation());
+        File dir = source.getParentFile();
+
+        Bitmap current = full;
+        boolean success = true;
+
+        try {
+            for(int height : HEIGHTS) {
+                if(height >= current.getHeight()) continue;
+
+                Bitmap next = downscale(current, height);
+                if(current != full) current.recycle();
+                current = next;
+
+                if(!writeCopy(source, height, current)) success = false;
+            }
+
+            // Last but not least, the thumbnail.
+            if(THUMBNAIL_HEIGHT < current.getHeight()) {
+                Bitmap thumb = downscale(current, THUMBNAIL_HEIGHT);
+                if(current != full) current.recycle();
+                current = thumb;
+            }
+
+            mThumbBuffer.reset();
+            current.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, mThumbBuffer);
+            ThumbnailPack.append(dir, ThumbnailPack.keyFor(order.getFileLocation()),
+                    mThumbBuffer.toByteArray(), mThumbBuffer.size());
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Couldn't write a resized copy of " + source + "!");
+            e.printStackTrace();
+            success = false;
+        } finally {
+            if(current != full) current.recycle();
+        }
+
+        return success;
+    }
+
+    /**
+     * Writes one copy in the subdirectory for its height.
+     */
+    private static boolean writeCopy(File source, int height, Bitmap copy) throws IOException {
+        File subdir = new File(source.getParentFile(), String.valueOf(height));
+        if(!subdir.isDirectory() && !subdir.mkdirs()) {
+            Log.e(DEBUG_TAG, "Couldn't make " + subdir + "!");
+            return false;
+        }
+
+        FileOutputStream ostream = new FileOutputStream(new File(subdir, source.getName()));
+        try {
+            copy.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, ostream);
+        } finally {
+            ostream.close();
+        }
+        return true;
+    }
+
+    /**
+     * Scales a bitmap down to the given height, keeping the aspect ratio.  It
+     * gets halved for as long as that doesn't go under the target, then scaled
+     * the rest of the way.
+     *
+     * @param source bitmap to scale; this doesn't get recycled
+     * @param height height to scale to
+     * @return a new, smaller bitmap
+     */
+    private static Bitmap downscale(Bitmap source, int height) {
+        Bitmap current = source;
+
+        while(current.getHeight() / 2 >= height) {
+            Bitmap half = Bitmap.createScaledBitmap(current,
+                    current.getWidth() / 2, current.getHeight() / 2, true);
+            if(current != source) current.recycle();
+            current = half;
+        }
+
+        if(current.getHeight() == height) return current;
+
+        int width = Math.round((float)current.getWidth() * height / current.getHeight());
+        Bitmap result = Bitmap.createScaledBitmap(current, width, height, true);
+        if(current != source) current.recycle();
+        return result;
+    }
+
+    @Override
+    public String getConfig() {
+        return Arrays.toString(HEIGHTS) + " " + THUMBNAIL_HEIGHT + " " + JPEG_QUALITY + " " + THUMBNAIL_QUALITY;
+    }
+
+    @Override
+    public boolean drawsOnFrame() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return "Resizer";
+    }
+}
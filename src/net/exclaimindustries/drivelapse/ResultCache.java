@@ -0,0 +1,178 @@
+/**
+ * ResultCache.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ResultCache remembers what each Station last did to each frame in a
+ * session, so running a frame through again (a retry after a crash, a batch
+ * re-run, a setting that only one Station cares about) can skip whatever
+ * wouldn't come out any different.
+ *
+ * What it remembers is a key: a hash of everything that went into the
+ * Station's result.  That's the original capture's bytes and location, plus
+ * the name, version, and config of the Station and every drawing Station
+ * before it (see Station.drawsOnFrame).  If the key's the same as last time,
+ * so's the result.
+ *
+ * It's a plain text file, one line per Station run: the frame's filename, the
+ * Station's name, and the key, separated by tabs.  Later lines win.  The whole
+ * thing gets read in when the cache is made, which is a few dozen bytes per
+ * frame per Station, so that's fine even for long trips.
+ *
+ * @author Nicholas Killewald
+ */
+public class ResultCache {
+    public static final String FILENAME = "results.txt";
+
+    private File mDir;
+    private Map<String, String> mKeys = new HashMap<String, String>();
+
+    /**
+     * Reads the cache in the given directory.  If there isn't one, it starts
+     * out empty.
+     *
+     * @param dir session directory
+     * @throws IOException the cache couldn't be read
+     */
+    public ResultCache(File dir) throws IOException {
+        mDir = dir;
+
+        File file = new File(dir, FILENAME);
+        if(!file.exists()) return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                // A line that got cut off just doesn't count.
+                if(parts.length != 3 || parts[2].length() != 40) continue;
+                mKeys.put(parts[0] + "\t" + parts[1], parts[2]);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Gets the session directory this cache is for.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return mDir;
+    }
+
+    /**
+     * Gets the key a Station's last result on a frame had.
+     *
+     * @param frame the frame's filename (no directories)
+     * @param station the Station's name
+     * @return the key, or null if that Station's never finished that frame
+     */
+    public String get(String frame, String station) {
+        return mKeys.get(frame + "\t" + station);
+    }
+
+    /**
+     * Remembers the key of a Station's result on a frame.
+     *
+     * @param frame the frame's filename (no directories)
+     * @param station the Station's name
+     * @param key the key
+     * @throws IOException the cache couldn't be written
+     */
+    public void put(String frame, String station, String key) throws IOException {
+        String line = frame + "\t" + station + "\t" + key + "\n";
+
+        // Batch runs have a few of these going on the same directory at once.
+        // They're all working on different frames, so their maps don't need to
+        // agree, but their lines had better not interleave.
+        synchronized(ResultCache.class) {
+            FileOutputStream ostream = new FileOutputStream(new File(mDir, FILENAME), true);
+            try {
+                ostream.write(line.getBytes("UTF-8"));
+            } finally {
+                ostream.close();
+            }
+        }
+
+        mKeys.put(frame + "\t" + station, key);
+    }
+
+    /**
+     * Hashes a bunch of things together into a key.
+     *
+     * @param parts things to hash (their toString()s, really)
+     * @return the key, as 40 hex digits
+     */
+    public static String hash(Object... parts) {
+        MessageDigest digest = newDigest();
+        try {
+            for(Object part : parts) {
+                // The separator keeps "ab" + "c" from looking like "a" + "bc".
+                digest.update(String.valueOf(part).getBytes("UTF-8"));
+                digest.update((byte)0);
+            }
+        } catch (IOException e) {
+            // UTF-8 is always there.
+            throw new RuntimeException(e);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hashes a file's contents.
+     *
+     * @param file file to hash
+     * @return the hash, as 40 hex digits
+     * @throws IOException the file couldn't be read
+     */
+    public static String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while((read = in.read(buffer)) > 0) digest.update(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java ever has SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * ReverseGeocoder.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.IOException;
+
+/**
+ * A ReverseGeocoder turns a latitude and longitude into something a human can
+ * read.  The Annotator doesn't care whether that comes from the network
+ * Geocoder or from an index sitting on the SD card, so long as it comes back as
+ * a Place.
+ *
+ * @author Nicholas Killewald
+ */
+public interface ReverseGeocoder {
+    /**
+     * Looks up whatever is at the given coordinates.  This is synchronous, and
+     * may well block for a while if there's a network involved.
+     *
+     * @param latitude latitude, in degrees
+     * @param longitude longitude, in degrees
+     * @return the Place at those coordinates, or null if the lookup worked but
+     *         there's nothing known there
+     * @throws IOException the lookup itself failed (no data connection, index
+     *                     went away, etc) and might work if tried again later
+     */
+    public Place lookup(double latitude, double longitude) throws IOException;
+
+    /**
+     * A Place is the bare minimum of address data the Annotator draws.  It's
+     * immutable, so implementations are free to hand the same one out more
+     * than once.
+     *
+     * @author Nicholas Killewald
+     */
+    public static class Place {
+        private final String mThoroughfare;
+        private final String mLocality;
+        private final String mAdminArea;
+
+        public Place(String thoroughfare, String locality, String adminArea) {
+            mThoroughfare = thoroughfare;
+            mLocality = locality;
+            mAdminArea = adminArea;
+        }
+
+        /**
+         * Gets the road name (or whatever passes for one here).
+         *
+         * @return the thoroughfare, which may be null
+         */
+        public String getThoroughfare() {
+            return mThoroughfare;
+        }
+
+        /**
+         * Gets the city, town, or similar.
+         *
+         * @return the locality, which may be null
+         */
+        public String getLocality() {
+            return mLocality;
+        }
+
+        /**
+         * Gets the state, province, or similar.
+         *
+         * @return the admin area, which may be null
+         */
+        public String getAdminArea() {
+            return mAdminArea;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * SamplingScheduler.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+/**
+ * The SamplingScheduler decides how often we need a GPS fix.  Asking for one
+ * every second (or as fast as the chip can go, which is what minTime=0 means)
+ * on a four-hour drive keeps the GPS and the CPU cooking the whole time, and a
+ * hot phone is a slow phone.
+ *
+ * The Odometer needs a few fixes per trigger distance to follow curves, so
+ * the interval comes from how long it'll take to cover a trigger distance at
+ * the current speed.  As we get close to the next trigger, it tightens up so
+ * the picture lands where it should.  When we're stopped, it backs off, up to
+ * a ceiling, until we get moving again.
+ *
+ * Like the Odometer, nothing here is Android-specific.
+ *
+ * @author Nicholas Killewald
+ */
+public class SamplingScheduler {
+    /** Fastest we'll ask for fixes, in milliseconds. */
+    public static final long MIN_INTERVAL = 1000;
+    /** Slowest we'll ask for fixes while moving, in milliseconds. */
+    public static final long MAX_MOVING_INTERVAL = 5000;
+    /** Slowest we'll ask for fixes while stopped, in milliseconds. */
+    public static final long MAX_STATIONARY_INTERVAL = 15000;
+    /** How many fixes we want per trigger distance. */
+    public static final int FIXES_PER_TRIGGER = 4;
+
+    /**
+     * Don't bother changing the interval unless it's changed by at least this
+     * factor.  Re-requesting updates isn't free, either.
+     */
+    private static final double HYSTERESIS = 1.5;
+
+    /** The old way, for comparison: a fix every second. */
+    private static final long BASELINE_INTERVAL = 1000;
+
+    private long mInterval = MIN_INTERVAL;
+
+    private long mActiveTime;
+    private long mActiveSince = -1;
+    private long mFixCount;
+    private long mProcessingNanos;
+
+    /**
+     * Gets the interval we're currently asking for.
+     *
+     * @return the interval, in milliseconds
+     */
+    public long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * Works out a new interval based on the latest fix.
+     *
+     * @param speed current speed in m/s, or less than zero if unknown
+     * @param stationary true if the Odometer thinks we're stopped
+     * @param distanceToTrigger how far to the next picture, in meters
+     * @param triggerDistance distance between pictures, in meters
+     * @return true if the interval changed enough that updates should be
+     *         re-requested with getInterval()
+     */
+    public boolean update(float speed, boolean stationary, double distanceToTrigger, float triggerDistance) {
+        long wanted;
+
+        if(stationary) {
+            // Stopped.  Back off a bit more every fix we're still stopped.
+            wanted = Math.min(mInterval * 2, MAX_STATIONARY_INTERVAL);
+        } else if(speed <= 0) {
+            // Moving, but we don't know how fast.  Play it safe.
+            wanted = MIN_INTERVAL;
+        } else {
+            // Enough fixes per trigger to follow the road...
+            double perTrigger = (triggerDistance / speed) * 1000.0 / FIXES_PER_TRIGGER;
+            wanted = (long)Math.min(perTrigger, MAX_MOVING_INTERVAL);
+
+            // ...and tighter still as the next picture gets close, so we don't
+            // overshoot it by a whole interval.
+            double untilTrigger = (distanceToTrigger / speed) * 1000.0;
+            wanted = (long)Math.min(wanted, untilTrigger / 2);
+
+            wanted = Math.max(wanted, MIN_INTERVAL);
+        }
+
+        double ratio = (double)wanted / mInterval;
+        if(ratio >= HYSTERESIS || ratio <= 1 / HYSTERESIS
+                || (wanted == MIN_INTERVAL && mInterval != MIN_INTERVAL)) {
+            mInterval = wanted;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Marks the start of a stretch of recording.
+     *
+     * @param now current time, in milliseconds
+     */
+    public void start(long now) {
+        mInterval = MIN_INTERVAL;
+        if(mActiveSince < 0) mActiveSince = now;
+    }
+
+    /**
+     * Marks the end of a stretch of recording.
+     *
+     * @param now current time, in milliseconds
+     */
+    public void stop(long now) {
+        if(mActiveSince >= 0) {
+            mActiveTime += now - mActiveSince;
+            mActiveSince = -1;
+        }
+    }
+
+    /**
+     * Resets all the statistics, for a new trip.
+     */
+    public void reset() {
+        mActiveTime = 0;
+        mActiveSince = -1;
+        mFixCount = 0;
+        mProcessingNanos = 0;
+        mInterval = MIN_INTERVAL;
+    }
+
+    /**
+     * Notes that a fix came in, and how long we spent dealing with it.
+     *
+     * @param processingNanos time spent handling the fix, in nanoseconds
+     */
+    public void countFix(long processingNanos) {
+        mFixCount++;
+        mProcessingNanos += processingNanos;
+    }
+
+    /**
+     * Gets how many fixes per hour we've actually been getting.
+     *
+     * @param now current time, in milliseconds
+     * @return fixes per hour
+     */
+    public double getFixesPerHour(long now) {
+        long active = getActiveTime(now);
+        return active <= 0 ? 0 : mFixCount * 3600000.0 / active;
+    }
+
+    /**
+     * Gets how many fixes we didn't have to deal with compared to getting one
+     * every second the whole time.
+     *
+     * @param now current time, in milliseconds
+     * @return fixes saved
+     */
+    public long getFixesSaved(long now) {
+        return Math.max(0, (getActiveTime(now) / BASELINE_INTERVAL) - mFixCount);
+    }
+
+    /**
+     * Estimates how much CPU time got saved by not handling those fixes, going
+     * by how long the ones we did handle took.  This doesn't count the GPS chip
+     * itself getting to idle, which is the bigger win, but is harder to
+     * measure from in here.
+     *
+     * @param now current time, in milliseconds
+     * @return estimated CPU time saved, in milliseconds
+     */
+    public long getCpuTimeSaved(long now) {
+        if(mFixCount == 0) return 0;
+        return (getFixesSaved(now) * (mProcessingNanos / mFixCount)) / 1000000;
+    }
+
+    private long getActiveTime(long now) {
+        return mActiveTime + (mActiveSince >= 0 ? now - mActiveSince : 0);
+    }
+}
@@ -0,0 +1,739 @@
+/**
+ * SessionExporter.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import net.exclaimindustries.drivelapse.ReverseGeocoder.Place;
+import net.exclaimindustries.drivelapse.TrackRecorder.Fix;
+
+/**
+ * The SessionExporter writes a session's frames and track out as GPX, KML, or
+ * GeoJSON, so the route can go into anything else that does maps.  Each frame
+ * becomes a point with its file, time, distance along the trip, and whatever
+ * address it got annotated with; the track becomes a line.
+ *
+ * Everything's streamed straight through, in one pass: the frames come off
+ * the distance index (or the AnnotationSidecar, if there isn't one), their
+ * locations come from walking the track alongside them, their addresses come
+ * off the sidecar, and it all gets written out as it goes.  The track only
+ * gets read that once, so its points go into spool files on the way by and
+ * get copied in after the frames.  Nothing's ever built up in memory, so a
+ * trip of a few days exports in the same space as one of a few minutes.
+ * (Putting the sidecar in frame order, if it isn't already, is the exception;
+ * see AnnotationSidecar.sort.)  Frames on the DuplicateList are left out, and
+ * sessions with neither a distance index nor a sidecar just get their track.
+ *
+ * None of this touches Android, so it works the same on the phone (see
+ * BatchProcessor) as it does on a desktop:
+ *
+ * <pre>
+ * java net.exclaimindustries.drivelapse.SessionExporter gpx sessiondir [output]
+ * </pre>
+ *
+ * @author Nicholas Killewald
+ */
+public class SessionExporter {
+    public static final int FORMAT_GPX = 0;
+    public static final int FORMAT_KML = 1;
+    public static final int FORMAT_GEOJSON = 2;
+
+    /** File extensions (and names, for formatFor) of the formats, in order. */
+    public static final String[] EXTENSIONS = { "gpx", "kml", "geojson" };
+
+    /** How far a track fix can be from a frame's time and still count. */
+    private static final long MAX_TRACK_GAP = 30000;
+
+    private File mDir;
+    private int mFormat;
+
+    private int mFrameCount;
+    private int mSkippedCount;
+    private int mDuplicateCount;
+    private long mFixCount;
+
+    /** Keys of the frames the DuplicateGate tagged. */
+    private long[] mDuplicates;
+
+    /**
+     * Makes a SessionExporter.
+     *
+     * @param dir session directory
+     * @param format one of the FORMAT_ statics
+     */
+    public SessionExporter(File dir, int format) {
+        mDir = dir;
+        mFormat = format;
+    }
+
+    /**
+     * Gets the format with the given name.
+     *
+     * @param name format name (gpx, kml, or geojson; case doesn't matter)
+     * @return one of the FORMAT_ statics, or -1 if it's not one we know
+     */
+    public static int formatFor(String name) {
+        for(int i = 0; i < EXTENSIONS.length; i++) {
+            if(EXTENSIONS[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Exports the session.
+     *
+     * @param out where to write it; this doesn't get closed
+     * @throws IOException something couldn't be read or written
+     */
+    public void export(Writer out) throws IOException {
+        mFrameCount = 0;
+        mSkippedCount = 0;
+        mDuplicateCount = 0;
+        mFixCount = 0;
+        mDuplicates = DuplicateList.read(mDir);
+
+        Sink sink;
+        switch(mFormat) {
+            case FORMAT_GPX:
+                sink = new GpxSink(out, mDir);
+                break;
+            case FORMAT_KML:
+                sink = new KmlSink(out, mDir);
+                break;
+            case FORMAT_GEOJSON:
+                sink = new GeoJsonSink(out, mDir);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format " + mFormat);
+        }
+
+        // The sidecar's read a frame at a time in key order, which it might
+        // not be in if a batch run redid anything since.
+        AnnotationSidecar.sort(mDir);
+
+        TrackReader track = TrackReader.exists(mDir) ? new TrackReader(mDir) : null;
+        FrameCursor frames = new File(mDir, DistanceIndex.FILENAME).exists()
+                ? new IndexCursor(mDir) : new SidecarCursor(mDir);
+        AnnotationSidecar.Reader annotations = new AnnotationSidecar.Reader(mDir);
+
+        try {
+            sink.begin(mDir.getName(),
+                    track != null ? track.getStartTime() : -1,
+                    track != null ? track.getEndTime() : -1);
+            writeFrames(sink, frames, track, annotations);
+            if(mFixCount > 0) sink.endTrack();
+            sink.end();
+            out.flush();
+        } finally {
+            if(track != null) track.close();
+            frames.close();
+            annotations.close();
+            sink.close();
+        }
+    }
+
+    /**
+     * Goes through the track once, writing out each frame as soon as it's
+     * found the fix closest to it, and handing every fix to the Sink for the
+     * track.
+     */
+    private void writeFrames(final Sink sink, final FrameCursor frames, TrackReader track,
+            final AnnotationSidecar.Reader annotations) throws IOException {
+        final boolean[] moreFrames = { frames.next() };
+
+        if(track == null) {
+            // No track, no locations.  No point, either.
+            while(moreFrames[0]) {
+                mSkippedCount++;
+                moreFrames[0] = frames.next();
+            }
+            return;
+        }
+
+        final IOException[] error = new IOException[1];
+        final Fix prev = new Fix();
+        final boolean[] havePrev = new boolean[1];
+
+        track.readAll(new TrackReader.Callback() {
+            @Override
+            public boolean onFix(Fix fix) {
+                try {
+                    // Every frame up to this fix is between it and the last
+                    // one, so it goes with whichever one's closer.
+                    while(moreFrames[0] && frames.getTime() <= fix.getTime()) {
+                        if(havePrev[0] && frames.getTime() - prev.getTime() < fix.getTime() - frames.getTime()) {
+                            writeFrame(sink, frames, prev, annotations);
+                        } else {
+                            writeFrame(sink, frames, fix, annotations);
+                        }
+                        moreFrames[0] = frames.next();
+                    }
+
+                    sink.trackPoint(fix);
+                    mFixCount++;
+                } catch (IOException e) {
+                    error[0] = e;
+                    return false;
+                }
+
+                copy(fix, prev);
+                havePrev[0] = true;
+                return true;
+            }
+        });
+        if(error[0] != null) throw error[0];
+
+        // Anything after the end of the track goes with the last fix.
+        while(moreFrames[0]) {
+            if(havePrev[0]) {
+                writeFrame(sink, frames, prev, annotations);
+            } else {
+                mSkippedCount++;
+            }
+            moreFrames[0] = frames.next();
+        }
+    }
+
+    private void writeFrame(Sink sink, FrameCursor frame, Fix fix, AnnotationSidecar.Reader annotations)
+            throws IOException {
+        if(DuplicateList.contains(mDuplicates, frame.getKey())) {
+            mDuplicateCount++;
+            return;
+        }
+
+        if(Math.abs(fix.getTime() - frame.getTime()) > MAX_TRACK_GAP) {
+            mSkippedCount++;
+            return;
+        }
+
+        AnnotationSidecar.Record record = annotations.get(frame.getKey());
+        sink.frame(frame.getKey() + ".jpg", frame.getTime(), fix.getLatitude(), fix.getLongitude(),
+                frame.getDistance(), record == null ? null : record.getPlace());
+        mFrameCount++;
+    }
+
+    private static void copy(Fix from, Fix to) {
+        to.clear();
+        to.setTime(from.getTime());
+        to.setLatitude(from.getLatitude());
+        to.setLongitude(from.getLongitude());
+        if(from.hasAltitude()) to.setAltitude(from.getAltitude());
+    }
+
+    /**
+     * Gets how many frames got exported last time.
+     *
+     * @return the count
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Gets how many frames got left out last time, for not having a track fix
+     * anywhere near them.
+     *
+     * @return the count
+     */
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Gets how many frames got left out last time for being duplicates.
+     *
+     * @return the count
+     */
+    public int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * Gets how many track fixes got exported last time.
+     *
+     * @return the count
+     */
+    public long getFixCount() {
+        return mFixCount;
+    }
+
+    /**
+     * A FrameCursor walks through a session's frames in time order.
+     */
+    private interface FrameCursor {
+        /**
+         * Moves to the next frame.
+         *
+         * @return false if there aren't any more
+         * @throws IOException the frames couldn't be read
+         */
+        public boolean next() throws IOException;
+
+        public long getKey();
+
+        public long getTime();
+
+        /**
+         * @return distance along the trip, or NaN if it's not known
+         */
+        public double getDistance();
+
+        public void close() throws IOException;
+    }
+
+    private static class IndexCursor implements FrameCursor {
+        private DistanceIndex.Reader mIndex;
+        private int mPosition = -1;
+
+        private IndexCursor(File dir) throws IOException {
+            mIndex = new DistanceIndex.Reader(dir);
+        }
+
+        public boolean next() {
+            return ++mPosition < mIndex.getCount();
+        }
+
+        public long getKey() {
+            return mIndex.getKey(mPosition);
+        }
+
+        public long getTime() {
+            return mIndex.getTime(mPosition);
+        }
+
+        public double getDistance() {
+            return mIndex.getDistance(mPosition);
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Without a distance index, every frame that got annotated is still in
+     * the sidecar, time and all, one line at a time.  Keys are GPS times (see
+     * PictureTaker), so key order is time order.
+     */
+    private static class SidecarCursor implements FrameCursor {
+        private AnnotationSidecar.Reader mSidecar;
+
+        private SidecarCursor(File dir) throws IOException {
+            mSidecar = new AnnotationSidecar.Reader(dir);
+        }
+
+        public boolean next() throws IOException {
+            return mSidecar.next();
+        }
+
+        public long getKey() {
+            return mSidecar.getKey();
+        }
+
+        public long getTime() {
+            return mSidecar.getRecord().getTime();
+        }
+
+        public double getDistance() {
+            return Double.NaN;
+        }
+
+        public void close() throws IOException {
+            mSidecar.close();
+        }
+    }
+
+    /**
+     * A Sink is one export format.  It gets told about everything in order:
+     * begin, every frame and track point as they come along, endTrack, end.
+     * The track points come in mixed in with the frames, since the track only
+     * gets read once, but every format wants the track all in one piece.  So
+     * they go into spool files (see spool), and endTrack copies those in.
+     */
+    private abstract static class Sink {
+        protected Writer mOut;
+        private File mSpoolDir;
+        private File[] mSpoolFiles;
+        private Writer[] mSpools;
+        private SimpleDateFormat mDateFormat;
+        private Date mDate = new Date();
+
+        /**
+         * @param out where the export goes
+         * @param spoolDir where to put spool files
+         * @param spools how many spool files this format needs
+         */
+        protected Sink(Writer out, File spoolDir, int spools) {
+            mOut = out;
+            mSpoolDir = spoolDir;
+            mSpoolFiles = new File[spools];
+            mSpools = new Writer[spools];
+            mDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            mDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        public abstract void begin(String name, long startTime, long endTime) throws IOException;
+
+        public abstract void frame(String file, long time, double latitude, double longitude,
+                double distance, Place place) throws IOException;
+
+        public abstract void trackPoint(Fix fix) throws IOException;
+
+        /**
+         * Writes out the whole track, from the spools.  This only gets called
+         * if there were any track points.
+         */
+        public abstract void endTrack() throws IOException;
+
+        public abstract void end() throws IOException;
+
+        /**
+         * Gets a spool file to write to, making it if need be.
+         *
+         * @param which which spool
+         * @return a Writer for it
+         */
+        protected Writer spool(int which) throws IOException {
+            if(mSpools[which] == null) {
+                mSpoolFiles[which] = File.createTempFile("export", ".spool", mSpoolDir);
+                mSpools[which] = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(mSpoolFiles[which]), "UTF-8"));
+            }
+            return mSpools[which];
+        }
+
+        /**
+         * Copies a spool file into the export and gets rid of it.
+         *
+         * @param which which spool
+         */
+        protected void copySpool(int which) throws IOException {
+            if(mSpools[which] == null) return;
+
+            mSpools[which].close();
+            mSpools[which] = null;
+            Reader in = new InputStreamReader(new FileInputStream(mSpoolFiles[which]), "UTF-8");
+            try {
+                char[] buffer = new char[8192];
+                int read;
+                while((read = in.read(buffer)) > 0) mOut.write(buffer, 0, read);
+            } finally {
+                in.close();
+            }
+            mSpoolFiles[which].delete();
+            mSpoolFiles[which] = null;
+        }
+
+        /**
+         * Gets rid of any spool files that are still around, which there will
+         * be if something went wrong.
+         */
+        public void close() {
+            for(int i = 0; i < mSpools.length; i++) {
+                if(mSpools[i] != null) {
+                    try {
+                        mSpools[i].close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    mSpools[i] = null;
+                }
+                if(mSpoolFiles[i] != null) {
+                    mSpoolFiles[i].delete();
+                    mSpoolFiles[i] = null;
+                }
+            }
+        }
+
+        protected String time(long time) {
+            mDate.setTime(time);
+            return mDateFormat.format(mDate);
+        }
+
+        /**
+         * Formats a number without any exponents, which XML schemas tend to
+         * choke on.
+         */
+        protected static String number(double value, int decimals) {
+            return String.format(Locale.US, "%." + decimals + "f", value);
+        }
+
+        protected static String address(Place place) {
+            if(place == null) return null;
+
+            StringBuilder sb = new StringBuilder();
+            if(place.getThoroughfare() != null) sb.append(place.getThoroughfare());
+            if(place.getLocality() != null) {
+                if(sb.length() > 0) sb.append(", ");
+                sb.append(place.getLocality());
+            }
+            if(place.getAdminArea() != null) {
+                if(sb.length() > 0) sb.append(", ");
+                sb.append(place.getAdminArea());
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        }
+
+        protected static String xml(String s) {
+            StringBuilder sb = new StringBuilder(s.length());
+            for(int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch(c) {
+                    case '<': sb.append("&lt;"); break;
+                    case '>': sb.append("&gt;"); break;
+                    case '&': sb.append("&amp;"); break;
+                    case '"': sb.append("&quot;"); break;
+                    case '\'': sb.append("&apos;"); break;
+                    default: sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+
+        protected static String json(String s) {
+            if(s == null) return "null";
+
+            StringBuilder sb = new StringBuilder(s.length() + 2);
+            sb.append('"');
+            for(int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch(c) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if(c < 0x20) {
+                            sb.append(String.format(Locale.US, "\\u%04x", (int)c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+            return sb.toString();
+        }
+    }
+
+    private static class GpxSink extends Sink {
+        private GpxSink(Writer out, File spoolDir) {
+            super(out, spoolDir, 1);
+        }
+
+        @Override
+        public void begin(String name, long startTime, long endTime) throws IOException {
+            mOut.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            mOut.write("<gpx version=\"1.1\" creator=\"DriveLapse\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n");
+            mOut.write("<metadata><name>" + xml(name) + "</name>");
+            if(startTime >= 0) mOut.write("<time>" + time(startTime) + "</time>");
+            mOut.write("</metadata>\n");
+        }
+
+        @Override
+        public void frame(String file, long time, double latitude, double longitude,
+                double distance, Place place) throws IOException {
+            // GPX is picky about the order of these.
+            mOut.write("<wpt lat=\"" + number(latitude, 7) + "\" lon=\"" + number(longitude, 7) + "\">");
+            mOut.write("<time>" + time(time) + "</time>");
+            mOut.write("<name>" + xml(file) + "</name>");
+            if(!Double.isNaN(distance)) mOut.write("<cmt>" + number(distance, 1) + " m</cmt>");
+            String address = address(place);
+            if(address != null) mOut.write("<desc>" + xml(address) + "</desc>");
+            mOut.write("<link href=\"" + xml(file) + "\"/>");
+            mOut.write("</wpt>\n");
+        }
+
+        @Override
+        public void trackPoint(Fix fix) throws IOException {
+            Writer spool = spool(0);
+            spool.write("<trkpt lat=\"" + number(fix.getLatitude(), 7) + "\" lon=\"" + number(fix.getLongitude(), 7) + "\">");
+            if(fix.hasAltitude()) spool.write("<ele>" + number(fix.getAltitude(), 1) + "</ele>");
+            spool.write("<time>" + time(fix.getTime()) + "</time>");
+            spool.write("</trkpt>\n");
+        }
+
+        @Override
+        public void endTrack() throws IOException {
+            // The waypoints have to come before the track in GPX, which is
+            // why the track's spooled and not the frames.
+            mOut.write("<trk><name>Track</name><trkseg>\n");
+            copySpool(0);
+            mOut.write("</trkseg></trk>\n");
+        }
+
+        @Override
+        public void end() throws IOException {
+            mOut.write("</gpx>\n");
+        }
+    }
+
+    private static class KmlSink extends Sink {
+        private long mStartTime;
+        private long mEndTime;
+
+        private KmlSink(Writer out, File spoolDir) {
+            super(out, spoolDir, 1);
+        }
+
+        @Override
+        public void begin(String name, long startTime, long endTime) throws IOException {
+            mStartTime = startTime;
+            mEndTime = endTime;
+            mOut.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            mOut.write("<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n");
+            mOut.write("<name>" + xml(name) + "</name>\n");
+        }
+
+        @Override
+        public void frame(String file, long time, double latitude, double longitude,
+                double distance, Place place) throws IOException {
+            mOut.write("<Placemark><name>" + xml(file) + "</name>");
+            String address = address(place);
+            if(address != null) mOut.write("<description>" + xml(address) + "</description>");
+            mOut.write("<TimeStamp><when>" + time(time) + "</when></TimeStamp>");
+            mOut.write("<ExtendedData><Data name=\"file\"><value>" + xml(file) + "</value></Data>");
+            if(!Double.isNaN(distance)) {
+                mOut.write("<Data name=\"distance\"><value>" + number(distance, 1) + "</value></Data>");
+            }
+            mOut.write("</ExtendedData>");
+            mOut.write("<Point><coordinates>" + number(longitude, 7) + "," + number(latitude, 7)
+                    + "</coordinates></Point></Placemark>\n");
+        }
+
+        @Override
+        public void trackPoint(Fix fix) throws IOException {
+            Writer spool = spool(0);
+            spool.write(number(fix.getLongitude(), 7) + "," + number(fix.getLatitude(), 7));
+            if(fix.hasAltitude()) spool.write("," + number(fix.getAltitude(), 1));
+            spool.write("\n");
+        }
+
+        @Override
+        public void endTrack() throws IOException {
+            mOut.write("<Placemark><name>Track</name>");
+            mOut.write("<TimeSpan><begin>" + time(mStartTime) + "</begin><end>" + time(mEndTime) + "</end></TimeSpan>");
+            mOut.write("<LineString><tessellate>1</tessellate><coordinates>\n");
+            copySpool(0);
+            mOut.write("</coordinates></LineString></Placemark>\n");
+        }
+
+        @Override
+        public void end() throws IOException {
+            mOut.write("</Document></kml>\n");
+        }
+    }
+
+    private static class GeoJsonSink extends Sink {
+        private boolean mFirstFeature = true;
+        private boolean mFirstPoint = true;
+
+        private GeoJsonSink(Writer out, File spoolDir) {
+            super(out, spoolDir, 2);
+        }
+
+        @Override
+        public void begin(String name, long startTime, long endTime) throws IOException {
+            mOut.write("{\"type\":\"FeatureCollection\",\"name\":" + json(name) + ",\"features\":[\n");
+        }
+
+        private void nextFeature() throws IOException {
+            if(!mFirstFeature) mOut.write(",\n");
+            mFirstFeature = false;
+        }
+
+        @Override
+        public void frame(String file, long time, double latitude, double longitude,
+                double distance, Place place) throws IOException {
+            nextFeature();
+            mOut.write("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":["
+                    + number(longitude, 7) + "," + number(latitude, 7) + "]},\"properties\":{");
+            mOut.write("\"file\":" + json(file));
+            mOut.write(",\"time\":" + json(time(time)));
+            if(!Double.isNaN(distance)) mOut.write(",\"distance\":" + number(distance, 1));
+            if(place != null) {
+                mOut.write(",\"thoroughfare\":" + json(place.getThoroughfare()));
+                mOut.write(",\"locality\":" + json(place.getLocality()));
+                mOut.write(",\"adminArea\":" + json(place.getAdminArea()));
+            }
+            mOut.write("}}");
+        }
+
+        /**
+         * The coordinates go in one spool and their times (for the usual
+         * coordTimes property) in the other, as they don't go in the same
+         * part of the feature.
+         */
+        @Override
+        public void trackPoint(Fix fix) throws IOException {
+            Writer coordinates = spool(0);
+            Writer times = spool(1);
+            if(!mFirstPoint) {
+                coordinates.write(",\n");
+                times.write(",\n");
+            }
+            mFirstPoint = false;
+
+            coordinates.write("[" + number(fix.getLongitude(), 7) + "," + number(fix.getLatitude(), 7));
+            if(fix.hasAltitude()) coordinates.write("," + number(fix.getAltitude(), 1));
+            coordinates.write("]");
+            times.write(json(time(fix.getTime())));
+        }
+
+        @Override
+        public void endTrack() throws IOException {
+            nextFeature();
+            mOut.write("{\"type\":\"Feature\",\"geometry\":{\"type\":\"LineString\",\"coordinates\":[\n");
+            copySpool(0);
+            mOut.write("]},\n\"properties\":{\"name\":\"Track\",\"coordTimes\":[\n");
+            copySpool(1);
+            mOut.write("]}}");
+        }
+
+        @Override
+        public void end() throws IOException {
+            mOut.write("\n]}\n");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2 || args.length > 3 || formatFor(args[0]) < 0) {
+            System.err.println("Usage: SessionExporter <gpx|kml|geojson> <sessiondir> [output]");
+            System.exit(1);
+        }
+
+        int format = formatFor(args[0]);
+        File dir = new File(args[1]);
+        File output = args.length > 2 ? new File(args[2]) : new File(dir, dir.getName() + "." + EXTENSIONS[format]);
+
+        long start = System.currentTimeMillis();
+        SessionExporter exporter = new SessionExporter(dir, format);
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+        try {
+            exporter.export(out);
+        } finally {
+            out.close();
+        }
+
+        System.out.println("Exported " + exporter.getFrameCount() + " frames ("
+                + exporter.getSkippedCount() + " skipped, " + exporter.getDuplicateCount()
+                + " duplicates) and " + exporter.getFixCount()
+                + " fixes to " + output + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * SessionLog.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+/**
+ * The SessionLog is what's behind the little console at the bottom of the
+ * screen.  Appending to a TextView forever means it gets bigger and slower
+ * with every line, and it has to happen on the UI thread, so instead, lines go
+ * into a fixed-size ring and the TextView gets redrawn from that no more than
+ * a few times a second.
+ *
+ * Any thread can write to it.  Writes just toss the text on a lock-free queue
+ * and ask for a refresh; the queue gets drained into the ring on the UI thread.
+ *
+ * @author Nicholas Killewald
+ */
+public class SessionLog {
+    /** How many lines to keep. */
+    public static final int MAX_LINES = 100;
+    /** Least time between refreshes, in milliseconds.  About 4fps. */
+    public static final long REFRESH_INTERVAL = 250;
+
+    private TextView mTextView;
+    private ScrollView mScroller;
+    private Handler mHandler;
+
+    private ConcurrentLinkedQueue<String> mPending = new ConcurrentLinkedQueue<String>();
+    private AtomicBoolean mRefreshScheduled = new AtomicBoolean(false);
+
+    // Everything below is only touched on the UI thread.
+    private String[] mLines = new String[MAX_LINES];
+    private int mFirstLine;
+    private int mLineCount;
+    /** The last line, if it didn't end in a newline yet. */
+    private StringBuilder mPartial = new StringBuilder();
+    private StringBuilder mText = new StringBuilder();
+
+    /**
+     * When the view was last refreshed.  This one's the exception: it's
+     * written on the UI thread but read by whoever's writing, so it's
+     * volatile.
+     */
+    private volatile long mLastRefresh;
+
+    private Runnable mRefresher = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    /**
+     * Builds a SessionLog.  This has to be done on the UI thread.
+     *
+     * @param textView the TextView the log is displayed in
+     * @param scroller the ScrollView that TextView's in
+     */
+    public SessionLog(TextView textView, ScrollView scroller) {
+        mTextView = textView;
+        mScroller = scroller;
+        mHandler = new Handler(Looper.getMainLooper());
+
+        // Whatever the layout started it off with stays at the top, at least
+        // until it scrolls off.
+        mPending.add(textView.getText().toString());
+    }
+
+    /**
+     * Writes some text to the log.  Newlines start new lines, and text without
+     * a trailing newline gets continued by the next write, same as if it were
+     * being appended to the TextView directly.  This is safe to call from any
+     * thread, and won't block.
+     *
+     * @param text text to write
+     */
+    public void write(String text) {
+        mPending.add(text);
+
+        // Only schedule a refresh if there isn't one coming already.
+        if(mRefreshScheduled.compareAndSet(false, true)) {
+            long wait = (mLastRefresh + REFRESH_INTERVAL) - SystemClock.uptimeMillis();
+            mHandler.postDelayed(mRefresher, Math.max(0, wait));
+        }
+    }
+
+    private void refresh() {
+        // Let the next write schedule another one.  Anything written between
+        // here and the drain gets picked up by this refresh, and might cause a
+        // harmless extra one later.
+        mRefreshScheduled.set(false);
+
+        String text;
+        while((text = mPending.poll()) != null) {
+            int start = 0;
+            int newline;
+            while((newline = text.indexOf('\n', start)) >= 0) {
+                mPartial.append(text, start, newline);
+                addLine(mPartial.toString());
+                mPartial.setLength(0);
+                start = newline + 1;
+            }
+            mPartial.append(text, start, text.length());
+        }
+
+        mText.setLength(0);
+        for(int i = 0; i < mLineCount; i++) {
+            mText.append(mLines[(mFirstLine + i) % MAX_LINES]).append('\n');
+        }
+        mText.append(mPartial);
+
+        mTextView.setText(mText);
+        mScroller.fullScroll(View.FOCUS_DOWN);
+
+        mLastRefresh = SystemClock.uptimeMillis();
+    }
+
+    private void addLine(String line) {
+        if(mLineCount < MAX_LINES) {
+            mLines[(mFirstLine + mLineCount) % MAX_LINES] = line;
+            mLineCount++;
+        } else {
+            // Full.  The oldest one goes.
+            mLines[mFirstLine] = line;
+            mFirstLine = (mFirstLine + 1) % MAX_LINES;
+        }
+    }
+}
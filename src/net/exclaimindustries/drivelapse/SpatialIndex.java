@@ -0,0 +1,277 @@
+/**
+ * SpatialIndex.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A SpatialIndex is a packed, read-only R-tree of road segments, memory-mapped
+ * straight off of disk.  The file itself gets made by SpatialIndexImporter.
+ * Lookups don't allocate anything (save for the first time a given string gets
+ * decoded), so they're cheap enough to do on every single frame.
+ *
+ * All coordinates in here are stored as integer microdegrees (that is, degrees
+ * times one million), which is roughly tenth-of-a-meter precision and plenty
+ * for figuring out what road we're on.
+ *
+ * The file layout, all big-endian ints:
+ *
+ * <pre>
+ * header:   magic, version, segmentCount, nodeCount, rootNode, stringCount,
+ *           segmentsOffset, nodesOffset, stringOffsetsOffset, stringDataOffset
+ * segments: lat1, lon1, lat2, lon2, thoroughfare, locality, adminArea
+ * nodes:    minLat, minLon, maxLat, maxLon, firstChild, childCount, isLeaf
+ * strings:  (stringCount + 1) offsets into the data block, then UTF-8 data
+ * </pre>
+ *
+ * A leaf node's children are segments, anything else's children are nodes.
+ * Either way, they're contiguous.  String indices of -1 mean "no data".
+ *
+ * @author Nicholas Killewald
+ */
+public class SpatialIndex {
+    static final int MAGIC = 0x444C4749; // "DLGI"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 10 * 4;
+    static final int SEGMENT_SIZE = 7 * 4;
+    static final int NODE_SIZE = 7 * 4;
+
+    /** Maximum children per node. */
+    static final int NODE_CAPACITY = 16;
+    /** Deepest tree we'll read; 16^16 segments ought to be enough for anyone. */
+    static final int MAX_DEPTH = 16;
+
+    /** Meters per microdegree of latitude, near enough. */
+    private static final double METERS_PER_E6 = 0.11132;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ByteBuffer mBuffer;
+
+    private int mSegmentCount;
+    private int mNodeCount;
+    private int mRootNode;
+    private int mStringCount;
+
+    private int mSegmentsOffset;
+    private int mNodesOffset;
+    private int mStringOffsetsOffset;
+    private int mStringDataOffset;
+
+    /** Decoded strings, filled in as they get asked for. */
+    private String[] mStrings;
+
+    /** Preallocated node stack for the tree walk. */
+    private int[] mStack;
+
+    /**
+     * Maps an index file into memory.  The file is closed right after; the
+     * mapping stays valid regardless.
+     *
+     * @param file index file, as written by SpatialIndexImporter
+     * @throws IOException the file couldn't be read or isn't an index
+     */
+    public SpatialIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        if(mBuffer.capacity() < HEADER_SIZE
+                || mBuffer.getInt(0) != MAGIC
+                || mBuffer.getInt(4) != VERSION) {
+            throw new IOException(file + " doesn't look like a version " + VERSION + " spatial index!");
+        }
+
+        mSegmentCount = mBuffer.getInt(8);
+        mNodeCount = mBuffer.getInt(12);
+        mRootNode = mBuffer.getInt(16);
+        mStringCount = mBuffer.getInt(20);
+        mSegmentsOffset = mBuffer.getInt(24);
+        mNodesOffset = mBuffer.getInt(28);
+        mStringOffsetsOffset = mBuffer.getInt(32);
+        mStringDataOffset = mBuffer.getInt(36);
+
+        mStrings = new String[mStringCount];
+        mStack = new int[NODE_CAPACITY * MAX_DEPTH + 1];
+    }
+
+    /**
+     * Gets how many road segments are in this index.
+     *
+     * @return the segment count
+     */
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * Finds the road segment closest to the given point.  This doesn't
+     * allocate anything, and is synchronized, as the tree walk uses a shared
+     * stack.
+     *
+     * @param latE6 latitude, in microdegrees
+     * @param lonE6 longitude, in microdegrees
+     * @param maxDistance don't bother with anything farther than this, in
+     *                    meters
+     * @return the index of the nearest segment, or -1 if nothing's in range
+     */
+    public synchronized int findNearestSegment(int latE6, int lonE6, int maxDistance) {
+        if(mRootNode < 0 || mNodeCount == 0) return -1;
+
+        // Longitude gets squashed as we go away from the equator.  We'll just
+        // assume it gets squashed the same amount everywhere near the point,
+        // which is close enough for anything short of a polar expedition.
+        double lonScale = Math.cos(Math.toRadians(latE6 / 1000000.0));
+
+        double limit = maxDistance / METERS_PER_E6;
+        double best = limit * limit;
+        int bestSegment = -1;
+
+        int top = 0;
+        mStack[top++] = mRootNode;
+
+        while(top > 0) {
+            int node = mStack[--top];
+            int base = mNodesOffset + (node * NODE_SIZE);
+
+            if(boxDistanceSquared(base, latE6, lonE6, lonScale) > best) continue;
+
+            int first = mBuffer.getInt(base + 16);
+            int count = mBuffer.getInt(base + 20);
+
+            if(mBuffer.getInt(base + 24) != 0) {
+                // Leaf!  Check each segment.
+                for(int i = first; i < first + count; i++) {
+                    double dist = segmentDistanceSquared(i, latE6, lonE6, lonScale);
+                    if(dist <= best) {
+                        best = dist;
+                        bestSegment = i;
+                    }
+                }
+            } else {
+                // Not a leaf.  Toss the children on the stack, if there's
+                // room.  There always should be, given MAX_DEPTH.
+                for(int i = first; i < first + count && top < mStack.length; i++) {
+                    mStack[top++] = i;
+                }
+            }
+        }
+
+        return bestSegment;
+    }
+
+    /**
+     * Gets the thoroughfare string index of a segment.
+     *
+     * @param segment segment index
+     * @return a string index, or -1 if there isn't one
+     */
+    public int getThoroughfare(int segment) {
+        return mBuffer.getInt(mSegmentsOffset + (segment * SEGMENT_SIZE) + 16);
+    }
+
+    /**
+     * Gets the locality string index of a segment.
+     *
+     * @param segment segment index
+     * @return a string index, or -1 if there isn't one
+     */
+    public int getLocality(int segment) {
+        return mBuffer.getInt(mSegmentsOffset + (segment * SEGMENT_SIZE) + 20);
+    }
+
+    /**
+     * Gets the admin area string index of a segment.
+     *
+     * @param segment segment index
+     * @return a string index, or -1 if there isn't one
+     */
+    public int getAdminArea(int segment) {
+        return mBuffer.getInt(mSegmentsOffset + (segment * SEGMENT_SIZE) + 24);
+    }
+
+    /**
+     * Gets a string out of the string table.  The first time any given string
+     * is asked for, it gets decoded and remembered; after that, it's free.
+     *
+     * @param index string index
+     * @return the string, or null if the index is -1 (or otherwise bogus)
+     */
+    public synchronized String getString(int index) {
+        if(index < 0 || index >= mStringCount) return null;
+
+        if(mStrings[index] == null) {
+            int start = mBuffer.getInt(mStringOffsetsOffset + (index * 4));
+            int end = mBuffer.getInt(mStringOffsetsOffset + ((index + 1) * 4));
+
+            byte[] bytes = new byte[end - start];
+            for(int i = 0; i < bytes.length; i++) {
+                bytes[i] = mBuffer.get(mStringDataOffset + start + i);
+            }
+            mStrings[index] = new String(bytes, UTF8);
+        }
+
+        return mStrings[index];
+    }
+
+    private double boxDistanceSquared(int base, int lat, int lon, double lonScale) {
+        int minLat = mBuffer.getInt(base);
+        int minLon = mBuffer.getInt(base + 4);
+        int maxLat = mBuffer.getInt(base + 8);
+        int maxLon = mBuffer.getInt(base + 12);
+
+        double dy = 0;
+        if(lat < minLat) dy = minLat - lat;
+        else if(lat > maxLat) dy = lat - maxLat;
+
+        double dx = 0;
+        if(lon < minLon) dx = (minLon - lon) * lonScale;
+        else if(lon > maxLon) dx = (lon - maxLon) * lonScale;
+
+        return (dx * dx) + (dy * dy);
+    }
+
+    private double segmentDistanceSquared(int segment, int lat, int lon, double lonScale) {
+        int base = mSegmentsOffset + (segment * SEGMENT_SIZE);
+
+        // Everything's relative to the point, so the point itself is at the
+        // origin.
+        double ay = mBuffer.getInt(base) - lat;
+        double ax = (mBuffer.getInt(base + 4) - lon) * lonScale;
+        double by = mBuffer.getInt(base + 8) - lat;
+        double bx = (mBuffer.getInt(base + 12) - lon) * lonScale;
+
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = (dx * dx) + (dy * dy);
+
+        // Project the origin onto the segment and clamp it to the ends.
+        double t = 0;
+        if(lengthSquared > 0) {
+            t = -((ax * dx) + (ay * dy)) / lengthSquared;
+            if(t < 0) t = 0;
+            else if(t > 1) t = 1;
+        }
+
+        double px = ax + (t * dx);
+        double py = ay + (t * dy);
+
+        return (px * px) + (py * py);
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * SpatialIndexImporter.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The SpatialIndexImporter turns a road extract into a SpatialIndex file.  It
+ * doesn't touch anything Android-specific, so it can be run on a desktop
+ * (there's a main method for just that) or on the phone itself.
+ *
+ * The input is plain CSV, one road segment per line:
+ *
+ * <pre>
+ * lat1,lon1,lat2,lon2,thoroughfare,locality,adminArea
+ * </pre>
+ *
+ * Coordinates are in decimal degrees.  Names can be double-quoted if they've
+ * got commas in them, and any of them can be empty.  Blank lines and lines
+ * starting with # are ignored.  Getting that CSV out of an OSM extract is left
+ * as an exercise for osmium or ogr2ogr; this doesn't read PBF itself.
+ *
+ * The tree gets built with Sort-Tile-Recursive packing, level by level, so
+ * every node is full except the last one on each level.
+ *
+ * @author Nicholas Killewald
+ */
+public class SpatialIndexImporter {
+    private static final int CAP = SpatialIndex.NODE_CAPACITY;
+
+    /**
+     * Reads CSV from the given Reader and writes an index to the given File.
+     * The whole extract gets held in memory while building, so this isn't the
+     * sort of thing you want to do with an entire continent on a phone.
+     *
+     * @param in CSV input
+     * @param out where the index goes
+     * @return the number of segments imported
+     * @throws IOException something went wrong reading or writing, or the CSV
+     *                     was malformed
+     */
+    public static int importCsv(Reader in, File out) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+
+        List<int[]> segments = new ArrayList<int[]>();
+        List<String> strings = new ArrayList<String>();
+        HashMap<String, Integer> stringIndices = new HashMap<String, Integer>();
+
+        String line;
+        int lineNumber = 0;
+        while((line = reader.readLine()) != null) {
+            lineNumber++;
+            if(line.trim().length() == 0 || line.startsWith("#")) continue;
+
+            List<String> fields = splitCsv(line);
+            if(fields.size() < 7) {
+                throw new IOException("Line " + lineNumber + " only has " + fields.size() + " fields, expected 7");
+            }
+
+            int[] seg = new int[7];
+            try {
+                for(int i = 0; i < 4; i++) {
+                    seg[i] = (int)Math.round(Double.parseDouble(fields.get(i).trim()) * 1000000.0);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + " has a bad coordinate: " + e.getMessage());
+            }
+
+            for(int i = 4; i < 7; i++) {
+                seg[i] = internString(fields.get(i).trim(), strings, stringIndices);
+            }
+
+            segments.add(seg);
+        }
+
+        write(segments, strings, out);
+        return segments.size();
+    }
+
+    private static int internString(String s, List<String> strings, HashMap<String, Integer> indices) {
+        if(s.length() == 0) return -1;
+
+        Integer index = indices.get(s);
+        if(index == null) {
+            index = strings.size();
+            strings.add(s);
+            indices.put(s, index);
+        }
+        return index;
+    }
+
+    private static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+
+        for(int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if(quoted) {
+                if(c == '"') {
+                    // A doubled quote is a literal quote.  Anything else ends
+                    // the quoted part.
+                    if(i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        current.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    current.append(c);
+                }
+            } else if(c == '"') {
+                quoted = true;
+            } else if(c == ',') {
+                fields.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+
+        fields.add(current.toString());
+        return fields;
+    }
+
+    private static void write(List<int[]> segments, List<String> strings, File out) throws IOException {
+        // Sort the segments themselves into STR order first.  Each leaf then
+        // just covers the next CAP of them.
+        int count = segments.size();
+        int[][] segBoxes = new int[count][];
+        for(int i = 0; i < count; i++) {
+            int[] s = segments.get(i);
+            segBoxes[i] = new int[] {
+                    Math.min(s[0], s[2]), Math.min(s[1], s[3]),
+                    Math.max(s[0], s[2]), Math.max(s[1], s[3]) };
+        }
+
+        Integer[] order = strOrder(segBoxes);
+        int[][] sorted = new int[count][];
+        for(int i = 0; i < count; i++) {
+            sorted[i] = segments.get(order[i]);
+        }
+
+        // Make the leaves.  A node is {minLat, minLon, maxLat, maxLon, first,
+        // count, isLeaf}, same as on disk.
+        List<int[]> level = new ArrayList<int[]>();
+        for(int i = 0; i < count; i += CAP) {
+            int end = Math.min(i + CAP, count);
+            int[] node = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, i, end - i, 1 };
+            for(int j = i; j < end; j++) {
+                expand(node, segBoxes[order[j]]);
+            }
+            level.add(node);
+        }
+
+        // Now keep going up until there's only one node left.  Each level gets
+        // STR-sorted again before it's written, so its parents stay tight.
+        List<int[]> nodes = new ArrayList<int[]>();
+        while(level.size() > 1) {
+            Integer[] levelOrder = strOrder(level.toArray(new int[level.size()][]));
+            int levelStart = nodes.size();
+            for(Integer i : levelOrder) {
+                nodes.add(level.get(i));
+            }
+
+            List<int[]> parents = new ArrayList<int[]>();
+            for(int i = 0; i < level.size(); i += CAP) {
+                int end = Math.min(i + CAP, level.size());
+                int[] node = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, levelStart + i, end - i, 0 };
+                for(int j = i; j < end; j++) {
+                    expand(node, nodes.get(levelStart + j));
+                }
+                parents.add(node);
+            }
+            level = parents;
+        }
+        nodes.addAll(level);
+
+        // Encode the strings.
+        byte[][] stringData = new byte[strings.size()][];
+        int stringBytes = 0;
+        for(int i = 0; i < stringData.length; i++) {
+            stringData[i] = strings.get(i).getBytes("UTF-8");
+            stringBytes += stringData[i].length;
+        }
+
+        int segmentsOffset = SpatialIndex.HEADER_SIZE;
+        int nodesOffset = segmentsOffset + (count * SpatialIndex.SEGMENT_SIZE);
+        int stringOffsetsOffset = nodesOffset + (nodes.size() * SpatialIndex.NODE_SIZE);
+        int stringDataOffset = stringOffsetsOffset + ((stringData.length + 1) * 4);
+
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+        try {
+            dout.writeInt(SpatialIndex.MAGIC);
+            dout.writeInt(SpatialIndex.VERSION);
+            dout.writeInt(count);
+            dout.writeInt(nodes.size());
+            dout.writeInt(nodes.size() - 1);
+            dout.writeInt(stringData.length);
+            dout.writeInt(segmentsOffset);
+            dout.writeInt(nodesOffset);
+            dout.writeInt(stringOffsetsOffset);
+            dout.writeInt(stringDataOffset);
+
+            for(int[] seg : sorted) {
+                for(int v : seg) dout.writeInt(v);
+            }
+
+            for(int[] node : nodes) {
+                for(int v : node) dout.writeInt(v);
+            }
+
+            int offset = 0;
+            for(byte[] b : stringData) {
+                dout.writeInt(offset);
+                offset += b.length;
+            }
+            dout.writeInt(offset);
+
+            for(byte[] b : stringData) {
+                dout.write(b);
+            }
+        } finally {
+            dout.close();
+        }
+    }
+
+    private static void expand(int[] node, int[] box) {
+        node[0] = Math.min(node[0], box[0]);
+        node[1] = Math.min(node[1], box[1]);
+        node[2] = Math.max(node[2], box[2]);
+        node[3] = Math.max(node[3], box[3]);
+    }
+
+    /**
+     * Works out the Sort-Tile-Recursive order of a bunch of boxes.  That is,
+     * sort by longitude, chop that into vertical slices, then sort each slice
+     * by latitude.
+     *
+     * @param boxes boxes, each starting with minLat, minLon, maxLat, maxLon
+     * @return indices into boxes, in STR order
+     */
+    private static Integer[] strOrder(final int[][] boxes) {
+        Integer[] order = new Integer[boxes.length];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareLong(centerLon(boxes[a]), centerLon(boxes[b]));
+            }
+        });
+
+        int leaves = (boxes.length + CAP - 1) / CAP;
+        int slices = (int)Math.ceil(Math.sqrt(leaves));
+        int sliceSize = Math.max(1, slices * CAP);
+
+        for(int i = 0; i < order.length; i += sliceSize) {
+            Arrays.sort(order, i, Math.min(i + sliceSize, order.length), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return compareLong(centerLat(boxes[a]), centerLat(boxes[b]));
+                }
+            });
+        }
+
+        return order;
+    }
+
+    private static long centerLat(int[] box) {
+        return (long)box[0] + box[2];
+    }
+
+    private static long centerLon(int[] box) {
+        return (long)box[1] + box[3];
+    }
+
+    private static int compareLong(long a, long b) {
+        return a < b ? -1 : (a > b ? 1 : 0);
+    }
+
+    /**
+     * Imports from the command line.
+     *
+     * @param args input CSV and output index
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.err.println("Usage: SpatialIndexImporter <roads.csv> <index.dlgi>");
+            System.exit(1);
+        }
+
+        long start = System.currentTimeMillis();
+        Reader in = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+        int count;
+        try {
+            count = importCsv(in, new File(args[1]));
+        } finally {
+            in.close();
+        }
+
+        System.out.println("Imported " + count + " segments in " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
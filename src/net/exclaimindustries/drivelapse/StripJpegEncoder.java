@@ -0,0 +1,801 @@
+/**
+ * StripJpegEncoder.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The StripJpegEncoder writes baseline JPEGs using every core instead of just
+ * one.  Bitmap.compress does the whole frame on whatever thread calls it,
+ * which makes it the slowest part of processing a frame while the rest of the
+ * phone sits around doing nothing.
+ *
+ * The trick is restart markers.  A JPEG can reset its DC prediction every so
+ * many MCUs and say so with a marker, and past a marker, nothing depends on
+ * what came before.  So the frame gets cut into horizontal strips, each one
+ * exactly one restart interval, and each strip gets color-converted,
+ * transformed, quantized, and Huffman-coded on its own thread.  Then the
+ * strips get stitched together with the markers in between, and what comes
+ * out is one perfectly ordinary JPEG that anything can read.
+ *
+ * It's 4:2:0 (same as Bitmap.compress) with the standard quantization tables
+ * scaled by quality the same way libjpeg does it, and the standard Huffman
+ * tables.  Optimized tables would make the file a bit smaller, but they'd need
+ * a second pass over the whole frame first, which is what this is trying to
+ * avoid.
+ *
+ * This doesn't touch Android at all; it just takes ARGB pixels (see
+ * Bitmap.getPixels), so it can be checked against ImageIO on a desktop.  One
+ * encoder isn't safe to share between threads, but any number of them can
+ * share an executor.
+ *
+ * The frame doesn't have to be copied out in one piece, either.  Given a
+ * PixelSource (a Bitmap, say), each strip pulls in just its own rows on
+ * whichever thread's encoding it, into a buffer that thread keeps, so the
+ * extra memory is a strip per thread instead of a whole frame.  Strips are
+ * kept to about STRIP_PIXELS for that reason.
+ *
+ * Frames too big to hold in memory all at once can come in a band at a time
+ * (see begin and writeBand, or just hand it a RegionSource).  Each band is a
+ * whole number of restart intervals, so the bands come out the same as if
+ * the frame had been encoded all at once.
+ *
+ * @author Nicholas Killewald
+ */
+public class StripJpegEncoder {
+    /**
+     * Zigzag order: ZIGZAG[k] is where the kth coefficient out is in the
+     * (row-major) block.
+     */
+    private static final int[] ZIGZAG = {
+         0,  1,  8, 16,  9,  2,  3, 10,
+        17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63,
+    };
+
+    // The standard tables, from Annex K of the spec.
+    private static final int[] LUMINANCE_QUANT = {
+        16,  11,  10,  16,  24,  40,  51,  61,
+        12,  12,  14,  19,  26,  58,  60,  55,
+        14,  13,  16,  24,  40,  57,  69,  56,
+        14,  17,  22,  29,  51,  87,  80,  62,
+        18,  22,  37,  56,  68, 109, 103,  77,
+        24,  35,  55,  64,  81, 104, 113,  92,
+        49,  64,  78,  87, 103, 121, 120, 101,
+        72,  92,  95,  98, 112, 100, 103,  99,
+    };
+
+    private static final int[] CHROMINANCE_QUANT = {
+        17,  18,  24,  47,  99,  99,  99,  99,
+        18,  21,  26,  66,  99,  99,  99,  99,
+        24,  26,  56,  99,  99,  99,  99,  99,
+        47,  66,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+    };
+
+    private static final int[] DC_LUMINANCE_BITS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int[] DC_LUMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] DC_CHROMINANCE_BITS = { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+    private static final int[] DC_CHROMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+
+    private static final int[] AC_LUMINANCE_BITS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+    private static final int[] AC_LUMINANCE_VALUES = {
+        0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+        0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+        0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+        0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+        0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+        0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+        0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+        0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+        0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+        0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+        0xf9, 0xfa,
+    };
+
+    private static final int[] AC_CHROMINANCE_BITS = { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+    private static final int[] AC_CHROMINANCE_VALUES = {
+        0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+        0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+        0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+        0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+        0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+        0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+        0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+        0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+        0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+        0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+        0xf9, 0xfa,
+    };
+
+    // Codes and lengths for each symbol, built from the tables above.
+    private static final int[] DC_LUMINANCE_CODES = new int[12];
+    private static final int[] DC_LUMINANCE_SIZES = new int[12];
+    private static final int[] DC_CHROMINANCE_CODES = new int[12];
+    private static final int[] DC_CHROMINANCE_SIZES = new int[12];
+    private static final int[] AC_LUMINANCE_CODES = new int[256];
+    private static final int[] AC_LUMINANCE_SIZES = new int[256];
+    private static final int[] AC_CHROMINANCE_CODES = new int[256];
+    private static final int[] AC_CHROMINANCE_SIZES = new int[256];
+
+    static {
+        buildCodes(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES, DC_LUMINANCE_CODES, DC_LUMINANCE_SIZES);
+        buildCodes(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES, DC_CHROMINANCE_CODES, DC_CHROMINANCE_SIZES);
+        buildCodes(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES, AC_LUMINANCE_CODES, AC_LUMINANCE_SIZES);
+        buildCodes(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES, AC_CHROMINANCE_CODES, AC_CHROMINANCE_SIZES);
+    }
+
+    /** The AAN DCT's scale factors, which get folded into quantization. */
+    private static final double[] AAN_SCALE = {
+        1.0, 1.387039845, 1.306562965, 1.175875602,
+        1.0, 0.785694958, 0.541196100, 0.275899379,
+    };
+
+    /** The biggest a restart interval can be, in MCUs. */
+    private static final int MAX_INTERVAL = 65535;
+    /**
+     * About the most pixels a strip gets.  Strips past that don't make
+     * anything faster, they just make every thread's buffer bigger.
+     */
+    public static final int STRIP_PIXELS = 128 * 1024;
+
+    /**
+     * Each thread's strip buffer, for pulling pixels from a PixelSource.  It's
+     * per thread rather than per strip or per encoder, so no matter how many
+     * strips or encoders there are, there's only ever one of these for each
+     * thread that's actually encoding.
+     */
+    private static final ThreadLocal<int[]> sStripPixels = new ThreadLocal<int[]>();
+
+    private static ExecutorService sExecutor;
+
+    private int mQuality;
+    private ExecutorService mExecutor;
+    private int mThreads;
+
+    // Quantization tables, zigzagged for the file, and as multipliers (with
+    // the DCT's scaling folded in) for the encoding.
+    private int[] mLuminanceQuant = new int[64];
+    private int[] mChrominanceQuant = new int[64];
+    private float[] mLuminanceDivisors = new float[64];
+    private float[] mChrominanceDivisors = new float[64];
+
+    // What's being encoded right now.
+    private OutputStream mOut;
+    private int mWidth;
+    private int mHeight;
+    private int mMcuColumns;
+    private int mBandHeight;
+    private int mRowsPerStrip;
+    private int mNextRow;
+    private int mStripsWritten;
+
+    // The band being encoded right now, or where the strips get their own
+    // pixels from.
+    private int[] mPixels;
+    private int mBandTop;
+    private PixelSource mSource;
+
+    /** Band buffer for encoding from a RegionSource. */
+    private int[] mBandPixels;
+
+    private Strip[] mStrips = new Strip[0];
+
+    /**
+     * A PixelSource hands out rows of a frame that's already in memory
+     * somewhere, so the encoder can pull in each strip as it gets to it
+     * instead of needing the whole frame copied out first.
+     */
+    public interface PixelSource {
+        /**
+         * Copies some rows, all the way across, as ARGB.  This gets called
+         * from several threads at once (for different rows), so it can't
+         * change anything.
+         *
+         * @param pixels where the pixels go, row by row, with no gaps between
+         *               rows
+         * @param top first row
+         * @param rows how many rows
+         */
+        public void getPixels(int[] pixels, int top, int rows);
+    }
+
+    /**
+     * Gets an executor shared by everything in the app that encodes, with one
+     * thread per core.  Sharing it means a batch run with a FrameProcessor per
+     * core doesn't end up with cores squared threads.
+     *
+     * @return the shared executor
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if(sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "StripJpegEncoder-" + (mCount++));
+                    // Nothing in here's worth keeping the process alive for.
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Makes an encoder.
+     *
+     * @param quality JPEG quality, 1 to 100, same as Bitmap.compress
+     * @param executor where to encode strips, or null to do it all on the
+     *                 calling thread
+     * @param threads how many threads the executor has (or 1 if there isn't
+     *                one), which decides how many strips a frame gets cut into
+     */
+    public StripJpegEncoder(int quality, ExecutorService executor, int threads) {
+        mQuality = Math.max(1, Math.min(100, quality));
+        mExecutor = executor;
+        mThreads = executor == null ? 1 : Math.max(1, threads);
+
+        int scale = mQuality < 50 ? 5000 / mQuality : 200 - mQuality * 2;
+        for(int i = 0; i < 64; i++) {
+            int row = ZIGZAG[i] / 8;
+            int col = ZIGZAG[i] % 8;
+            int lum = Math.max(1, Math.min(255, (LUMINANCE_QUANT[ZIGZAG[i]] * scale + 50) / 100));
+            int chrom = Math.max(1, Math.min(255, (CHROMINANCE_QUANT[ZIGZAG[i]] * scale + 50) / 100));
+            mLuminanceQuant[i] = lum;
+            mChrominanceQuant[i] = chrom;
+            mLuminanceDivisors[i] = (float)(1.0 / (lum * AAN_SCALE[row] * AAN_SCALE[col] * 8.0));
+            mChrominanceDivisors[i] = (float)(1.0 / (chrom * AAN_SCALE[row] * AAN_SCALE[col] * 8.0));
+        }
+    }
+
+    /**
+     * Makes an encoder that uses the shared executor.
+     *
+     * @param quality JPEG quality, 1 to 100, same as Bitmap.compress
+     */
+    public StripJpegEncoder(int quality) {
+        this(quality, getSharedExecutor(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Encodes a frame.  Alpha is ignored.
+     *
+     * @param pixels ARGB pixels, row by row, with no gaps between rows
+     * @param width frame width
+     * @param height frame height
+     * @param out where the JPEG goes; this doesn't get closed
+     * @throws IOException the JPEG couldn't be written (or the encoding got
+     *                     interrupted)
+     */
+    public void encode(int[] pixels, int width, int height, OutputStream out) throws IOException {
+        begin(width, height, height, out);
+        writeBand(pixels, height);
+        finish();
+    }
+
+    /**
+     * Encodes a frame, with each strip pulling its own rows from the source
+     * as it goes.  Alpha is ignored.
+     *
+     * @param source where the pixels come from
+     * @param width frame width
+     * @param height frame height
+     * @param out where the JPEG goes; this doesn't get closed
+     * @throws IOException the JPEG couldn't be written (or the encoding got
+     *                     interrupted)
+     */
+    public void encode(PixelSource source, int width, int height, OutputStream out) throws IOException {
+        begin(width, height, height, out);
+        writeBand(source, height);
+        finish();
+    }
+
+    /**
+     * Encodes a frame a band at a time, straight from a RegionSource, so the
+     * whole thing never has to be in memory at once.  The source doesn't get
+     * closed.
+     *
+     * @param source where the frame comes from
+     * @param bandHeight about how many rows to read at a time (see begin)
+     * @param out where the JPEG goes; this doesn't get closed
+     * @throws IOException the frame couldn't be read or the JPEG couldn't be
+     *                     written
+     */
+    public void encode(RegionSource source, int bandHeight, OutputStream out) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int band = begin(width, height, bandHeight, out);
+        if(mBandPixels == null || mBandPixels.length < width * band) mBandPixels = new int[width * band];
+
+        for(int top = 0; top < height; top += band) {
+            int rows = Math.min(band, height - top);
+            source.read(top, rows, mBandPixels);
+            writeBand(mBandPixels, rows);
+        }
+        finish();
+    }
+
+    /**
+     * Starts encoding a frame that'll come in a band at a time (see
+     * writeBand).  The headers get written right away.
+     *
+     * Bands have to be a whole number of restart intervals tall, so the
+     * height asked for gets rounded up to one.  Every band but the last has
+     * to be exactly that tall; the last one is whatever's left.
+     *
+     * @param width frame width
+     * @param height frame height
+     * @param bandHeight about how tall each band should be
+     * @param out where the JPEG goes; this doesn't get closed
+     * @return how tall each band has to be
+     * @throws IOException the headers couldn't be written
+     */
+    public int begin(int width, int height, int bandHeight, OutputStream out) throws IOException {
+        if(width <= 0 || height <= 0 || width > 65535 || height > 65535)
+            throw new IllegalArgumentException("Can't encode a " + width + "x" + height + " JPEG");
+
+        mWidth = width;
+        mHeight = height;
+        mMcuColumns = (width + 15) / 16;
+        int bandMcuRows = (Math.max(1, Math.min(bandHeight, height)) + 15) / 16;
+
+        // A couple strips per thread evens things out when some strips are
+        // busier than others (sky versus road, say).  Each strip is one
+        // restart interval, and those can only be so long; past STRIP_PIXELS,
+        // they'd just be making each thread's buffer bigger for nothing.
+        mRowsPerStrip = Math.max(1, (bandMcuRows + mThreads * 2 - 1) / (mThreads * 2));
+        mRowsPerStrip = Math.min(mRowsPerStrip, Math.max(1, STRIP_PIXELS / (mMcuColumns * 256)));
+        mRowsPerStrip = Math.min(mRowsPerStrip, Math.max(1, MAX_INTERVAL / mMcuColumns));
+        bandMcuRows = ((bandMcuRows + mRowsPerStrip - 1) / mRowsPerStrip) * mRowsPerStrip;
+        mBandHeight = Math.min(bandMcuRows * 16, height);
+
+        mOut = out;
+        mNextRow = 0;
+        mStripsWritten = 0;
+        writeHeaders(out, mRowsPerStrip * mMcuColumns);
+        return mBandHeight;
+    }
+
+    /**
+     * Encodes the next band of the frame.
+     *
+     * @param pixels ARGB pixels, row by row, with no gaps between rows
+     * @param rows how many rows there are, which has to be what begin said
+     *             (unless this is the last band)
+     * @throws IOException the JPEG couldn't be written (or the encoding got
+     *                     interrupted)
+     */
+    public void writeBand(int[] pixels, int rows) throws IOException {
+        checkBand(rows);
+        if(pixels.length < mWidth * rows)
+            throw new IllegalArgumentException("Not enough pixels for " + mWidth + "x" + rows);
+
+        mPixels = pixels;
+        try {
+            encodeStrips(rows);
+        } finally {
+            mPixels = null;
+        }
+    }
+
+    /**
+     * Encodes the next band of the frame, with each strip pulling its own
+     * rows from the source as it goes.
+     *
+     * @param source where the pixels come from; rows are counted from the
+     *               top of the frame, not the band
+     * @param rows how many rows there are, which has to be what begin said
+     *             (unless this is the last band)
+     * @throws IOException the JPEG couldn't be written (or the encoding got
+     *                     interrupted)
+     */
+    public void writeBand(PixelSource source, int rows) throws IOException {
+        checkBand(rows);
+
+        mSource = source;
+        try {
+            encodeStrips(rows);
+        } finally {
+            mSource = null;
+        }
+    }
+
+    private void checkBand(int rows) {
+        if(mOut == null) throw new IllegalStateException("Nothing's being encoded");
+        if(rows != Math.min(mBandHeight, mHeight - mNextRow))
+            throw new IllegalArgumentException("Band should be " + Math.min(mBandHeight, mHeight - mNextRow) + " rows, not " + rows);
+    }
+
+    /**
+     * Encodes the next rows, a strip per task, and writes them out in order.
+     */
+    private void encodeStrips(int rows) throws IOException {
+        mBandTop = mNextRow;
+        int firstMcuRow = mNextRow / 16;
+        int mcuRows = (rows + 15) / 16;
+        int stripCount = (mcuRows + mRowsPerStrip - 1) / mRowsPerStrip;
+
+        if(mStrips.length < stripCount) {
+            Strip[] strips = new Strip[stripCount];
+            for(int i = 0; i < stripCount; i++) {
+                strips[i] = i < mStrips.length ? mStrips[i] : new Strip();
+            }
+            mStrips = strips;
+        }
+        for(int i = 0; i < stripCount; i++) {
+            mStrips[i].mFirstRow = firstMcuRow + i * mRowsPerStrip;
+            mStrips[i].mRowCount = Math.min(mRowsPerStrip, mcuRows - i * mRowsPerStrip);
+        }
+
+        try {
+            // Hand out every strip but the first, and do that one here while
+            // we wait.
+            Future<?>[] futures = new Future<?>[stripCount];
+            if(mExecutor != null) {
+                for(int i = 1; i < stripCount; i++) futures[i] = mExecutor.submit(mStrips[i]);
+            }
+            mStrips[0].call();
+
+            for(int i = 0; i < stripCount; i++) {
+                if(futures[i] != null) futures[i].get();
+                else if(i > 0) mStrips[i].call();
+
+                // Every strip after the very first gets a restart marker in
+                // front of it, counting 0 to 7 over and over.
+                if(mStripsWritten > 0) {
+                    mOut.write(0xff);
+                    mOut.write(0xd0 + ((mStripsWritten - 1) % 8));
+                }
+                Strip strip = mStrips[i];
+                mOut.write(strip.mBuffer, 0, strip.mLength);
+                mStripsWritten++;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while encoding");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Encoding a strip failed", e.getCause());
+        }
+
+        mNextRow += rows;
+    }
+
+    /**
+     * Finishes off the frame, once every band's been written.
+     *
+     * @throws IOException the JPEG couldn't be written
+     */
+    public void finish() throws IOException {
+        if(mOut == null) throw new IllegalStateException("Nothing's being encoded");
+        if(mNextRow != mHeight) throw new IllegalStateException("Only " + mNextRow + " of " + mHeight + " rows written");
+
+        mOut.write(0xff);
+        mOut.write(0xd9);
+        mOut = null;
+    }
+
+    private void writeHeaders(OutputStream out, int interval) throws IOException {
+        // SOI, then a JFIF APP0.
+        out.write(new byte[] {
+            (byte)0xff, (byte)0xd8,
+            (byte)0xff, (byte)0xe0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0,
+        });
+
+        // Quantization tables.
+        writeMarker(out, 0xdb, 2 + 65 * 2);
+        out.write(0);
+        for(int q : mLuminanceQuant) out.write(q);
+        out.write(1);
+        for(int q : mChrominanceQuant) out.write(q);
+
+        // Baseline frame: Y at 2x2, Cb and Cr at 1x1.
+        writeMarker(out, 0xc0, 17);
+        out.write(8);
+        writeShort(out, mHeight);
+        writeShort(out, mWidth);
+        out.write(3);
+        out.write(new byte[] { 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1 });
+
+        // Huffman tables.
+        writeMarker(out, 0xc4, 2 + 4 * 17 + 12 + 12 + AC_LUMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+        writeHuffman(out, 0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffman(out, 0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffman(out, 0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffman(out, 0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        // Restart interval.
+        writeMarker(out, 0xdd, 4);
+        writeShort(out, interval);
+
+        // And the scan.
+        writeMarker(out, 0xda, 12);
+        out.write(new byte[] { 3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0 });
+    }
+
+    private static void writeMarker(OutputStream out, int marker, int length) throws IOException {
+        out.write(0xff);
+        out.write(marker);
+        writeShort(out, length);
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write((value >> 8) & 0xff);
+        out.write(value & 0xff);
+    }
+
+    private static void writeHuffman(OutputStream out, int id, int[] bits, int[] values) throws IOException {
+        out.write(id);
+        for(int b : bits) out.write(b);
+        for(int v : values) out.write(v);
+    }
+
+    private static void buildCodes(int[] bits, int[] values, int[] codes, int[] sizes) {
+        int code = 0;
+        int k = 0;
+        for(int length = 1; length <= 16; length++) {
+            for(int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k]] = code;
+                sizes[values[k]] = length;
+                code++;
+                k++;
+            }
+            code <<= 1;
+        }
+    }
+
+    /**
+     * One strip of the frame, which is one restart interval's worth of MCU
+     * rows.  Strips keep their buffers from frame to frame.
+     */
+    private class Strip implements Callable<Object> {
+        int mFirstRow;
+        int mRowCount;
+
+        // Entropy-coded output, already byte-stuffed.
+        byte[] mBuffer = new byte[64 * 1024];
+        int mLength;
+        private int mBits;
+        private int mBitCount;
+
+        // Four Y blocks, then Cb, then Cr.
+        private float[][] mBlocks = new float[6][64];
+        private int[] mCbSums = new int[64];
+        private int[] mCrSums = new int[64];
+        private int[] mQuantized = new int[64];
+        private int mLastY;
+        private int mLastCb;
+        private int mLastCr;
+
+        @Override
+        public Object call() {
+            mLength = 0;
+            mBits = 0;
+            mBitCount = 0;
+            mLastY = 0;
+            mLastCb = 0;
+            mLastCr = 0;
+
+            // Either the band's all there already, or this strip goes and
+            // gets its own rows.
+            int[] pixels = mPixels;
+            int top = mBandTop;
+            if(mSource != null) {
+                top = mFirstRow * 16;
+                int rows = Math.min(mRowCount * 16, mHeight - top);
+                pixels = sStripPixels.get();
+                if(pixels == null || pixels.length < mWidth * rows) {
+                    pixels = new int[mWidth * rows];
+                    sStripPixels.set(pixels);
+                }
+                mSource.getPixels(pixels, top, rows);
+            }
+
+            for(int row = mFirstRow; row < mFirstRow + mRowCount; row++) {
+                for(int col = 0; col < mMcuColumns; col++) {
+                    loadMcu(pixels, top, col * 16, row * 16);
+                    for(int b = 0; b < 4; b++) {
+                        mLastY = encodeBlock(mBlocks[b], mLuminanceDivisors, mLastY,
+                                DC_LUMINANCE_CODES, DC_LUMINANCE_SIZES, AC_LUMINANCE_CODES, AC_LUMINANCE_SIZES);
+                    }
+                    mLastCb = encodeBlock(mBlocks[4], mChrominanceDivisors, mLastCb,
+                            DC_CHROMINANCE_CODES, DC_CHROMINANCE_SIZES, AC_CHROMINANCE_CODES, AC_CHROMINANCE_SIZES);
+                    mLastCr = encodeBlock(mBlocks[5], mChrominanceDivisors, mLastCr,
+                            DC_CHROMINANCE_CODES, DC_CHROMINANCE_SIZES, AC_CHROMINANCE_CODES, AC_CHROMINANCE_SIZES);
+                }
+            }
+
+            // Pad out the last byte with ones, like the spec says.
+            if(mBitCount > 0) writeBits((1 << (8 - mBitCount)) - 1, 8 - mBitCount);
+            return null;
+        }
+
+        /**
+         * Color-converts a 16x16 MCU into the blocks, level-shifted.  Edges
+         * past the frame repeat the last row or column.
+         */
+        private void loadMcu(int[] pixels, int top, int x0, int y0) {
+            for(int i = 0; i < 64; i++) {
+                mCbSums[i] = 0;
+                mCrSums[i] = 0;
+            }
+
+            for(int yy = 0; yy < 16; yy++) {
+                int rowStart = (Math.min(y0 + yy, mHeight - 1) - top) * mWidth;
+                float[] left = mBlocks[(yy >> 3) << 1];
+                float[] right = mBlocks[((yy >> 3) << 1) + 1];
+                int inBlock = (yy & 7) << 3;
+                int chroma = (yy >> 1) << 3;
+
+                for(int xx = 0; xx < 16; xx++) {
+                    int p = pixels[rowStart + Math.min(x0 + xx, mWidth - 1)];
+                    int r = (p >> 16) & 0xff;
+                    int g = (p >> 8) & 0xff;
+                    int b = p & 0xff;
+
+                    // Fixed-point JFIF conversion, times 65536.
+                    int y = 19595 * r + 38470 * g + 7471 * b;
+                    (xx < 8 ? left : right)[inBlock + (xx & 7)] = y * (1.0f / 65536.0f) - 128.0f;
+                    mCbSums[chroma + (xx >> 1)] += -11059 * r - 21709 * g + 32768 * b;
+                    mCrSums[chroma + (xx >> 1)] += 32768 * r - 27439 * g - 5329 * b;
+                }
+            }
+
+            // Each chroma sample's the average of four, and Cb and Cr are
+            // centered on zero already, so that's them level-shifted, too.
+            float[] cb = mBlocks[4];
+            float[] cr = mBlocks[5];
+            for(int i = 0; i < 64; i++) {
+                cb[i] = mCbSums[i] * (1.0f / (65536.0f * 4.0f));
+                cr[i] = mCrSums[i] * (1.0f / (65536.0f * 4.0f));
+            }
+        }
+
+        private int encodeBlock(float[] block, float[] divisors, int lastDc,
+                int[] dcCodes, int[] dcSizes, int[] acCodes, int[] acSizes) {
+            fdct(block);
+
+            int[] q = mQuantized;
+            for(int i = 0; i < 64; i++) {
+                // Round to nearest, without Math.round's overhead.
+                q[i] = (int)(block[ZIGZAG[i]] * divisors[i] + 16384.5f) - 16384;
+            }
+
+            int diff = q[0] - lastDc;
+            int size = bitSize(diff);
+            writeBits(dcCodes[size], dcSizes[size]);
+            if(size > 0) writeBits(diff < 0 ? diff - 1 : diff, size);
+
+            int run = 0;
+            for(int i = 1; i < 64; i++) {
+                int v = q[i];
+                if(v == 0) {
+                    run++;
+                    continue;
+                }
+                while(run > 15) {
+                    writeBits(acCodes[0xf0], acSizes[0xf0]);
+                    run -= 16;
+                }
+                size = bitSize(v);
+                int symbol = (run << 4) | size;
+                writeBits(acCodes[symbol], acSizes[symbol]);
+                writeBits(v < 0 ? v - 1 : v, size);
+                run = 0;
+            }
+            if(run > 0) writeBits(acCodes[0x00], acSizes[0x00]);
+
+            return q[0];
+        }
+
+        private void writeBits(int value, int size) {
+            mBits = (mBits << size) | (value & ((1 << size) - 1));
+            mBitCount += size;
+            while(mBitCount >= 8) {
+                int b = (mBits >> (mBitCount - 8)) & 0xff;
+                writeByte(b);
+                if(b == 0xff) writeByte(0);
+                mBitCount -= 8;
+            }
+            mBits &= (1 << mBitCount) - 1;
+        }
+
+        private void writeByte(int b) {
+            if(mLength == mBuffer.length) {
+                byte[] bigger = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, bigger, 0, mLength);
+                mBuffer = bigger;
+            }
+            mBuffer[mLength++] = (byte)b;
+        }
+    }
+
+    private static int bitSize(int value) {
+        if(value < 0) value = -value;
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * The AAN floating-point forward DCT, in place, same as libjpeg's
+     * jfdctflt.  Outputs come out scaled by the AAN factors (times eight),
+     * which the divisors take back out.
+     */
+    private static void fdct(float[] d) {
+        for(int pass = 0; pass < 2; pass++) {
+            // Rows the first time through, columns the second.
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for(int i = 0, base = 0; i < 8; i++, base += next) {
+                int p0 = base;
+                int p1 = base + step;
+                int p2 = base + step * 2;
+                int p3 = base + step * 3;
+                int p4 = base + step * 4;
+                int p5 = base + step * 5;
+                int p6 = base + step * 6;
+                int p7 = base + step * 7;
+
+                float tmp0 = d[p0] + d[p7];
+                float tmp7 = d[p0] - d[p7];
+                float tmp1 = d[p1] + d[p6];
+                float tmp6 = d[p1] - d[p6];
+                float tmp2 = d[p2] + d[p5];
+                float tmp5 = d[p2] - d[p5];
+                float tmp3 = d[p3] + d[p4];
+                float tmp4 = d[p3] - d[p4];
+
+                // Even part.
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                d[p0] = tmp10 + tmp11;
+                d[p4] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                d[p2] = tmp13 + z1;
+                d[p6] = tmp13 - z1;
+
+                // Odd part.
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+
+                d[p5] = z13 + z2;
+                d[p3] = z13 - z2;
+                d[p1] = z11 + z4;
+                d[p7] = z11 - z4;
+            }
+        }
+    }
+}
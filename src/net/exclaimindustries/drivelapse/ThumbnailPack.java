@@ -0,0 +1,320 @@
+/**
+ * ThumbnailPack.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A ThumbnailPack is every thumbnail in a session, packed one after another
+ * into a single file, with an index next to it.  That way, something that
+ * wants to show a few hundred of them at once (a gallery, a scrubber) maps two
+ * files instead of opening a few hundred JPEGs.
+ *
+ * The data file is just JPEGs back to back.  The index file is one record per
+ * thumbnail: the frame's key (the time in its filename), the offset into the
+ * data file, and the length, in that order, as big-endian long, long, int.
+ *
+ * Reprocessing a frame appends another thumbnail under the same key, and the
+ * last one in the index wins.  The old ones are dead weight until the pack
+ * gets compacted, which the BatchProcessor does at the end of every run.
+ *
+ * @author Nicholas Killewald
+ */
+public class ThumbnailPack {
+    public static final String DATA_FILENAME = "thumbs.dat";
+    public static final String INDEX_FILENAME = "thumbs.idx";
+
+    static final int INDEX_RECORD_SIZE = 8 + 8 + 4;
+
+    private static final String NEW_SUFFIX = ".new";
+
+    /**
+     * Appends a thumbnail to the pack in the given directory, making the pack
+     * if it isn't there yet.  The data goes out before the index record, so a
+     * crash partway through never leaves an index record pointing at nothing.
+     *
+     * @param dir session directory
+     * @param key the frame's key
+     * @param jpeg buffer with the JPEG data in it
+     * @param length how much of the buffer is JPEG data
+     * @throws IOException the pack couldn't be written
+     */
+    public static void append(File dir, long key, byte[] jpeg, int length) throws IOException {
+        // More than one thread could be adding thumbnails at once (say, during
+        // a batch run), and they'd better not interleave.
+        synchronized(ThumbnailPack.class) {
+            recover(dir);
+
+            RandomAccessFile data = new RandomAccessFile(new File(dir, DATA_FILENAME), "rw");
+            RandomAccessFile index = new RandomAccessFile(new File(dir, INDEX_FILENAME), "rw");
+
+            try {
+                long offset = data.length();
+                data.seek(offset);
+                data.write(jpeg, 0, length);
+
+                // If a previous write got cut off halfway through a record,
+                // write over the partial one.
+                long count = index.length() / INDEX_RECORD_SIZE;
+                index.seek(count * INDEX_RECORD_SIZE);
+                index.writeLong(key);
+                index.writeLong(offset);
+                index.writeInt(length);
+            } finally {
+                data.close();
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the pack in the given directory with only the last thumbnail
+     * for each key, in key order.  Nothing else should be adding to the pack
+     * while this is going on, so don't do it during a drive.
+     *
+     * @param dir session directory
+     * @return how many old thumbnails got dropped
+     * @throws IOException the pack couldn't be rewritten
+     */
+    public static int compact(File dir) throws IOException {
+        synchronized(ThumbnailPack.class) {
+            recover(dir);
+            if(!new File(dir, INDEX_FILENAME).exists()) return 0;
+
+            Reader reader = new Reader(dir);
+            int dropped = reader.getRecordCount() - reader.getCount();
+            if(dropped == 0) return 0;
+
+            // The new pack gets written next to the old one, so the old one's
+            // still fine if we get killed in the middle of this.
+            File newData = new File(dir, DATA_FILENAME + NEW_SUFFIX);
+            File newIndex = new File(dir, INDEX_FILENAME + NEW_SUFFIX);
+            RandomAccessFile data = new RandomAccessFile(newData, "rw");
+            RandomAccessFile index = new RandomAccessFile(newIndex, "rw");
+
+            try {
+                data.setLength(0);
+                index.setLength(0);
+
+                byte[] buffer = new byte[0];
+                long offset = 0;
+                for(int i = 0; i < reader.getCount(); i++) {
+                    int length = reader.getLength(i);
+                    if(buffer.length < length) buffer = new byte[length];
+                    reader.getThumbnail(i, buffer);
+
+                    data.write(buffer, 0, length);
+                    index.writeLong(reader.getKey(i));
+                    index.writeLong(offset);
+                    index.writeInt(length);
+                    offset += length;
+                }
+
+                data.getFD().sync();
+                index.getFD().sync();
+            } finally {
+                data.close();
+                index.close();
+            }
+
+            // Data first, then the index.  If we die in between, recover()
+            // finds the new index without its data and finishes the job.
+            if(!newData.renameTo(new File(dir, DATA_FILENAME))
+                    || !newIndex.renameTo(new File(dir, INDEX_FILENAME)))
+                throw new IOException("Couldn't swap in the compacted pack in " + dir);
+
+            return dropped;
+        }
+    }
+
+    /**
+     * Cleans up after a compact that got cut off.  If both new files are
+     * there, the old pack was never touched and they can just go.  If only
+     * the new index is there, the new data's already in place and the index
+     * has to follow it.  Call this holding the class lock.
+     */
+    private static void recover(File dir) throws IOException {
+        File newData = new File(dir, DATA_FILENAME + NEW_SUFFIX);
+        File newIndex = new File(dir, INDEX_FILENAME + NEW_SUFFIX);
+
+        if(!newIndex.exists()) {
+            newData.delete();
+        } else if(newData.exists()) {
+            newData.delete();
+            newIndex.delete();
+        } else if(!newIndex.renameTo(new File(dir, INDEX_FILENAME))) {
+            throw new IOException("Couldn't finish compacting the pack in " + dir);
+        }
+    }
+
+    /**
+     * Gets the key for a frame, which is the number at the start of its
+     * filename.  PictureTaker names the files after the GPS time.
+     *
+     * @param fileLocation the frame's file
+     * @return the key, or -1 if the filename isn't a number
+     */
+    public static long keyFor(String fileLocation) {
+        String name = new File(fileLocation).getName();
+        int dot = name.indexOf('.');
+        if(dot >= 0) name = name.substring(0, dot);
+
+        try {
+            return Long.parseLong(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A Reader maps a pack and hands out thumbnails by position (in key
+     * order, which is time order) or by key.  If a key's in the pack more than
+     * once, only the last one counts.
+     */
+    public static class Reader {
+        private ByteBuffer mData;
+        private ByteBuffer mIndex;
+        private int mRecordCount;
+
+        /** The index record for each position, in key order. */
+        private int[] mRecords;
+        /** The key for each position, for binary searches. */
+        private long[] mKeys;
+
+        /**
+         * Maps the pack in the given directory.
+         *
+         * @param dir session directory
+         * @throws IOException the pack couldn't be read
+         */
+        public Reader(File dir) throws IOException {
+            synchronized(ThumbnailPack.class) {
+                recover(dir);
+                mData = map(new File(dir, DATA_FILENAME));
+                mIndex = map(new File(dir, INDEX_FILENAME));
+            }
+            mRecordCount = mIndex.capacity() / INDEX_RECORD_SIZE;
+
+            // Sort the records by key, and by where they are in the index for
+            // the same key, so the one that wins is the last of its run.
+            Integer[] sorted = new Integer[mRecordCount];
+            for(int i = 0; i < mRecordCount; i++) sorted[i] = i;
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long keyA = getRecordKey(a);
+                    long keyB = getRecordKey(b);
+                    if(keyA != keyB) return keyA < keyB ? -1 : 1;
+                    return a.compareTo(b);
+                }
+            });
+
+            int count = 0;
+            mRecords = new int[mRecordCount];
+            mKeys = new long[mRecordCount];
+            for(Integer record : sorted) {
+                long key = getRecordKey(record);
+                if(count > 0 && mKeys[count - 1] == key) count--;
+                mRecords[count] = record;
+                mKeys[count] = key;
+                count++;
+            }
+            mRecords = Arrays.copyOf(mRecords, count);
+            mKeys = Arrays.copyOf(mKeys, count);
+        }
+
+        private static ByteBuffer map(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        }
+
+        private long getRecordKey(int record) {
+            return mIndex.getLong(record * INDEX_RECORD_SIZE);
+        }
+
+        /**
+         * Gets how many thumbnails there are, one per key.
+         *
+         * @return the count
+         */
+        public int getCount() {
+            return mRecords.length;
+        }
+
+        /**
+         * Gets how many thumbnails are actually in the pack, counting the old
+         * ones that got replaced.
+         *
+         * @return the count
+         */
+        public int getRecordCount() {
+            return mRecordCount;
+        }
+
+        /**
+         * Finds the position of the thumbnail for a key.
+         *
+         * @param key the frame's key
+         * @return its position, or -1 if it isn't in the pack
+         */
+        public int find(long key) {
+            int position = Arrays.binarySearch(mKeys, key);
+            return position >= 0 ? position : -1;
+        }
+
+        /**
+         * Gets the key of a thumbnail.
+         *
+         * @param position which thumbnail
+         * @return its key
+         */
+        public long getKey(int position) {
+            return mKeys[position];
+        }
+
+        /**
+         * Gets the length of a thumbnail's JPEG data, so a buffer can be made
+         * (or reused) for getThumbnail.
+         *
+         * @param position which thumbnail
+         * @return its length in bytes
+         */
+        public int getLength(int position) {
+            return mIndex.getInt((mRecords[position] * INDEX_RECORD_SIZE) + 16);
+        }
+
+        /**
+         * Copies a thumbnail's JPEG data into a buffer.  Feed the result to
+         * BitmapFactory.decodeByteArray.
+         *
+         * @param position which thumbnail
+         * @param out buffer at least getLength(position) long
+         * @return the number of bytes copied
+         */
+        public int getThumbnail(int position, byte[] out) {
+            long offset = mIndex.getLong((mRecords[position] * INDEX_RECORD_SIZE) + 8);
+            int length = getLength(position);
+
+            ByteBuffer slice = mData.duplicate();
+            slice.position((int)offset);
+            slice.get(out, 0, length);
+            return length;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * TrackReader.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.exclaimindustries.drivelapse.TrackRecorder.Fix;
+
+/**
+ * The TrackReader reads back what the TrackRecorder wrote.  The block index
+ * gets memory-mapped and binary-searched, so pulling out a few minutes from
+ * the middle of a long trip only reads the blocks those minutes are in.
+ *
+ * @author Nicholas Killewald
+ */
+public class TrackReader {
+    /**
+     * Gets called once per fix during a read.
+     */
+    public interface Callback {
+        /**
+         * Here's a fix.  Don't hang on to it; it gets reused for the next one.
+         *
+         * @param fix the Fix
+         * @return true to keep going, false to stop reading
+         */
+        public boolean onFix(Fix fix);
+    }
+
+    private RandomAccessFile mData;
+    private ByteBuffer mIndex;
+    private int mBlockCount;
+
+    private byte[] mBlock = new byte[TrackRecorder.BLOCK_SIZE];
+    private long[] mValues = new long[7];
+    private Fix mFix = new Fix();
+
+    /**
+     * Opens the track in the given directory.
+     *
+     * @param dir directory with the track files in it
+     * @throws IOException the files couldn't be opened
+     */
+    public TrackReader(File dir) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(new File(dir, TrackRecorder.INDEX_FILENAME), "r");
+        try {
+            FileChannel channel = index.getChannel();
+            mIndex = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            index.close();
+        }
+
+        mBlockCount = mIndex.capacity() / TrackRecorder.INDEX_RECORD_SIZE;
+        mData = new RandomAccessFile(new File(dir, TrackRecorder.DATA_FILENAME), "r");
+    }
+
+    /**
+     * Checks if there's a track in the given directory at all.
+     *
+     * @param dir directory to check
+     * @return true if there's a track there
+     */
+    public static boolean exists(File dir) {
+        return new File(dir, TrackRecorder.INDEX_FILENAME).exists()
+                && new File(dir, TrackRecorder.DATA_FILENAME).exists();
+    }
+
+    /**
+     * Gets the time of the first fix in the track.
+     *
+     * @return the first time, or -1 if the track's empty
+     */
+    public long getStartTime() {
+        return mBlockCount == 0 ? -1 : firstTime(0);
+    }
+
+    /**
+     * Gets the time of the last fix in the track.
+     *
+     * @return the last time, or -1 if the track's empty
+     */
+    public long getEndTime() {
+        return mBlockCount == 0 ? -1 : lastTime(mBlockCount - 1);
+    }
+
+    /**
+     * Reads every fix in the track.
+     *
+     * @param callback where the fixes go
+     * @throws IOException the data file couldn't be read
+     */
+    public void readAll(Callback callback) throws IOException {
+        read(Long.MIN_VALUE, Long.MAX_VALUE, callback);
+    }
+
+    /**
+     * Reads every fix between the two times, inclusive.
+     *
+     * @param start earliest time to read
+     * @param end latest time to read
+     * @param callback where the fixes go
+     * @throws IOException the data file couldn't be read
+     */
+    public void read(long start, long end, Callback callback) throws IOException {
+        for(int block = findBlock(start); block < mBlockCount; block++) {
+            if(firstTime(block) > end) return;
+            if(!readBlock(block, start, end, callback)) return;
+        }
+    }
+
+    /**
+     * Finds the fix closest in time to the given time.
+     *
+     * @param time time to look for
+     * @param out Fix to put the result in
+     * @return true if there was anything in the track at all
+     * @throws IOException the data file couldn't be read
+     */
+    public boolean findNearest(final long time, final Fix out) throws IOException {
+        if(mBlockCount == 0) return false;
+
+        // The closest one's either in the first block that ends after the
+        // time we want or the very end of the block before it, so start
+        // reading from there and stop once things start getting farther away.
+        int block = findBlock(time);
+        if(block > 0) block--;
+        if(block >= mBlockCount) block = mBlockCount - 1;
+
+        read(firstTime(block), Long.MAX_VALUE, new Callback() {
+            private long mBestDiff = Long.MAX_VALUE;
+
+            @Override
+            public boolean onFix(Fix fix) {
+                long diff = Math.abs(fix.getTime() - time);
+                if(diff > mBestDiff) return false;
+                mBestDiff = diff;
+                copy(fix, out);
+                return true;
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Closes the track.
+     *
+     * @throws IOException the data file couldn't be closed
+     */
+    public void close() throws IOException {
+        mData.close();
+    }
+
+    private boolean readBlock(int block, long start, long end, Callback callback) throws IOException {
+        mData.seek((long)block * TrackRecorder.BLOCK_SIZE);
+        mData.readFully(mBlock);
+
+        int count = ((mBlock[0] & 0xFF) << 8) | (mBlock[1] & 0xFF);
+        int pos = TrackRecorder.BLOCK_HEADER_SIZE;
+
+        for(int i = 0; i < mValues.length; i++) mValues[i] = 0;
+
+        for(int n = 0; n < count; n++) {
+            int flags = mBlock[pos++];
+
+            for(int i = 0; i < mValues.length; i++) {
+                // Varint, inline, since we don't want to allocate anything to
+                // hand back both a value and a position.
+                long raw = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = mBlock[pos++];
+                    raw |= (long)(b & 0x7F) << shift;
+                    shift += 7;
+                } while((b & 0x80) != 0);
+
+                mValues[i] += TrackRecorder.unzigzag(raw);
+            }
+
+            if(mValues[0] < start) continue;
+            if(mValues[0] > end) return false;
+
+            mFix.setTime(mValues[0]);
+            mFix.setLatitude(mValues[1] / 1e7);
+            mFix.setLongitude(mValues[2] / 1e7);
+            mFix.setAltitude(mValues[3] / 10.0);
+            mFix.setSpeed(mValues[4] / 100.0f);
+            mFix.setBearing(mValues[5] / 100.0f);
+            mFix.setAccuracy(mValues[6] / 10.0f);
+            mFix.setFlags(flags);
+
+            if(!callback.onFix(mFix)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Binary-searches the index for the first block that ends at or after the
+     * given time.
+     *
+     * @param time time to look for
+     * @return a block number, or the block count if every block ends earlier
+     */
+    private int findBlock(long time) {
+        int low = 0;
+        int high = mBlockCount;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(lastTime(mid) < time) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private long firstTime(int block) {
+        return mIndex.getLong(block * TrackRecorder.INDEX_RECORD_SIZE);
+    }
+
+    private long lastTime(int block) {
+        return mIndex.getLong((block * TrackRecorder.INDEX_RECORD_SIZE) + 8);
+    }
+
+    private static void copy(Fix from, Fix to) {
+        to.clear();
+        to.setTime(from.getTime());
+        to.setLatitude(from.getLatitude());
+        to.setLongitude(from.getLongitude());
+        to.setAltitude(from.getAltitude());
+        to.setSpeed(from.getSpeed());
+        to.setBearing(from.getBearing());
+        to.setAccuracy(from.getAccuracy());
+        to.setFlags(from.getFlags());
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * TrackRecorder.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The TrackRecorder writes down every single GPS fix we get, not just the ones
+ * that turn into pictures.  It's meant to be left running for hours, so it
+ * keeps exactly one block in memory and every append is constant time.
+ *
+ * The data file is a series of fixed-size blocks.  Each fix in a block is
+ * stored as a flags byte followed by zigzag varint deltas from the fix before
+ * it; the first fix in a block is a delta from zero, so every block can be
+ * decoded on its own.  The index file has one fixed-size record per block
+ * (first time, last time, fix count), which TrackReader binary-searches to
+ * find a time range without reading the whole track.
+ *
+ * Fixes have to come in time order, since that's what TrackReader searches
+ * by.  The GPS clock can jump backwards, though, so append turns away any fix
+ * older than the last one written instead of letting it scramble the track.
+ *
+ * Values get quantized on the way in: latitude and longitude to 1e-7 degrees,
+ * altitude and accuracy to decimeters, speed to cm/s, and bearing to
+ * hundredths of a degree.
+ *
+ * @author Nicholas Killewald
+ */
+public class TrackRecorder {
+    public static final String DATA_FILENAME = "track.dlt";
+    public static final String INDEX_FILENAME = "track.dli";
+
+    /** Size of one block in the data file. */
+    static final int BLOCK_SIZE = 4096;
+    /** Size of one record in the index file. */
+    static final int INDEX_RECORD_SIZE = 8 + 8 + 4;
+    /** The biggest a single encoded fix can possibly get. */
+    static final int MAX_FIX_SIZE = 1 + (7 * 10);
+    /** Each block starts with a short fix count. */
+    static final int BLOCK_HEADER_SIZE = 2;
+
+    /** Write out the current block every this many fixes, just in case. */
+    private static final int FLUSH_INTERVAL = 60;
+
+    static final int FLAG_ALTITUDE = 0x01;
+    static final int FLAG_SPEED = 0x02;
+    static final int FLAG_BEARING = 0x04;
+    static final int FLAG_ACCURACY = 0x08;
+
+    /**
+     * A Fix is one GPS fix, boiled down to what the track file holds.  These
+     * are meant to be reused, not made fresh for every fix.
+     */
+    public static class Fix {
+        private long mTime;
+        private double mLatitude;
+        private double mLongitude;
+        private double mAltitude;
+        private float mSpeed;
+        private float mBearing;
+        private float mAccuracy;
+        private int mFlags;
+
+        /**
+         * Resets everything to zero and marks all the optional fields as
+         * missing.
+         */
+        public void clear() {
+            mTime = 0;
+            mLatitude = 0;
+            mLongitude = 0;
+            mAltitude = 0;
+            mSpeed = 0;
+            mBearing = 0;
+            mAccuracy = 0;
+            mFlags = 0;
+        }
+
+        public long getTime() { return mTime; }
+        public double getLatitude() { return mLatitude; }
+        public double getLongitude() { return mLongitude; }
+        public double getAltitude() { return mAltitude; }
+        public float getSpeed() { return mSpeed; }
+        public float getBearing() { return mBearing; }
+        public float getAccuracy() { return mAccuracy; }
+
+        public boolean hasAltitude() { return (mFlags & FLAG_ALTITUDE) != 0; }
+        public boolean hasSpeed() { return (mFlags & FLAG_SPEED) != 0; }
+        public boolean hasBearing() { return (mFlags & FLAG_BEARING) != 0; }
+        public boolean hasAccuracy() { return (mFlags & FLAG_ACCURACY) != 0; }
+
+        public void setTime(long time) { mTime = time; }
+        public void setLatitude(double latitude) { mLatitude = latitude; }
+        public void setLongitude(double longitude) { mLongitude = longitude; }
+
+        public void setAltitude(double altitude) {
+            mAltitude = altitude;
+            mFlags |= FLAG_ALTITUDE;
+        }
+
+        public void setSpeed(float speed) {
+            mSpeed = speed;
+            mFlags |= FLAG_SPEED;
+        }
+
+        public void setBearing(float bearing) {
+            mBearing = bearing;
+            mFlags |= FLAG_BEARING;
+        }
+
+        public void setAccuracy(float accuracy) {
+            mAccuracy = accuracy;
+            mFlags |= FLAG_ACCURACY;
+        }
+
+        int getFlags() {
+            return mFlags;
+        }
+
+        void setFlags(int flags) {
+            mFlags = flags;
+        }
+    }
+
+    private RandomAccessFile mData;
+    private RandomAccessFile mIndex;
+
+    private byte[] mBlock = new byte[BLOCK_SIZE];
+    private byte[] mScratch = new byte[MAX_FIX_SIZE];
+    private int mBlockPos;
+    private int mBlockCount;
+    private int mBlockNumber;
+    private long mBlockFirstTime;
+    private long mBlockLastTime;
+    private int mSinceFlush;
+
+    // The last fix written, quantized, for the deltas.
+    private long[] mPrevious = new long[7];
+    private long[] mCurrent = new long[7];
+
+    private long mTotalFixes;
+    private long mRefusedFixes;
+
+    /** Time of the last fix written, so nothing older gets in after it. */
+    private long mLastTime = Long.MIN_VALUE;
+
+    /**
+     * Opens a track in the given directory.  If there's already a track there
+     * (say, we're resuming after a pause), new fixes go after the ones already
+     * in it.
+     *
+     * @param dir directory in which the track files go
+     * @throws IOException the files couldn't be opened
+     */
+    public TrackRecorder(File dir) throws IOException {
+        mData = new RandomAccessFile(new File(dir, DATA_FILENAME), "rw");
+        mIndex = new RandomAccessFile(new File(dir, INDEX_FILENAME), "rw");
+
+        // Any partially-filled block from last time just stays partial; we
+        // start a new one after it.
+        mBlockNumber = (int)(mIndex.length() / INDEX_RECORD_SIZE);
+        if(mBlockNumber > 0) {
+            mIndex.seek(((long)mBlockNumber - 1) * INDEX_RECORD_SIZE + 8);
+            mLastTime = mIndex.readLong();
+        }
+        startBlock();
+    }
+
+    /**
+     * Appends a fix to the track, unless it's older than the last one.
+     *
+     * @param fix the Fix to add
+     * @return true if it went in, false if it was turned away for being out
+     *         of order
+     * @throws IOException the block couldn't be written
+     */
+    public boolean append(Fix fix) throws IOException {
+        if(fix.getTime() < mLastTime) {
+            mRefusedFixes++;
+            return false;
+        }
+
+        mCurrent[0] = fix.getTime();
+        mCurrent[1] = Math.round(fix.getLatitude() * 1e7);
+        mCurrent[2] = Math.round(fix.getLongitude() * 1e7);
+        // Missing values just repeat the last one; it's a zero delta, which is
+        // a single byte.
+        mCurrent[3] = fix.hasAltitude() ? Math.round(fix.getAltitude() * 10) : mPrevious[3];
+        mCurrent[4] = fix.hasSpeed() ? Math.round(fix.getSpeed() * 100) : mPrevious[4];
+        mCurrent[5] = fix.hasBearing() ? Math.round(fix.getBearing() * 100) : mPrevious[5];
+        mCurrent[6] = fix.hasAccuracy() ? Math.round(fix.getAccuracy() * 10) : mPrevious[6];
+
+        int length = encode(fix.getFlags());
+        if(mBlockPos + length > BLOCK_SIZE) {
+            // Full up.  Write it and try again on a fresh block, where it's a
+            // delta from zero instead.
+            writeBlock();
+            mBlockNumber++;
+            startBlock();
+            length = encode(fix.getFlags());
+        }
+
+        System.arraycopy(mScratch, 0, mBlock, mBlockPos, length);
+        mBlockPos += length;
+
+        if(mBlockCount == 0) mBlockFirstTime = fix.getTime();
+        mBlockLastTime = fix.getTime();
+        mBlockCount++;
+        mTotalFixes++;
+        mLastTime = fix.getTime();
+
+        long[] swap = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = swap;
+
+        if(++mSinceFlush >= FLUSH_INTERVAL) flush();
+        return true;
+    }
+
+    /**
+     * Writes out whatever's in the current block so far.  It'll be written
+     * again later once it's full (or closed), but this way, a crash doesn't
+     * lose more than FLUSH_INTERVAL fixes.
+     *
+     * @throws IOException the block couldn't be written
+     */
+    public void flush() throws IOException {
+        if(mBlockCount > 0) writeBlock();
+        mSinceFlush = 0;
+    }
+
+    /**
+     * Flushes and closes the track.  Don't use this TrackRecorder after this.
+     *
+     * @throws IOException something went wrong flushing
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mData.close();
+            mIndex.close();
+        }
+    }
+
+    /**
+     * Gets how many fixes have been appended since this was opened.
+     *
+     * @return the fix count
+     */
+    public long getFixCount() {
+        return mTotalFixes;
+    }
+
+    /**
+     * Gets how many fixes have been turned away since this was opened, for
+     * being older than the one before.
+     *
+     * @return the refused fix count
+     */
+    public long getRefusedCount() {
+        return mRefusedFixes;
+    }
+
+    private void startBlock() {
+        mBlockPos = BLOCK_HEADER_SIZE;
+        mBlockCount = 0;
+        for(int i = 0; i < mPrevious.length; i++) mPrevious[i] = 0;
+    }
+
+    private void writeBlock() throws IOException {
+        mBlock[0] = (byte)(mBlockCount >> 8);
+        mBlock[1] = (byte)mBlockCount;
+
+        // Zero out the rest so stale bytes from a previous block don't hang
+        // around on disk.
+        for(int i = mBlockPos; i < BLOCK_SIZE; i++) mBlock[i] = 0;
+
+        mData.seek((long)mBlockNumber * BLOCK_SIZE);
+        mData.write(mBlock);
+
+        mIndex.seek((long)mBlockNumber * INDEX_RECORD_SIZE);
+        mIndex.writeLong(mBlockFirstTime);
+        mIndex.writeLong(mBlockLastTime);
+        mIndex.writeInt(mBlockCount);
+    }
+
+    private int encode(int flags) {
+        int pos = 0;
+        mScratch[pos++] = (byte)flags;
+        for(int i = 0; i < mCurrent.length; i++) {
+            pos = writeVarint(mScratch, pos, zigzag(mCurrent[i] - mPrevious[i]));
+        }
+        return pos;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int writeVarint(byte[] buffer, int pos, long value) {
+        while((value & ~0x7FL) != 0) {
+            buffer[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte)value;
+        return pos;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * GeocoderCheck.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import net.exclaimindustries.drivelapse.OfflineReverseGeocoder;
+import net.exclaimindustries.drivelapse.ReverseGeocoder.Place;
+import net.exclaimindustries.drivelapse.SpatialIndexImporter;
+
+/**
+ * Checks the offline geocoder against known answers.  A road CSV gets run
+ * through the SpatialIndexImporter into a temporary index, an
+ * OfflineReverseGeocoder gets pointed at that, and every lookup in the
+ * answers file has to come back with exactly what it says.
+ *
+ * The answers file is one lookup per line, separated by tabs: latitude,
+ * longitude, then the thoroughfare, locality, and admin area that should come
+ * back.  An empty field means that part should be null, and a line with just
+ * the coordinates means no road should be found at all.  Blank lines and
+ * lines starting with # are ignored.  There's a little made-up town in
+ * tools/fixtures to run it on:
+ *
+ * <pre>
+ * java net.exclaimindustries.drivelapse.tools.GeocoderCheck fixtures/roads.csv fixtures/lookups.txt
+ * </pre>
+ *
+ * It exits with 1 if anything came back wrong.
+ *
+ * @author Nicholas Killewald
+ */
+public class GeocoderCheck {
+    private OfflineReverseGeocoder mGeocoder;
+    private int mChecked;
+    private int mFailed;
+
+    private GeocoderCheck(OfflineReverseGeocoder geocoder) {
+        mGeocoder = geocoder;
+    }
+
+    private void check(String line, int lineNumber) throws IOException {
+        String[] fields = line.split("\t", -1);
+        if(fields.length != 2 && fields.length != 5) {
+            throw new IOException("Line " + lineNumber + " has " + fields.length + " fields, expected 2 or 5");
+        }
+
+        double lat;
+        double lon;
+        try {
+            lat = Double.parseDouble(fields[0].trim());
+            lon = Double.parseDouble(fields[1].trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Line " + lineNumber + " has a bad coordinate: " + e.getMessage());
+        }
+
+        Place place = mGeocoder.lookup(lat, lon);
+        String expected = fields.length == 2 ? "nothing"
+                : describe(nullIfEmpty(fields[2]), nullIfEmpty(fields[3]), nullIfEmpty(fields[4]));
+        String actual = place == null ? "nothing"
+                : describe(place.getThoroughfare(), place.getLocality(), place.getAdminArea());
+
+        mChecked++;
+        if(expected.equals(actual)) {
+            System.out.println("ok    " + lat + ", " + lon + ": " + actual);
+        } else {
+            mFailed++;
+            System.out.println("FAIL  " + lat + ", " + lon + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static String nullIfEmpty(String s) {
+        return s.length() == 0 ? null : s;
+    }
+
+    private static String describe(String thoroughfare, String locality, String adminArea) {
+        return "[" + thoroughfare + " / " + locality + " / " + adminArea + "]";
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.err.println("Usage: GeocoderCheck <roads.csv> <lookups.txt>");
+            System.exit(1);
+        }
+
+        File index = File.createTempFile("geocodercheck", ".dlgi");
+        try {
+            Reader csv = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+            int count;
+            try {
+                count = SpatialIndexImporter.importCsv(csv, index);
+            } finally {
+                csv.close();
+            }
+            System.out.println("Imported " + count + " segments from " + args[0]);
+
+            GeocoderCheck check = new GeocoderCheck(new OfflineReverseGeocoder(index));
+            BufferedReader answers = new BufferedReader(new InputStreamReader(new FileInputStream(args[1]), "UTF-8"));
+            try {
+                String line;
+                int lineNumber = 0;
+                while((line = answers.readLine()) != null) {
+                    lineNumber++;
+                    if(line.trim().length() == 0 || line.startsWith("#")) continue;
+                    check.check(line, lineNumber);
+                }
+            } finally {
+                answers.close();
+            }
+
+            System.out.println(check.mChecked + " lookups, " + check.mFailed + " wrong");
+            if(check.mFailed > 0) System.exit(1);
+        } finally {
+            index.delete();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * ImageIORegionSource.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse.tools;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import net.exclaimindustries.drivelapse.RegionSource;
+
+/**
+ * A RegionSource for a plain JVM, on top of ImageIO, which is what the
+ * RegionDecoderSource is on the phone.  Only one band's ever decoded into
+ * memory at a time, but ImageIO's JPEG reader has to go through the file from
+ * the top for every band, so this gets slower the further down it goes.  It's
+ * for checking that banded frames come out right, not for speed.
+ *
+ * @author Nicholas Killewald
+ */
+public class ImageIORegionSource implements RegionSource {
+    private ImageInputStream mInput;
+    private ImageReader mReader;
+    private ImageReadParam mParam;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * Opens an image.
+     *
+     * @param file the image
+     * @throws IOException ImageIO can't read it
+     */
+    public ImageIORegionSource(File file) throws IOException {
+        mInput = ImageIO.createImageInputStream(file);
+        if(mInput == null) throw new IOException("Couldn't open " + file);
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(mInput);
+        if(!readers.hasNext()) {
+            mInput.close();
+            throw new IOException("Nothing can read " + file);
+        }
+
+        mReader = readers.next();
+        mReader.setInput(mInput, true, true);
+        mParam = mReader.getDefaultReadParam();
+        mWidth = mReader.getWidth(0);
+        mHeight = mReader.getHeight(0);
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void read(int top, int rows, int[] pixels) throws IOException {
+        mParam.setSourceRegion(new Rectangle(0, top, mWidth, rows));
+        BufferedImage band = mReader.read(0, mParam);
+        band.getRGB(0, 0, mWidth, rows, pixels, 0, mWidth);
+    }
+
+    @Override
+    public void close() {
+        mReader.dispose();
+        try {
+            mInput.close();
+        } catch (IOException e) {
+            // Well, we're done with it anyway.
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * JpegEncoderBenchmark.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import net.exclaimindustries.drivelapse.StripJpegEncoder;
+
+/**
+ * Checks the StripJpegEncoder against ImageIO's own (single-threaded) JPEG
+ * encoder, both for speed and for whether what it writes is any good.
+ *
+ * Every JPEG the StripJpegEncoder writes gets read back in with ImageIO, which
+ * has to manage it without complaint, and compared against the source frame.
+ * It should come out about as close as ImageIO's own at the same quality (the
+ * PSNRs should be within a fraction of a dB), and the same no matter how many
+ * threads wrote it, since the strips are cut the same way and coded
+ * independently.  If either of those isn't true, something's broken.  Then
+ * it does it once more with the strips pulling their own rows from a
+ * PixelSource, like the FrameProcessor does, which has to come out the same.
+ *
+ * Without any frames given, it makes up a noisy gradient about the size of a
+ * camera picture.
+ *
+ * With -band, each frame also gets encoded a band at a time straight from the
+ * JPEG through an ImageIORegionSource, the way frames too big to decode whole
+ * go on the phone.  That has to decode exactly the same as encoding the whole
+ * decoded frame at once.  It's not timed, since ImageIO re-reads the file for
+ * every band; it's just to show how much smaller the working buffer is.
+ *
+ * <pre>
+ * java net.exclaimindustries.drivelapse.tools.JpegEncoderBenchmark [-q quality] [-n runs] [-band rows] [frame.jpg...]
+ * </pre>
+ *
+ * @author Nicholas Killewald
+ */
+public class JpegEncoderBenchmark {
+    private int mQuality = 90;
+    private int mRuns = 20;
+    private int mBand;
+
+    private void run(String name, BufferedImage image, File file) throws Exception {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+
+        System.out.println(name + " (" + width + "x" + height + ", quality " + mQuality + "):");
+
+        // ImageIO, as the single-threaded baseline.
+        BufferedImage rgb = image;
+        if(image.getType() != BufferedImage.TYPE_INT_RGB) {
+            rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            rgb.setRGB(0, 0, width, height, pixels, 0, width);
+        }
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < mRuns; i++) {
+            out.reset();
+            long start = System.nanoTime();
+            writeImageIO(rgb, out);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        report("ImageIO", best, out.toByteArray(), pixels, width, height, null);
+
+        // Then ours, with more and more threads.
+        byte[] reference = null;
+        int cores = Runtime.getRuntime().availableProcessors();
+        for(int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            ExecutorService executor = threads == 1 ? null : Executors.newFixedThreadPool(threads);
+            StripJpegEncoder encoder = new StripJpegEncoder(mQuality, executor, threads);
+
+            best = Long.MAX_VALUE;
+            for(int i = 0; i < mRuns; i++) {
+                out.reset();
+                long start = System.nanoTime();
+                encoder.encode(pixels, width, height, out);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            if(executor != null) executor.shutdown();
+
+            byte[] jpeg = out.toByteArray();
+            report("Strips, " + threads + " thread" + (threads == 1 ? "" : "s"), best, jpeg, pixels, width, height,
+                    reference);
+            if(reference == null) reference = jpeg;
+
+            if(threads >= cores) break;
+        }
+
+        // And again, with every strip pulling its own rows, the way the
+        // FrameProcessor does it, so nothing gets copied out whole.
+        final int[] frame = pixels;
+        final int stride = width;
+        StripJpegEncoder.PixelSource source = new StripJpegEncoder.PixelSource() {
+            @Override
+            public void getPixels(int[] out, int top, int rows) {
+                System.arraycopy(frame, top * stride, out, 0, rows * stride);
+            }
+        };
+        ExecutorService executor = cores == 1 ? null : Executors.newFixedThreadPool(cores);
+        StripJpegEncoder encoder = new StripJpegEncoder(mQuality, executor, cores);
+        best = Long.MAX_VALUE;
+        for(int i = 0; i < mRuns; i++) {
+            out.reset();
+            long start = System.nanoTime();
+            encoder.encode(source, width, height, out);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if(executor != null) executor.shutdown();
+        report("Pulled, " + cores + " thread" + (cores == 1 ? "" : "s"), best, out.toByteArray(), pixels, width, height,
+                reference);
+        int stripRows = Math.min(height, Math.max(16, StripJpegEncoder.STRIP_PIXELS / (((width + 15) / 16) * 256) * 16));
+        System.out.println(String.format("  %-20s %7dK per thread instead of %dK",
+                "", (long)width * stripRows * 4 / 1024, (long)width * height * 4 / 1024));
+
+        if(mBand > 0) runBands(image, file);
+        System.out.println();
+    }
+
+    private void runBands(BufferedImage image, File file) throws Exception {
+        // The made-up frame has to be a JPEG first.
+        File temp = null;
+        if(file == null) {
+            temp = File.createTempFile("band", ".jpg");
+            temp.deleteOnExit();
+            ImageIO.write(image, "jpeg", temp);
+            file = temp;
+        }
+
+        try {
+            // What the bands should add up to is the whole decoded JPEG, which
+            // isn't quite what was handed in.
+            BufferedImage decoded = ImageIO.read(file);
+            int width = decoded.getWidth();
+            int height = decoded.getHeight();
+            int[] pixels = decoded.getRGB(0, 0, width, height, null, 0, width);
+
+            StripJpegEncoder encoder = new StripJpegEncoder(mQuality);
+            ByteArrayOutputStream whole = new ByteArrayOutputStream(1024 * 1024);
+            encoder.encode(pixels, width, height, whole);
+
+            ByteArrayOutputStream banded = new ByteArrayOutputStream(1024 * 1024);
+            ImageIORegionSource source = new ImageIORegionSource(file);
+            long start = System.nanoTime();
+            try {
+                encoder.encode(source, mBand, banded);
+            } finally {
+                source.close();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            // The same band height the encoder rounds to, so the buffer size
+            // is what it actually used.
+            int rows = new StripJpegEncoder(mQuality).begin(width, height, mBand, new ByteArrayOutputStream());
+            report("Bands of " + rows, elapsed, banded.toByteArray(), pixels, width, height, whole.toByteArray());
+            System.out.println(String.format("  %-20s %7dK working buffer instead of %dK",
+                    "", (long)width * rows * 4 / 1024, (long)width * height * 4 / 1024));
+        } finally {
+            if(temp != null) temp.delete();
+        }
+    }
+
+    private void report(String label, long nanos, byte[] jpeg, int[] pixels, int width, int height, byte[] reference)
+            throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+        if(decoded == null || decoded.getWidth() != width || decoded.getHeight() != height) {
+            throw new IOException(label + " wrote something ImageIO can't read!");
+        }
+
+        // Every thread count gets compared against one thread, pixel for
+        // pixel.  Entropy coding's lossless, so they'd better match exactly.
+        String same = "";
+        if(reference != null) {
+            BufferedImage other = ImageIO.read(new ByteArrayInputStream(reference));
+            int[] a = decoded.getRGB(0, 0, width, height, null, 0, width);
+            int[] b = other.getRGB(0, 0, width, height, null, 0, width);
+            for(int i = 0; i < a.length; i++) {
+                if(a[i] != b[i]) throw new IOException(label + " doesn't decode the same as one thread!");
+            }
+            same = ", decodes identically";
+        }
+
+        System.out.println(String.format("  %-20s %7.1fms  %7d bytes  %5.2f dB%s",
+                label, nanos / 1e6, jpeg.length, psnr(pixels, decoded), same));
+    }
+
+    private static double psnr(int[] pixels, BufferedImage decoded) {
+        int width = decoded.getWidth();
+        int[] out = decoded.getRGB(0, 0, width, decoded.getHeight(), null, 0, width);
+        double error = 0;
+        for(int i = 0; i < out.length; i++) {
+            for(int shift = 0; shift <= 16; shift += 8) {
+                int d = ((pixels[i] >> shift) & 0xff) - ((out[i] >> shift) & 0xff);
+                error += d * d;
+            }
+        }
+        double mse = error / (out.length * 3.0);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+    private void writeImageIO(BufferedImage image, ByteArrayOutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(mQuality / 100.0f);
+
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            ios.close();
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Makes up a stand-in frame: 1024x768, smooth up top (sky), busy at the
+     * bottom (road), with some noise everywhere so it doesn't compress to
+     * nothing.
+     */
+    private static BufferedImage makeFrame() {
+        BufferedImage image = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for(int y = 0; y < 768; y++) {
+            for(int x = 0; x < 1024; x++) {
+                int noise = y < 384 ? 8 : 64;
+                int r = Math.min(255, x * 200 / 1024 + random.nextInt(noise));
+                int g = Math.min(255, y * 200 / 768 + random.nextInt(noise));
+                int b = Math.min(255, ((x ^ y) & 0x7f) + random.nextInt(noise));
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    public static void main(String[] args) throws Exception {
+        JpegEncoderBenchmark bench = new JpegEncoderBenchmark();
+        int first = 0;
+        try {
+            while(first < args.length && args[first].startsWith("-")) {
+                if(args[first].equals("-q")) bench.mQuality = Integer.parseInt(args[first + 1]);
+                else if(args[first].equals("-n")) bench.mRuns = Math.max(1, Integer.parseInt(args[first + 1]));
+                else if(args[first].equals("-band")) bench.mBand = Math.max(1, Integer.parseInt(args[first + 1]));
+                else throw new IllegalArgumentException();
+                first += 2;
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: JpegEncoderBenchmark [-q quality] [-n runs] [-band rows] [frame.jpg...]");
+            System.exit(1);
+        }
+
+        if(first == args.length) {
+            bench.run("Made-up frame", makeFrame(), null);
+        } else {
+            for(int i = first; i < args.length; i++) {
+                BufferedImage image = ImageIO.read(new File(args[i]));
+                if(image == null) {
+                    System.err.println("Couldn't read " + args[i] + ", skipping it...");
+                    continue;
+                }
+                bench.run(args[i], image, new File(args[i]));
+            }
+        }
+    }
+}
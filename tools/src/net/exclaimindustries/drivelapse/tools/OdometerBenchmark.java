@@ -0,0 +1,294 @@
+/**
+ * OdometerBenchmark.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import net.exclaimindustries.drivelapse.Odometer;
+import net.exclaimindustries.drivelapse.TrackReader;
+import net.exclaimindustries.drivelapse.TrackRecorder.Fix;
+
+/**
+ * Runs recorded tracks through both the old LocationManager-style straight-line
+ * minDistance trigger and the Odometer, and says how many pictures each one
+ * would have taken.  Any picture taken while we're stopped is a picture that
+ * got written, decoded, annotated, and encoded for nothing, so both triggers'
+ * frames get counted while stopped, and the difference is what the Odometer
+ * saves.  On the other end, the old way undercounts on curves (and overshoots
+ * every trigger by however far the fix after it was), which shows up as fewer
+ * frames per kilometer than the trigger distance says there should be.
+ *
+ * Whether we were stopped doesn't come from the Odometer, since it never
+ * counts distance while it thinks we're stopped and that'd make it look
+ * perfect by definition.  Instead, it's judged after the fact from the raw
+ * fixes: if the fix STOP_HALF_WINDOW before one and the fix STOP_HALF_WINDOW
+ * after it are closer together than STOP_SPEED would get you, we were
+ * stopped.  Looking both ways like that means a single fix jumping off
+ * somewhere doesn't count as moving, which the Odometer can't do since it has
+ * to decide right then.
+ *
+ * The cost per fix is just the Odometer's update, timed separately over the
+ * whole track once it's been read in, not the reading or the other triggers.
+ *
+ * Tracks can be session directories or CSV files, one fix per line: time in
+ * milliseconds, latitude, longitude, accuracy, and speed, with accuracy or
+ * speed left empty if the fix didn't have one.  Lines starting with # are
+ * ignored.  tools/fixtures/drive.csv is one of those, a half-hour drive with
+ * the sort of GPS trouble that wastes frames.  Run it on a desktop JVM with
+ * the app sources and this on the classpath:
+ *
+ * <pre>
+ * java net.exclaimindustries.drivelapse.tools.OdometerBenchmark [-d meters] sessiondir|track.csv...
+ * </pre>
+ *
+ * @author Nicholas Killewald
+ */
+public class OdometerBenchmark {
+    private static final double EARTH_RADIUS = 6371009.0;
+    /** How many times to time the Odometer over the track, keeping the best. */
+    private static final int TIMING_PASSES = 5;
+    /** How far to look each way to decide if we were stopped, in milliseconds. */
+    private static final long STOP_HALF_WINDOW = 15000;
+    /** Don't decide that over any less time than this, in milliseconds. */
+    private static final long MIN_STOP_SPAN = 10000;
+    /** Slower than this (m/s) over the window is stopped. */
+    private static final double STOP_SPEED = 1.0;
+
+    private float mTriggerDistance;
+
+    // The whole track, so the Odometer can be timed without the reading.
+    private int mCount;
+    private long[] mTimes = new long[1024];
+    private double[] mLats = new double[1024];
+    private double[] mLons = new double[1024];
+    private float[] mAccuracies = new float[1024];
+    private float[] mSpeeds = new float[1024];
+
+    // Old-style trigger.
+    private boolean mHasNaive;
+    private double mNaiveLat;
+    private double mNaiveLon;
+    private int mNaiveFrames;
+    private int mNaiveStationaryFrames;
+
+    // Stopped or not for each fix, from the raw fixes around it.
+    private boolean[] mStopped;
+    private int mStoppedFixes;
+
+    // Raw fix-to-fix path, for comparison.
+    private boolean mHasRaw;
+    private double mRawLat;
+    private double mRawLon;
+    private double mRawDistance;
+
+    private Odometer mOdometer;
+    private int mOdometerFrames;
+    private int mOdometerStationaryFrames;
+    private long mOdometerNanos;
+
+    public OdometerBenchmark(float triggerDistance) {
+        mTriggerDistance = triggerDistance;
+        mOdometer = new Odometer(triggerDistance);
+    }
+
+    private void add(Fix fix) {
+        if(mCount == mTimes.length) {
+            int size = mCount * 2;
+            mTimes = Arrays.copyOf(mTimes, size);
+            mLats = Arrays.copyOf(mLats, size);
+            mLons = Arrays.copyOf(mLons, size);
+            mAccuracies = Arrays.copyOf(mAccuracies, size);
+            mSpeeds = Arrays.copyOf(mSpeeds, size);
+        }
+
+        mTimes[mCount] = fix.getTime();
+        mLats[mCount] = fix.getLatitude();
+        mLons[mCount] = fix.getLongitude();
+        mAccuracies[mCount] = fix.hasAccuracy() ? fix.getAccuracy() : 0;
+        mSpeeds[mCount] = fix.hasSpeed() ? fix.getSpeed() : -1;
+        mCount++;
+    }
+
+    private void classifyStops() {
+        mStopped = new boolean[mCount];
+        mStoppedFixes = 0;
+
+        // Two pointers, one STOP_HALF_WINDOW behind and one ahead.
+        int before = 0;
+        int after = 0;
+        for(int i = 0; i < mCount; i++) {
+            while(mTimes[before] < mTimes[i] - STOP_HALF_WINDOW) before++;
+            while(after + 1 < mCount && mTimes[after + 1] <= mTimes[i] + STOP_HALF_WINDOW) after++;
+
+            long span = mTimes[after] - mTimes[before];
+            if(span < MIN_STOP_SPAN) continue;
+
+            double moved = distance(mLats[before], mLons[before], mLats[after], mLons[after]);
+            if(moved < STOP_SPEED * span / 1000.0) {
+                mStopped[i] = true;
+                mStoppedFixes++;
+            }
+        }
+    }
+
+    private void run() {
+        classifyStops();
+
+        for(int i = 0; i < mCount; i++) {
+            // Both triggers get judged stopped or not the same way, from the
+            // raw fixes, so the counts line up.
+            boolean triggered = mOdometer.update(mTimes[i], mLats[i], mLons[i], mAccuracies[i], mSpeeds[i]);
+            boolean stopped = mStopped[i];
+            if(triggered) {
+                mOdometerFrames++;
+                if(stopped) mOdometerStationaryFrames++;
+            }
+
+            // LocationManager only hands over a fix once it's minDistance
+            // from the last one it handed over.
+            if(!mHasNaive || distance(mNaiveLat, mNaiveLon, mLats[i], mLons[i]) >= mTriggerDistance) {
+                mHasNaive = true;
+                mNaiveLat = mLats[i];
+                mNaiveLon = mLons[i];
+                mNaiveFrames++;
+                if(stopped) mNaiveStationaryFrames++;
+            }
+
+            if(mHasRaw) mRawDistance += distance(mRawLat, mRawLon, mLats[i], mLons[i]);
+            mHasRaw = true;
+            mRawLat = mLats[i];
+            mRawLon = mLons[i];
+        }
+
+        // Then, time nothing but the Odometer, on a fresh one each pass.
+        mOdometerNanos = Long.MAX_VALUE;
+        int sink = 0;
+        for(int pass = 0; pass < TIMING_PASSES; pass++) {
+            Odometer odometer = new Odometer(mTriggerDistance);
+            long start = System.nanoTime();
+            for(int i = 0; i < mCount; i++) {
+                if(odometer.update(mTimes[i], mLats[i], mLons[i], mAccuracies[i], mSpeeds[i])) sink++;
+            }
+            mOdometerNanos = Math.min(mOdometerNanos, System.nanoTime() - start);
+        }
+        if(sink < 0) System.out.println(sink);
+    }
+
+    private void report(String name) {
+        System.out.println(name);
+        System.out.println("  fixes:                  " + mOdometer.getFixCount()
+                + " (" + mOdometer.getRejectedCount() + " rejected, "
+                + mOdometer.getStationaryCount() + " the Odometer called stationary, "
+                + mStoppedFixes + " actually stopped)");
+        System.out.println("  raw fix-to-fix path:    " + Math.round(mRawDistance) + " m");
+        System.out.println("  filtered path:          " + Math.round(mOdometer.getTotalDistance()) + " m");
+        System.out.println("  straight-line frames:   " + mNaiveFrames
+                + " (" + mNaiveStationaryFrames + " while stopped)");
+        System.out.println("  odometer frames:        " + mOdometerFrames
+                + " (" + mOdometerStationaryFrames + " while stopped)");
+        System.out.println("  stopped frames avoided: " + (mNaiveStationaryFrames - mOdometerStationaryFrames));
+        System.out.println("  frames per filtered km: "
+                + (mOdometer.getTotalDistance() <= 0 ? 0 : Math.round(mOdometerFrames * 1000 / mOdometer.getTotalDistance()))
+                + " (straight-line: "
+                + (mOdometer.getTotalDistance() <= 0 ? 0 : Math.round(mNaiveFrames * 1000 / mOdometer.getTotalDistance()))
+                + ")");
+        System.out.println("  odometer cost:          "
+                + (mCount == 0 ? 0 : (mOdometerNanos / mCount)) + " ns/fix (best of " + TIMING_PASSES + ")");
+    }
+
+    private void readCsv(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            Fix fix = new Fix();
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.trim().length() == 0 || line.startsWith("#")) continue;
+
+                String[] fields = line.split(",", -1);
+                if(fields.length != 5) {
+                    throw new IOException(file + " line " + lineNumber + " has " + fields.length + " fields, expected 5");
+                }
+
+                try {
+                    fix.clear();
+                    fix.setTime(Long.parseLong(fields[0].trim()));
+                    fix.setLatitude(Double.parseDouble(fields[1].trim()));
+                    fix.setLongitude(Double.parseDouble(fields[2].trim()));
+                    if(fields[3].trim().length() > 0) fix.setAccuracy(Float.parseFloat(fields[3].trim()));
+                    if(fields[4].trim().length() > 0) fix.setSpeed(Float.parseFloat(fields[4].trim()));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + " line " + lineNumber + " has a bad number: " + e.getMessage());
+                }
+                add(fix);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readTrack(File dir) throws IOException {
+        TrackReader reader = new TrackReader(dir);
+        try {
+            reader.readAll(new TrackReader.Callback() {
+                @Override
+                public boolean onFix(Fix fix) {
+                    add(fix);
+                    return true;
+                }
+            });
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    public static void main(String[] args) throws IOException {
+        float triggerDistance = 100;
+        int first = 0;
+
+        if(args.length >= 2 && args[0].equals("-d")) {
+            triggerDistance = Float.parseFloat(args[1]);
+            first = 2;
+        }
+
+        if(first >= args.length) {
+            System.err.println("Usage: OdometerBenchmark [-d meters] sessiondir|track.csv...");
+            System.exit(1);
+        }
+
+        for(int i = first; i < args.length; i++) {
+            File track = new File(args[i]);
+            OdometerBenchmark bench = new OdometerBenchmark(triggerDistance);
+            if(track.isFile()) {
+                bench.readCsv(track);
+            } else if(TrackReader.exists(track)) {
+                bench.readTrack(track);
+            } else {
+                System.err.println(track + " doesn't have a track in it, skipping...");
+                continue;
+            }
+            bench.run();
+            bench.report(track.getPath());
+        }
+    }
+}
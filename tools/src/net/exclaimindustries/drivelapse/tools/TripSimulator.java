@@ -0,0 +1,942 @@
+/**
+ * TripSimulator.java
+ * Copyright (C)2010 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENCE file at the toplevel.
+ */
+package net.exclaimindustries.drivelapse.tools;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import net.exclaimindustries.drivelapse.AddressLookup;
+import net.exclaimindustries.drivelapse.AnnotationSidecar;
+import net.exclaimindustries.drivelapse.CaptureQueue;
+import net.exclaimindustries.drivelapse.DistanceIndex;
+import net.exclaimindustries.drivelapse.GeocodePrefetcher;
+import net.exclaimindustries.drivelapse.Odometer;
+import net.exclaimindustries.drivelapse.ResultCache;
+import net.exclaimindustries.drivelapse.ReverseGeocoder;
+import net.exclaimindustries.drivelapse.SamplingScheduler;
+import net.exclaimindustries.drivelapse.StripJpegEncoder;
+import net.exclaimindustries.drivelapse.ThumbnailPack;
+import net.exclaimindustries.drivelapse.TrackReader;
+import net.exclaimindustries.drivelapse.TrackRecorder.Fix;
+
+/**
+ * Drives a whole trip through the capture and processing path on a desktop,
+ * so the bad ones (long highway runs, tunnels, geocoder outages) can be run
+ * again without actually driving them again.
+ *
+ * Fixes come from a recorded session's track or from a made-up trip (some
+ * city driving with red lights, a long highway run, and a tunnel), played back
+ * as many times faster than real life as asked.  Most of what happens to them
+ * after that is the app's own code, but not all of it, so here's exactly
+ * which is which.
+ *
+ * The real thing, same classes the phone runs:
+ * <ul>
+ * <li>the SamplingScheduler, spacing the fixes out like the phone would</li>
+ * <li>the Odometer, deciding when to take pictures</li>
+ * <li>the GeocodePrefetcher, looking addresses up ahead of time</li>
+ * <li>the CaptureQueue in front of the camera (one in flight, the rest
+ *     waiting, the oldest coalesced)</li>
+ * <li>the AddressLookup, with the Annotator's retries</li>
+ * <li>the AnnotationSidecar, DistanceIndex, and ThumbnailPack files</li>
+ * <li>the ResultCache, including hashing each original for its key</li>
+ * <li>the StripJpegEncoder, fed a band at a time, the way the FrameProcessor
+ *     does frames too big to decode all at once</li>
+ * </ul>
+ *
+ * Simulated:
+ * <ul>
+ * <li>the camera, which sleeps for as long as it's told to and hands back a
+ *     canned JPEG</li>
+ * <li>the geocoder, which takes about as long and fails about as often as
+ *     it's told to</li>
+ * <li>the FrameProcessor and its Stations themselves.  They're tied to
+ *     Android (Bitmaps, Canvases, Locations), so a single worker goes through
+ *     the same steps in the same order: look up the address, move the capture
+ *     into the originals, work out the ResultCache keys, decode, draw, encode
+ *     and resize a band at a time, then write everything down.  The Station
+ *     keys leave out the Stations' versions and configs.</li>
+ * <li>decoding, which is an ImageIORegionSource instead of a
+ *     BitmapRegionDecoder</li>
+ * <li>drawing the overlay and scaling the copies down, which are AWT instead
+ *     of the Annotator's OverlayTemplate and the Resizer's Bitmaps</li>
+ * </ul>
+ *
+ * Not there at all: the DuplicateGate (every canned frame would be a
+ * duplicate of the last), the processed list, and putting frames off until
+ * a batch run.
+ *
+ * So of the stage latencies at the end, geocode, hash, encode, and index are
+ * the phone's own code running on this machine, and decode/draw and resize
+ * are desktop stand-ins that only give a rough idea.
+ *
+ * Only the trip gets sped up.  The camera, the geocoder, and the processing
+ * all take as long as they really take, which is the point: at ten times
+ * speed, it shows whether the pipeline could keep up with a car going ten
+ * times as fast (or a trigger distance a tenth as long).
+ *
+ * Every so often (in trip time), it reports how many frames have gone through,
+ * how fast, and how big the backlog is.  At the end, it waits for the backlog
+ * to drain and reports how long each stage took.
+ *
+ * <pre>
+ * java net.exclaimindustries.drivelapse.tools.TripSimulator [options] [sessiondir]
+ *   -x factor         how many times faster than real life to play the trip (10)
+ *   -minutes n        stop the trip after this many minutes
+ *   -capture ms       how long the fake camera takes per picture (600)
+ *   -geo-latency ms   how long the fake geocoder takes per lookup (400)
+ *   -geo-fail rate    fraction of lookups that fail outright (0.02)
+ *   -outage a-b       geocoder's down from minute a to minute b of the trip
+ *   -retry ms         how long to wait after a failed lookup (10000)
+ *   -jpeg file        canned JPEG for the fake camera to hand back
+ *   -report minutes   how often to report, in trip minutes (5)
+ *   -o dir            where to put the frames (otherwise a temp directory)
+ * </pre>
+ *
+ * @author Nicholas Killewald
+ */
+public class TripSimulator {
+    private static final double EARTH_RADIUS = 6371009.0;
+    private static final float TRIGGER_DISTANCE = 100;
+
+    // These are the same as the FrameProcessor's and the Resizer's, which
+    // can't be touched from here, as they're Android classes.
+    private static final int JPEG_QUALITY = 90;
+    private static final String ORIGINALS_DIRNAME = "originals";
+    private static final int BAND_PIXELS = 1024 * 1024;
+    private static final int[] HEIGHTS = { 720, 360 };
+    private static final int THUMBNAIL_HEIGHT = 96;
+    private static final float COPY_QUALITY = 0.85f;
+    private static final float THUMBNAIL_QUALITY = 0.75f;
+
+    /** How long to wait for the backlog to drain after the trip, in ms. */
+    private static final long DRAIN_TIMEOUT = 300000;
+
+    // Settings.
+    private double mSpeedup = 10;
+    private long mMaxMinutes = -1;
+    private long mCaptureTime = 600;
+    private long mGeoLatency = 400;
+    private double mGeoFailRate = 0.02;
+    private List<long[]> mOutages = new ArrayList<long[]>();
+    private long mRetryDelay = AddressLookup.RETRY_DELAY;
+    private long mReportInterval = 5;
+    private File mDir;
+    private byte[] mJpeg;
+
+    // The real stuff.
+    private Odometer mOdometer = new Odometer(TRIGGER_DISTANCE);
+    private SamplingScheduler mScheduler = new SamplingScheduler();
+    private GeocodePrefetcher mPrefetcher;
+    private AddressLookup mLookup;
+    private StripJpegEncoder mEncoder = new StripJpegEncoder(JPEG_QUALITY);
+    private ResultCache mCache;
+
+    // The fake stuff.
+    private FakeGeocoder mGeocoder;
+    private FakeCamera mCamera = new FakeCamera();
+    private LinkedBlockingQueue<Frame> mWork = new LinkedBlockingQueue<Frame>();
+
+    /** Where we are in the trip, in trip milliseconds since it started. */
+    private volatile long mTripTime;
+    private long mTripStart;
+
+    // Counts.
+    private int mFixes;
+    private int mTriggers;
+    private volatile int mCaptured;
+    private volatile int mCoalesced;
+    private volatile int mProcessed;
+    private volatile int mMaxBacklog;
+
+    // Stage latencies.
+    private Stat mCaptureWait = new Stat("trigger to shutter");
+    private Stat mCaptureStat = new Stat("capture");
+    private Stat mQueueWait = new Stat("waiting for worker");
+    private Stat mGeocodeStat = new Stat("geocode");
+    private Stat mHashStat = new Stat("hash");
+    private Stat mDrawStat = new Stat("decode/draw");
+    private Stat mEncodeStat = new Stat("encode");
+    private Stat mResizeStat = new Stat("resize");
+    private Stat mIndexStat = new Stat("index");
+    private Stat mTotalStat = new Stat("trigger to done");
+
+    /** One picture on its way through. */
+    private static class Frame {
+        long time;
+        double latitude;
+        double longitude;
+        double distance;
+        File file;
+
+        long triggered;
+        long shutter;
+        long captured;
+    }
+
+    /**
+     * The fake camera takes one picture at a time, in however long it's told
+     * to, behind the same CaptureQueue as the CaptureScheduler.
+     */
+    private class FakeCamera implements Runnable {
+        private CaptureQueue<Frame> mQueue = new CaptureQueue<Frame>();
+        private boolean mStopped;
+
+        public synchronized void trigger(Frame frame) {
+            frame.triggered = System.nanoTime();
+            if(mQueue.add(frame) != null) mCoalesced++;
+            notifyAll();
+        }
+
+        public synchronized int getPending() {
+            return mQueue.getPendingCount();
+        }
+
+        public synchronized void stop() {
+            mStopped = true;
+            notifyAll();
+        }
+
+        private synchronized Frame next() throws InterruptedException {
+            Frame frame;
+            while((frame = mQueue.next()) == null && !mStopped) wait();
+            return frame;
+        }
+
+        private synchronized void finish(Frame frame) {
+            mQueue.finish(frame);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Frame frame;
+                while((frame = next()) != null) {
+                    frame.shutter = System.nanoTime();
+                    mCaptureWait.add(frame.shutter - frame.triggered);
+
+                    // Like the CaptureScheduler, the camera's free for the
+                    // next one as soon as the picture comes back, before it's
+                    // written out.
+                    Thread.sleep(mCaptureTime);
+                    finish(frame);
+
+                    frame.file = new File(mDir, frame.time + ".jpg");
+                    FileOutputStream ostream = new FileOutputStream(frame.file);
+                    try {
+                        ostream.write(mJpeg);
+                    } finally {
+                        ostream.close();
+                    }
+
+                    frame.captured = System.nanoTime();
+                    mCaptureStat.add(frame.captured - frame.shutter);
+                    mCaptured++;
+                    mWork.put(frame);
+                    noteBacklog();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The fake geocoder takes about as long as it's told to (give or take
+     * half), fails as often as it's told to, and doesn't work at all during
+     * outages.
+     */
+    private class FakeGeocoder implements ReverseGeocoder {
+        private Random mRandom = new Random(42);
+        private volatile int mCalls;
+        private volatile int mFailures;
+
+        @Override
+        public Place lookup(double latitude, double longitude) throws IOException {
+            mCalls++;
+            long latency;
+            boolean fail;
+            synchronized(mRandom) {
+                latency = (long)(mGeoLatency * (0.5 + mRandom.nextDouble()));
+                fail = mRandom.nextDouble() < mGeoFailRate;
+            }
+
+            long minute = mTripTime / 60000;
+            for(long[] outage : mOutages) {
+                if(minute >= outage[0] && minute < outage[1]) fail = true;
+            }
+
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+
+            if(fail) {
+                mFailures++;
+                throw new IOException("Fake geocoder failure");
+            }
+
+            return new Place("Road " + Math.round(latitude * 1000) % 1000,
+                    "Town " + Math.round(longitude * 100) % 100, "ST");
+        }
+    }
+
+    /**
+     * A latency histogram, in milliseconds.
+     */
+    private static class Stat {
+        private static final int MAX = 120000;
+
+        private String mName;
+        private int[] mBuckets = new int[MAX + 1];
+        private long mCount;
+        private long mTotal;
+        private long mMax;
+
+        public Stat(String name) {
+            mName = name;
+        }
+
+        public synchronized void add(long nanos) {
+            long ms = nanos / 1000000;
+            mBuckets[(int)Math.min(ms, MAX)]++;
+            mCount++;
+            mTotal += ms;
+            if(ms > mMax) mMax = ms;
+        }
+
+        private long percentile(double p) {
+            long target = (long)Math.ceil(mCount * p);
+            long seen = 0;
+            for(int i = 0; i <= MAX; i++) {
+                seen += mBuckets[i];
+                if(seen >= target) return i;
+            }
+            return MAX;
+        }
+
+        public synchronized String toString() {
+            if(mCount == 0) return String.format("  %-20s (nothing)", mName);
+            return String.format("  %-20s %6d  avg %6dms  p50 %6dms  p95 %6dms  max %6dms",
+                    mName, mCount, mTotal / mCount, percentile(0.5), percentile(0.95), mMax);
+        }
+    }
+
+    private void noteBacklog() {
+        int backlog = mWork.size() + mCamera.getPending();
+        if(backlog > mMaxBacklog) mMaxBacklog = backlog;
+    }
+
+    private void process() {
+        try {
+            Frame frame;
+            while((frame = mWork.take()).file != null) {
+                long start = System.nanoTime();
+                mQueueWait.add(start - frame.captured);
+
+                processFrame(frame, start);
+                mTotalStat.add(System.nanoTime() - frame.triggered);
+                mProcessed++;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Goes through what the FrameProcessor does with a new frame, in the same
+     * order.
+     */
+    private void processFrame(Frame frame, long start) throws IOException {
+        File output = frame.file;
+        long key = ThumbnailPack.keyFor(output.getPath());
+
+        // The Annotator's lookup, which gets written down in the sidecar
+        // before anything's drawn.
+        AnnotationSidecar.Record record = mLookup.lookUp(frame.time, frame.latitude, frame.longitude);
+        AnnotationSidecar.append(mDir, key, record);
+        long geocoded = System.nanoTime();
+        mGeocodeStat.add(geocoded - start);
+
+        // Into the originals, then the ResultCache keys, worked out from the
+        // original the same way.
+        File original = new File(new File(mDir, ORIGINALS_DIRNAME), output.getName());
+        File originals = original.getParentFile();
+        if(!(originals.isDirectory() || originals.mkdirs()) || !output.renameTo(original)) {
+            throw new IOException("Couldn't move " + output + " into the originals");
+        }
+        String base = ResultCache.hash(ResultCache.hashFile(original), key,
+                Math.round(frame.latitude * 1e7), Math.round(frame.longitude * 1e7), JPEG_QUALITY);
+        String annotatorKey = ResultCache.hash(base, "Annotator", record.toString());
+        String resizerKey = ResultCache.hash(annotatorKey, "Resizer");
+        long hashed = System.nanoTime();
+        mHashStat.add(hashed - geocoded);
+
+        drawFrame(original, output, record);
+
+        // Only now that it's all on disk do the results count.
+        long indexStart = System.nanoTime();
+        mCache.put(output.getName(), "Annotator", annotatorKey);
+        mCache.put(output.getName(), "Resizer", resizerKey);
+        DistanceIndex.append(mDir, frame.distance, frame.time, key);
+        mIndexStat.add(System.nanoTime() - indexStart);
+    }
+
+    /**
+     * Decodes, draws on, encodes, and scales down a frame a band at a time,
+     * like FrameProcessor.processBands with the Annotator and the Resizer.
+     */
+    private void drawFrame(File source, File output, AnnotationSidecar.Record record) throws IOException {
+        long drawTime = 0;
+        long encodeTime = 0;
+        long resizeTime = 0;
+        long mark = System.nanoTime();
+
+        ImageIORegionSource region = new ImageIORegionSource(source);
+        File temp = new File(output.getPath() + ".tmp");
+        OutputStream ostream = null;
+        boolean written = false;
+        BufferedImage target;
+
+        try {
+            int width = region.getWidth();
+            int height = region.getHeight();
+            int bandRows = Math.max(16, (BAND_PIXELS / width) / 16 * 16);
+
+            ostream = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+            bandRows = mEncoder.begin(width, height, bandRows, ostream);
+
+            // The band gets drawn on right where the encoder reads it from.
+            int[] pixels = new int[width * bandRows];
+            WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length),
+                    width, bandRows, width, new int[] { 0xff0000, 0xff00, 0xff }, null);
+            BufferedImage band = new BufferedImage(new DirectColorModel(24, 0xff0000, 0xff00, 0xff),
+                    raster, false, null);
+
+            // Like the Resizer, only the biggest copy comes from the bands.
+            int targetHeight = THUMBNAIL_HEIGHT;
+            for(int h : HEIGHTS) {
+                if(h < height) {
+                    targetHeight = h;
+                    break;
+                }
+            }
+            targetHeight = Math.min(targetHeight, height);
+            int targetWidth = Math.max(1, Math.round((float)width * targetHeight / height));
+            target = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+            Graphics2D targetGraphics = target.createGraphics();
+            targetGraphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            float scale = (float)targetHeight / height;
+
+            long now = System.nanoTime();
+            drawTime += now - mark;
+            mark = now;
+
+            try {
+                for(int top = 0; top < height; top += bandRows) {
+                    int rows = Math.min(bandRows, height - top);
+
+                    region.read(top, rows, pixels);
+                    drawOverlay(band, top, height, record);
+                    now = System.nanoTime();
+                    drawTime += now - mark;
+                    mark = now;
+
+                    mEncoder.writeBand(pixels, rows);
+                    now = System.nanoTime();
+                    encodeTime += now - mark;
+                    mark = now;
+
+                    int y0 = Math.round(top * scale);
+                    int y1 = Math.round((top + rows) * scale);
+                    targetGraphics.drawImage(band, 0, y0, targetWidth, y1, 0, 0, width, rows, null);
+                    now = System.nanoTime();
+                    resizeTime += now - mark;
+                    mark = now;
+                }
+            } finally {
+                targetGraphics.dispose();
+            }
+
+            mEncoder.finish();
+            ostream.close();
+            ostream = null;
+            output.delete();
+            if(!temp.renameTo(output)) throw new IOException("Couldn't move " + temp + " to " + output);
+            written = true;
+
+            now = System.nanoTime();
+            encodeTime += now - mark;
+            mark = now;
+        } finally {
+            region.close();
+            if(ostream != null) ostream.close();
+            if(!written) temp.delete();
+        }
+
+        resize(output, target);
+        resizeTime += System.nanoTime() - mark;
+
+        mDrawStat.add(drawTime);
+        mEncodeStat.add(encodeTime);
+        mResizeStat.add(resizeTime);
+    }
+
+    /**
+     * Draws a stand-in for the overlay on one band: a dark box near the
+     * bottom, with the address and coordinates in it.
+     */
+    private static void drawOverlay(BufferedImage band, int top, int height, AnnotationSidecar.Record record) {
+        if(top + band.getHeight() < height - 112) return;
+
+        Graphics2D g = band.createGraphics();
+        try {
+            g.translate(0, -top);
+            g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, height / 32));
+            g.setColor(new Color(0, 0, 0, 160));
+            g.fillRect(16, height - 112, band.getWidth() / 2, 96);
+            g.setColor(Color.WHITE);
+            g.drawString(record.getLatitude() + ", " + record.getLongitude(), 20, height - 24);
+            ReverseGeocoder.Place place = record.getPlace();
+            if(place != null) g.drawString(place.getThoroughfare() + ", " + place.getLocality(), 20, height - 56);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Writes every copy the Resizer would from the biggest one, plus the
+     * thumbnail, which goes in the ThumbnailPack.
+     */
+    private void resize(File frame, BufferedImage biggest) throws IOException {
+        BufferedImage current = biggest;
+        for(int height : HEIGHTS) {
+            if(height > current.getHeight()) continue;
+            if(height < current.getHeight()) current = scale(current, height);
+            writeCopy(frame, height, current);
+        }
+
+        if(THUMBNAIL_HEIGHT < current.getHeight()) current = scale(current, THUMBNAIL_HEIGHT);
+        ByteArrayOutputStream thumb = new ByteArrayOutputStream();
+        writeJpeg(current, thumb, THUMBNAIL_QUALITY);
+        ThumbnailPack.append(mDir, ThumbnailPack.keyFor(frame.getPath()), thumb.toByteArray(), thumb.size());
+    }
+
+    private static void writeCopy(File frame, int height, BufferedImage copy) throws IOException {
+        File subdir = new File(frame.getParentFile(), String.valueOf(height));
+        if(!subdir.isDirectory() && !subdir.mkdirs()) throw new IOException("Couldn't make " + subdir);
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(subdir, frame.getName())));
+        try {
+            writeJpeg(copy, out, COPY_QUALITY);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage source, int height) {
+        int width = Math.max(1, Math.round((float)source.getWidth() * height / source.getHeight()));
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+    private static void writeJpeg(BufferedImage image, OutputStream output, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        ImageOutputStream out = ImageIO.createImageOutputStream(output);
+        try {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            out.close();
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Makes a stand-in for a camera picture: 1024x768, with enough going on
+     * in it that it's about as big as a real one.
+     */
+    private static byte[] makeJpeg() throws IOException {
+        BufferedImage image = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for(int y = 0; y < 768; y++) {
+            for(int x = 0; x < 1024; x++) {
+                int r = (x * 255 / 1024) ^ random.nextInt(32);
+                int g = (y * 255 / 768) ^ random.nextInt(32);
+                int b = ((x + y) & 0xff) ^ random.nextInt(32);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeJpeg(image, out, 0.85f);
+        return out.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) > 0) out.write(buffer, 0, read);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Where fixes come from.
+     */
+    private interface FixSource {
+        /**
+         * Fills in the next fix at or after the given trip time.
+         *
+         * @param tripTime earliest trip time the fix can be at
+         * @param fix Fix to fill in, with its time as trip time
+         * @return false if the trip's over
+         */
+        public boolean next(long tripTime, Fix fix) throws IOException;
+    }
+
+    /**
+     * A made-up trip: ten minutes of city driving with a red light every
+     * minute and a half, twenty minutes of highway, two minutes in a tunnel
+     * (no GPS at all), and thirteen more minutes of highway.
+     */
+    private static class SyntheticTrip implements FixSource {
+        // Segments: length in seconds, speed in m/s, whether there's GPS.
+        private static final int[][] SEGMENTS = {
+            { 600, 13, 1 },
+            { 1200, 31, 1 },
+            { 120, 25, 0 },
+            { 780, 31, 1 },
+        };
+
+        private Random mRandom = new Random(7);
+        private double mLat = 39.96;
+        private double mLon = -83.0;
+        private double mHeading = 0.3;
+        private long mTime;
+
+        public boolean next(long tripTime, Fix fix) {
+            while(true) {
+                // Move along to the requested time, a second at a time.
+                while(mTime < tripTime) {
+                    int[] segment = segmentAt(mTime);
+                    if(segment == null) return false;
+                    double speed = speedAt(mTime, segment);
+                    mHeading += (mRandom.nextDouble() - 0.5) * 0.02;
+                    double step = speed;
+                    mLat += Math.toDegrees(step * Math.cos(mHeading) / EARTH_RADIUS);
+                    mLon += Math.toDegrees(step * Math.sin(mHeading) / (EARTH_RADIUS * Math.cos(Math.toRadians(mLat))));
+                    mTime += 1000;
+                }
+
+                int[] segment = segmentAt(mTime);
+                if(segment == null) return false;
+                if(segment[2] == 0) {
+                    // In the tunnel.  Nothing until we're out.
+                    tripTime = mTime + 1000;
+                    continue;
+                }
+
+                // A few meters of noise, like any real fix.
+                double noise = 3.0 / EARTH_RADIUS;
+                fix.clear();
+                fix.setTime(mTime);
+                fix.setLatitude(mLat + Math.toDegrees(mRandom.nextGaussian() * noise));
+                fix.setLongitude(mLon + Math.toDegrees(mRandom.nextGaussian() * noise));
+                fix.setAccuracy(5);
+                fix.setSpeed((float)Math.max(0, speedAt(mTime, segment) + mRandom.nextGaussian() * 0.3));
+                return true;
+            }
+        }
+
+        private static int[] segmentAt(long time) {
+            long seconds = time / 1000;
+            for(int[] segment : SEGMENTS) {
+                if(seconds < segment[0]) return segment;
+                seconds -= segment[0];
+            }
+            return null;
+        }
+
+        private static double speedAt(long time, int[] segment) {
+            // City driving stops at a red light for 40 seconds out of every
+            // 90.
+            if(segment == SEGMENTS[0] && (time / 1000) % 90 >= 50) return 0;
+            return segment[1];
+        }
+    }
+
+    /**
+     * A recorded trip, straight off a session's track.
+     */
+    private static class RecordedTrip implements FixSource {
+        private Iterator<Fix> mFixes;
+
+        public RecordedTrip(File dir) throws IOException {
+            // Tracks are small (a dozen bytes a fix), so just read the whole
+            // thing in.
+            final List<Fix> fixes = new ArrayList<Fix>();
+            TrackReader reader = new TrackReader(dir);
+            try {
+                final long start = reader.getStartTime();
+                reader.readAll(new TrackReader.Callback() {
+                    @Override
+                    public boolean onFix(Fix fix) {
+                        Fix copy = new Fix();
+                        copy.setTime(fix.getTime() - start);
+                        copy.setLatitude(fix.getLatitude());
+                        copy.setLongitude(fix.getLongitude());
+                        if(fix.hasSpeed()) copy.setSpeed(fix.getSpeed());
+                        if(fix.hasAccuracy()) copy.setAccuracy(fix.getAccuracy());
+                        fixes.add(copy);
+                        return true;
+                    }
+                });
+            } finally {
+                reader.close();
+            }
+            mFixes = fixes.iterator();
+        }
+
+        public boolean next(long tripTime, Fix fix) {
+            while(mFixes.hasNext()) {
+                Fix next = mFixes.next();
+                if(next.getTime() < tripTime) continue;
+
+                fix.clear();
+                fix.setTime(next.getTime());
+                fix.setLatitude(next.getLatitude());
+                fix.setLongitude(next.getLongitude());
+                if(next.hasSpeed()) fix.setSpeed(next.getSpeed());
+                if(next.hasAccuracy()) fix.setAccuracy(next.getAccuracy());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public void run(FixSource source) throws Exception {
+        mGeocoder = new FakeGeocoder();
+        mPrefetcher = new GeocodePrefetcher(mGeocoder, TRIGGER_DISTANCE);
+        mLookup = new AddressLookup(mPrefetcher, mRetryDelay);
+        mCache = new ResultCache(mDir);
+
+        Thread camera = new Thread(mCamera, "FakeCamera");
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, "Worker");
+        camera.start();
+        worker.start();
+
+        mTripStart = System.currentTimeMillis();
+        long realStart = System.nanoTime();
+        long nextReport = mReportInterval * 60000;
+        int lastProcessed = 0;
+        long lastReportNanos = realStart;
+
+        mScheduler.start(0);
+        Fix fix = new Fix();
+        long wanted = 0;
+        while(source.next(wanted, fix)) {
+            long time = fix.getTime();
+            if(mMaxMinutes >= 0 && time > mMaxMinutes * 60000) break;
+
+            // Keep up with trip time, sped up.
+            long realDue = realStart + (long)(time * 1000000 / mSpeedup);
+            long sleep = (realDue - System.nanoTime()) / 1000000;
+            if(sleep > 0) Thread.sleep(sleep);
+            mTripTime = time;
+
+            while(time >= nextReport) {
+                long now = System.nanoTime();
+                int processed = mProcessed;
+                report(nextReport, processed - lastProcessed, now - lastReportNanos);
+                lastProcessed = processed;
+                lastReportNanos = now;
+                nextReport += mReportInterval * 60000;
+            }
+
+            // Now, the same things DriveLapse does with a fix.
+            mFixes++;
+            long absolute = mTripStart + time;
+            mPrefetcher.onFix(absolute, fix.getLatitude(), fix.getLongitude());
+            float speed = fix.hasSpeed() ? fix.getSpeed() : -1;
+            boolean trigger = mOdometer.update(absolute, fix.getLatitude(), fix.getLongitude(),
+                    fix.hasAccuracy() ? fix.getAccuracy() : 0, speed);
+            mScheduler.update(speed, mOdometer.isStationary(), mOdometer.getDistanceToTrigger(), TRIGGER_DISTANCE);
+            mScheduler.countFix(0);
+
+            if(trigger) {
+                mTriggers++;
+                Frame frame = new Frame();
+                frame.time = absolute;
+                frame.latitude = fix.getLatitude();
+                frame.longitude = fix.getLongitude();
+                frame.distance = mOdometer.getTotalDistance();
+                mCamera.trigger(frame);
+                noteBacklog();
+            }
+
+            wanted = time + mScheduler.getInterval();
+        }
+
+        long tripEnd = System.nanoTime();
+        System.out.println(String.format("Trip over after %.1f trip minutes (%.1fs real); draining...",
+                mTripTime / 60000.0, (tripEnd - realStart) / 1e9));
+
+        // Let the backlog drain, then shut everything down.
+        mCamera.stop();
+        camera.join(DRAIN_TIMEOUT);
+        mWork.put(new Frame());
+        worker.join(Math.max(1, DRAIN_TIMEOUT - (System.nanoTime() - tripEnd) / 1000000));
+        long drained = System.nanoTime();
+        boolean stuck = worker.isAlive();
+        if(stuck) worker.interrupt();
+
+        System.out.println();
+        System.out.println(String.format("Fixes: %d (%.0f m, %d stationary, %d rejected)",
+                mFixes, mOdometer.getTotalDistance(), mOdometer.getStationaryCount(), mOdometer.getRejectedCount()));
+        System.out.println(String.format("Frames: %d triggered, %d captured, %d coalesced, %d processed",
+                mTriggers, mCaptured, mCoalesced, mProcessed));
+        System.out.println(String.format("Throughput: %.2f frames/s sustained, max backlog %d, %s",
+                mProcessed / ((drained - realStart) / 1e9), mMaxBacklog,
+                stuck ? "gave up draining" : String.format("drained in %.1fs", (drained - tripEnd) / 1e9)));
+        System.out.println(String.format("Geocoder: %d calls, %d failures, %d retried; prefetch cache %d hits, %d misses",
+                mGeocoder.mCalls, mGeocoder.mFailures, mLookup.getFailureCount(),
+                mPrefetcher.getHitCount(), mPrefetcher.getMissCount()));
+        System.out.println("Stages:");
+        System.out.println(mCaptureWait);
+        System.out.println(mCaptureStat);
+        System.out.println(mQueueWait);
+        System.out.println(mGeocodeStat);
+        System.out.println(mHashStat);
+        System.out.println(mDrawStat);
+        System.out.println(mEncodeStat);
+        System.out.println(mResizeStat);
+        System.out.println(mIndexStat);
+        System.out.println(mTotalStat);
+    }
+
+    private void report(long tripTime, int processed, long nanos) {
+        int backlog = mWork.size() + mCamera.getPending();
+        System.out.println(String.format("[%3d min] %5d triggered  %5d processed  %6.2f frames/s  backlog %3d (max %d)  %d coalesced",
+                tripTime / 60000, mTriggers, mProcessed, processed / (nanos / 1e9), backlog, mMaxBacklog, mCoalesced));
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if(files != null) for(File f : files) delete(f);
+        file.delete();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: TripSimulator [-x factor] [-minutes n] [-capture ms] [-geo-latency ms]");
+        System.err.println("                     [-geo-fail rate] [-outage a-b] [-retry ms] [-jpeg file]");
+        System.err.println("                     [-report minutes] [-o dir] [sessiondir]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        TripSimulator sim = new TripSimulator();
+        File session = null;
+        File jpeg = null;
+
+        try {
+            for(int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if(arg.equals("-x")) sim.mSpeedup = Double.parseDouble(args[++i]);
+                else if(arg.equals("-minutes")) sim.mMaxMinutes = Long.parseLong(args[++i]);
+                else if(arg.equals("-capture")) sim.mCaptureTime = Long.parseLong(args[++i]);
+                else if(arg.equals("-geo-latency")) sim.mGeoLatency = Long.parseLong(args[++i]);
+                else if(arg.equals("-geo-fail")) sim.mGeoFailRate = Double.parseDouble(args[++i]);
+                else if(arg.equals("-retry")) sim.mRetryDelay = Long.parseLong(args[++i]);
+                else if(arg.equals("-report")) sim.mReportInterval = Math.max(1, Long.parseLong(args[++i]));
+                else if(arg.equals("-jpeg")) jpeg = new File(args[++i]);
+                else if(arg.equals("-o")) sim.mDir = new File(args[++i]);
+                else if(arg.equals("-outage")) {
+                    String[] range = args[++i].split("-");
+                    sim.mOutages.add(new long[] { Long.parseLong(range[0]), Long.parseLong(range[1]) });
+                } else if(arg.startsWith("-") || session != null) usage();
+                else session = new File(arg);
+            }
+        } catch (RuntimeException e) {
+            usage();
+        }
+
+        sim.mJpeg = jpeg != null ? readFile(jpeg) : makeJpeg();
+
+        boolean temp = sim.mDir == null;
+        if(temp) {
+            sim.mDir = File.createTempFile("tripsim", "");
+            sim.mDir.delete();
+        }
+        if(!sim.mDir.isDirectory() && !sim.mDir.mkdirs()) {
+            System.err.println("Couldn't make " + sim.mDir);
+            System.exit(1);
+        }
+
+        System.out.println("Simulating " + (session != null ? session.toString() : "a made-up trip")
+                + " at " + sim.mSpeedup + "x into " + sim.mDir);
+
+        try {
+            sim.run(session != null ? new RecordedTrip(session) : new SyntheticTrip());
+        } finally {
+            if(temp) delete(sim.mDir);
+        }
+
+        // The prefetcher's threads don't go away on their own.
+        System.exit(0);
+    }
+}